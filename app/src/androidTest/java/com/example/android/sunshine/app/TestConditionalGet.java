@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.TestUtilities.CountingObserver;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.sync.ForecastPayloads;
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import java.util.ArrayList;
+
+/*
+    Runs FetchWeatherTask against a local stub server to check that an unchanged forecast is
+    answered with a 304 and costs no forecast writes or change notifications at all (only
+    its sync_metrics row, which notifies nobody).
+ */
+public class TestConditionalGet extends AndroidTestCase {
+    static final String TEST_LOCATION = "94043";
+    static final String TEST_ETAG = "\"6b8a-4f2c1e\"";
+    static final String TEST_LAST_MODIFIED = "Sat, 20 Dec 2014 00:00:00 GMT";
+
+    private StubHttpServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        mServer = new StubHttpServer();
+        mServer.setResponse(ForecastPayloads.RECORDED_MOUNTAIN_VIEW, TEST_ETAG, TEST_LAST_MODIFIED);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        deleteAll();
+        super.tearDown();
+    }
+
+    public void testNotModifiedSyncWritesNothing() throws Exception {
+        FetchWeatherTask fwt = new FetchWeatherTask(getContext(), mServer.getBaseUrl());
+
+        // First fetch: nothing stored yet, so the request must be unconditional
+        fwt.doInBackground(TEST_LOCATION);
+        assertEquals(1, mServer.getRequestCount());
+        assertNull("Error: first request should not be conditional",
+                mServer.getRequestHeaders(0).get("if-none-match"));
+
+        ArrayList<Long> rowIdsBefore = queryWeatherRowIds();
+        assertFalse("Error: the first fetch didn't store any weather", rowIdsBefore.isEmpty());
+
+        // Second fetch: the stored validators go out and the server answers 304
+        CountingObserver observer =
+                CountingObserver.register(getContext(), WeatherContract.BASE_CONTENT_URI);
+        fwt.doInBackground(TEST_LOCATION);
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals("Error: stored ETag wasn't sent back", TEST_ETAG,
+                mServer.getRequestHeaders(1).get("if-none-match"));
+        assertEquals("Error: stored Last-Modified wasn't sent back", TEST_LAST_MODIFIED,
+                mServer.getRequestHeaders(1).get("if-modified-since"));
+
+        // Give any stray notification time to be delivered before we count
+        Thread.sleep(500);
+        observer.unregister();
+        assertEquals("Error: a 304 fetch notified observers of a change", 0, observer.getCount());
+
+        // ON CONFLICT REPLACE would have given every rewritten row a new _id
+        assertEquals("Error: a 304 fetch rewrote weather rows", rowIdsBefore, queryWeatherRowIds());
+    }
+
+    public void testChangedForecastIsStored() throws Exception {
+        FetchWeatherTask fwt = new FetchWeatherTask(getContext(), mServer.getBaseUrl());
+        fwt.doInBackground(TEST_LOCATION);
+
+        mServer.setResponse(ForecastPayloads.RECORDED_MOUNTAIN_VIEW, "\"new-etag\"", TEST_LAST_MODIFIED);
+        fwt.doInBackground(TEST_LOCATION);
+
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry.COLUMN_ETAG},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{TEST_LOCATION},
+                null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: the new ETag wasn't remembered", "\"new-etag\"", cursor.getString(0));
+        cursor.close();
+    }
+
+    private ArrayList<Long> queryWeatherRowIds() {
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                new String[]{WeatherContract.WeatherEntry._ID},
+                null, null,
+                WeatherContract.WeatherEntry._ID + " ASC");
+        ArrayList<Long> ids = new ArrayList<Long>();
+        while (cursor.moveToNext()) {
+            ids.add(cursor.getLong(0));
+        }
+        cursor.close();
+        return ids;
+    }
+
+    private void deleteAll() {
+        getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        getContext().getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+}
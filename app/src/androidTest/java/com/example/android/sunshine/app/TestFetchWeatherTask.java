@@ -15,10 +15,11 @@
  */
 package com.example.android.sunshine.app;
 
-import android.annotation.TargetApi;
+import android.content.ContentValues;
 import android.database.Cursor;
 import android.test.AndroidTestCase;
 
+import com.example.android.sunshine.app.data.LocationIdCache;
 import com.example.android.sunshine.app.data.WeatherContract;
 
 public class TestFetchWeatherTask extends AndroidTestCase{
@@ -32,7 +33,6 @@ public class TestFetchWeatherTask extends AndroidTestCase{
         This test will only run on API level 11 and higher because of a requirement in the
         content provider.
      */
-    @TargetApi(11)
     public void testAddLocation() {
         // start from a clean state
         getContext().getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI,
@@ -101,4 +101,52 @@ public class TestFetchWeatherTask extends AndroidTestCase{
                 acquireContentProviderClient(WeatherContract.LocationEntry.CONTENT_URI).
                 getLocalContentProvider().shutdown();
     }
+
+    /*
+        addLocation remembers the ids it resolves, and a delete through the provider must make
+        it forget them again.
+     */
+    public void testAddLocationCacheIsInvalidatedByDelete() {
+        getContext().getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{ADD_LOCATION_SETTING});
+        assertEquals(-1, LocationIdCache.get(ADD_LOCATION_SETTING));
+
+        FetchWeatherTask fwt = new FetchWeatherTask(getContext());
+        long locationId = fwt.addLocation(ADD_LOCATION_SETTING, ADD_LOCATION_CITY,
+                ADD_LOCATION_LAT, ADD_LOCATION_LON);
+        assertEquals("Error: addLocation didn't cache the id it resolved",
+                locationId, LocationIdCache.get(ADD_LOCATION_SETTING));
+
+        // storing validators must not throw the cache away
+        ContentValues validators = new ContentValues();
+        validators.put(WeatherContract.LocationEntry.COLUMN_ETAG, "\"1\"");
+        getContext().getContentResolver().update(WeatherContract.LocationEntry.CONTENT_URI,
+                validators, WeatherContract.LocationEntry._ID + " = ?",
+                new String[]{Long.toString(locationId)});
+        assertEquals(locationId, LocationIdCache.get(ADD_LOCATION_SETTING));
+
+        getContext().getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{ADD_LOCATION_SETTING});
+        assertEquals("Error: deleting the location left its id in the cache",
+                -1, LocationIdCache.get(ADD_LOCATION_SETTING));
+
+        // the location comes back as a new row, and addLocation must return that row's id
+        long newLocationId = fwt.addLocation(ADD_LOCATION_SETTING, ADD_LOCATION_CITY,
+                ADD_LOCATION_LAT, ADD_LOCATION_LON);
+        Cursor locationCursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{ADD_LOCATION_SETTING},
+                null);
+        assertTrue(locationCursor.moveToFirst());
+        assertEquals(locationCursor.getLong(0), newLocationId);
+        locationCursor.close();
+
+        getContext().getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{ADD_LOCATION_SETTING});
+    }
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/*
+    Stress test for reading while a sync writes: one thread runs a large bulk insert in a
+    single transaction, as the provider's bulkInsert does, while this thread keeps running the
+    forecast list query and timing it.  It is run twice, on scratch databases with the weather
+    schema: once with the default rollback journal and once set up like the provider's
+    (WeatherDbHelper.enableConcurrentReads).
+ */
+public class TestConcurrentReads extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestConcurrentReads.class.getSimpleName();
+
+    private static final String ROLLBACK_DATABASE = "concurrent_reads_rollback.db";
+    private static final String WAL_DATABASE = "concurrent_reads_wal.db";
+
+    private static final int LOCATIONS = 20;
+    private static final int DAYS = 1000;
+    private static final long DAY = 24L * 3600 * 1000;
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(ROLLBACK_DATABASE);
+        mContext.deleteDatabase(WAL_DATABASE);
+        super.tearDown();
+    }
+
+    public void testReadLatencyDuringBulkInsert() throws Exception {
+        long[] rollback = measure(ROLLBACK_DATABASE, false);
+        long[] wal = measure(WAL_DATABASE, true);
+
+        Log.d(LOG_TAG, "Read latency during a " + LOCATIONS * DAYS + " row insert, ms " +
+                "(reads/median/max) | rollback journal: " + rollback[0] + "/" + rollback[1] +
+                "/" + rollback[2] + " | WAL: " + wal[0] + "/" + wal[1] + "/" + wal[2]);
+        assertTrue("Error: no reads completed while the insert ran in WAL mode", wal[0] > 1);
+        assertTrue("Error: WAL reads waited as long as with the rollback journal (" + wal[2] +
+                " ms vs " + rollback[2] + " ms)", wal[2] < rollback[2]);
+    }
+
+    /*
+        @return the number of reads made while the insert ran, their median and their
+        maximum latency in milliseconds
+     */
+    private long[] measure(String name, boolean concurrentReads) throws Exception {
+        mContext.deleteDatabase(name);
+        final SQLiteDatabase db = mContext.openOrCreateDatabase(name, Context.MODE_PRIVATE, null);
+        try {
+            new WeatherDbHelper(mContext).onCreate(db);
+            if (concurrentReads) {
+                WeatherDbHelper.enableConcurrentReads(db);
+            }
+            final long[] locationIds = new long[LOCATIONS];
+            for (int i = 0; i < LOCATIONS; i++) {
+                ContentValues location = TestUtilities.createNorthPoleLocationValues();
+                location.put(LocationEntry.COLUMN_LOCATION_SETTING, "location-" + i);
+                locationIds[i] = db.insert(LocationEntry.TABLE_NAME, null, location);
+            }
+
+            final CountDownLatch started = new CountDownLatch(1);
+            final long[] finishedAt = new long[]{Long.MAX_VALUE};
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    db.beginTransaction();
+                    try {
+                        long firstDay = WeatherContract.normalizeDate(System.currentTimeMillis());
+                        for (int day = 0; day < DAYS; day++) {
+                            for (long locationId : locationIds) {
+                                ContentValues values = TestUtilities.createWeatherValues(locationId);
+                                values.put(WeatherEntry.COLUMN_DATE, firstDay + day * DAY);
+                                db.insert(WeatherEntry.TABLE_NAME, null, values);
+                                started.countDown();
+                            }
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                        synchronized (finishedAt) {
+                            finishedAt[0] = SystemClock.elapsedRealtime();
+                        }
+                    }
+                }
+            }, "TestConcurrentReads-writer");
+            writer.start();
+            started.await();
+
+            List<Long> latencies = new ArrayList<Long>();
+            while (true) {
+                long start = SystemClock.elapsedRealtime();
+                Cursor cursor = WeatherProvider.sCurrentForecastQueryBuilder.query(db,
+                        null, WeatherProvider.sLocationSettingSelection, new String[]{"location-0"},
+                        null, null, WeatherEntry.COLUMN_DATE + " ASC");
+                cursor.moveToFirst();
+                cursor.close();
+                long end = SystemClock.elapsedRealtime();
+                synchronized (finishedAt) {
+                    // only reads that began while the insert was still running count
+                    if (start >= finishedAt[0]) {
+                        break;
+                    }
+                }
+                latencies.add(end - start);
+            }
+            writer.join();
+
+            Collections.sort(latencies);
+            return new long[]{latencies.size(), latencies.get(latencies.size() / 2),
+                    latencies.get(latencies.size() - 1)};
+        } finally {
+            db.close();
+        }
+    }
+}
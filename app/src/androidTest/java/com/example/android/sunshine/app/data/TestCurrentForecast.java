@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.CurrentForecastEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Tests that current_forecast follows every kind of write to the weather and location
+    tables, and benchmarks the forecast list query against it and against the join it
+    replaced, at 1, 100 and 1,000 stored locations.  Runs on a scratch database.  Only the
+    row counts are asserted; the numbers are for tracking.
+ */
+public class TestCurrentForecast extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestCurrentForecast.class.getSimpleName();
+
+    private static final String DATABASE = "current_forecast_test.db";
+
+    private static final int DAYS = 30;
+    private static final int QUERIES = 200;
+
+    // What WEATHER_WITH_LOCATION ran before current_forecast
+    private static final SQLiteQueryBuilder sJoinQueryBuilder = new SQLiteQueryBuilder();
+
+    static {
+        sJoinQueryBuilder.setTables(WeatherEntry.TABLE_NAME + " INNER JOIN " +
+                LocationEntry.TABLE_NAME + " ON " + WeatherEntry.TABLE_NAME + "." +
+                WeatherEntry.COLUMN_LOC_KEY + " = " + LocationEntry.TABLE_NAME + "." +
+                LocationEntry._ID);
+    }
+
+    private static final String JOIN_SELECTION = LocationEntry.TABLE_NAME + "." +
+            LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+            WeatherEntry.COLUMN_DATE + " >= ?";
+
+    private WeatherDbHelper mHelper;
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(DATABASE);
+        mHelper = new WeatherDbHelper(mContext, DATABASE);
+        mDb = mHelper.getWritableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.close();
+        mContext.deleteDatabase(DATABASE);
+        super.tearDown();
+    }
+
+    public void testFollowsWrites() {
+        long firstDay = WeatherContract.normalizeDate(System.currentTimeMillis());
+        long locationId = TestUtilities.insertLocation(mDb, "current-0");
+        TestUtilities.insertDays(mDb, locationId, firstDay, 3);
+        assertEquals(3, countCurrentForecast("current-0"));
+
+        // the weather table's ON CONFLICT REPLACE: the same day again replaces its copy
+        ContentValues day = TestUtilities.createWeatherValues(locationId);
+        day.put(WeatherEntry.COLUMN_DATE, firstDay);
+        day.put(WeatherEntry.COLUMN_MAX_TEMP, 99);
+        mDb.insert(WeatherEntry.TABLE_NAME, null, day);
+        assertEquals(3, countCurrentForecast("current-0"));
+        assertEquals(99, (int) DatabaseUtils.longForQuery(mDb, "SELECT " +
+                WeatherEntry.COLUMN_MAX_TEMP + " FROM " + CurrentForecastEntry.TABLE_NAME +
+                " WHERE " + WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(firstDay)}));
+
+        // an update, then a delete, of the weather rows
+        ContentValues update = new ContentValues();
+        update.put(WeatherEntry.COLUMN_SHORT_DESC, "Updated");
+        mDb.update(WeatherEntry.TABLE_NAME, update, null, null);
+        assertEquals(3, DatabaseUtils.longForQuery(mDb, "SELECT count(*) FROM " +
+                CurrentForecastEntry.TABLE_NAME + " WHERE " +
+                WeatherEntry.COLUMN_SHORT_DESC + " = 'Updated'", null));
+        mDb.delete(WeatherEntry.TABLE_NAME, WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(firstDay)});
+        assertEquals(2, countCurrentForecast("current-0"));
+
+        // renaming the location moves its days
+        ContentValues rename = new ContentValues();
+        rename.put(LocationEntry.COLUMN_LOCATION_SETTING, "current-1");
+        mDb.update(LocationEntry.TABLE_NAME, rename, null, null);
+        assertEquals(0, countCurrentForecast("current-0"));
+        assertEquals(2, countCurrentForecast("current-1"));
+
+        // and deleting it removes them, as the join would
+        mDb.delete(LocationEntry.TABLE_NAME, null, null);
+        assertEquals(0, countCurrentForecast("current-1"));
+
+        // days stored before their location appear once it is inserted
+        TestUtilities.insertDays(mDb, locationId, firstDay, 3);
+        assertEquals(0, countCurrentForecast("current-2"));
+        ContentValues location = TestUtilities.createNorthPoleLocationValues();
+        location.put(LocationEntry._ID, locationId);
+        location.put(LocationEntry.COLUMN_LOCATION_SETTING, "current-2");
+        mDb.insert(LocationEntry.TABLE_NAME, null, location);
+        assertEquals(3, countCurrentForecast("current-2"));
+    }
+
+    public void testForecastListBenchmark() {
+        long firstDay = WeatherContract.normalizeDate(System.currentTimeMillis());
+        int stored = 0;
+        for (int locations : new int[]{1, 100, 1000}) {
+            mDb.beginTransaction();
+            try {
+                for (; stored < locations; stored++) {
+                    long locationId = TestUtilities.insertLocation(mDb, "current-" + stored);
+                    TestUtilities.insertDays(mDb, locationId, firstDay, DAYS);
+                }
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+
+            // warm up both
+            runQueries(sJoinQueryBuilder, JOIN_SELECTION, locations, firstDay);
+            runQueries(WeatherProvider.sCurrentForecastQueryBuilder,
+                    WeatherProvider.sLocationSettingWithStartDateSelection, locations, firstDay);
+
+            long start = SystemClock.elapsedRealtime();
+            assertEquals(QUERIES * DAYS,
+                    runQueries(sJoinQueryBuilder, JOIN_SELECTION, locations, firstDay));
+            long joinMillis = SystemClock.elapsedRealtime() - start;
+
+            start = SystemClock.elapsedRealtime();
+            assertEquals(QUERIES * DAYS, runQueries(WeatherProvider.sCurrentForecastQueryBuilder,
+                    WeatherProvider.sLocationSettingWithStartDateSelection, locations, firstDay));
+            long currentMillis = SystemClock.elapsedRealtime() - start;
+
+            Log.d(LOG_TAG, locations + " locations, " + QUERIES + " forecast list queries | " +
+                    "join: " + joinMillis + " ms | current_forecast: " + currentMillis + " ms");
+        }
+    }
+
+    // Reads QUERIES forecast lists, cycling through the locations; returns the rows read
+    private int runQueries(SQLiteQueryBuilder builder, String selection, int locations,
+                           long firstDay) {
+        int rows = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            Cursor cursor = builder.query(mDb, null, selection,
+                    new String[]{"current-" + (i % locations), Long.toString(firstDay)},
+                    null, null, WeatherEntry.COLUMN_DATE + " ASC");
+            try {
+                // fills the whole window, like the list adapter ends up doing
+                rows += cursor.getCount();
+            } finally {
+                cursor.close();
+            }
+        }
+        return rows;
+    }
+
+    private long countCurrentForecast(String locationSetting) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT count(*) FROM " +
+                CurrentForecastEntry.TABLE_NAME + " WHERE " +
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?", new String[]{locationSetting});
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Parcel;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Vector;
+
+/*
+    Tests the ForecastBatch write path, and measures what it allocates next to the
+    Vector<ContentValues> + bulkInsert path it replaces.
+ */
+public class TestForecastBatch extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastBatch.class.getSimpleName();
+
+    private static final long DAY = 24L * 3600 * 1000;
+    private static final int BENCHMARK_ROWS = 10000;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    public void testParcelRoundTrip() {
+        ForecastBatch batch = buildBatch(7, 3, 0);
+        Parcel parcel = Parcel.obtain();
+        batch.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        ForecastBatch copy = ForecastBatch.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+
+        assertEquals(batch.size(), copy.size());
+        for (int i = 0; i < batch.size(); i++) {
+            assertEquals(batch.getLocationId(i), copy.getLocationId(i));
+            assertEquals(batch.getDate(i), copy.getDate(i));
+            assertTrue("Error: row " + i + " changed in the parcel", batch.sameWeather(i, copy, i));
+        }
+    }
+
+    public void testUpsertUpdatesInPlace() {
+        long locationId = insertLocation();
+        assertEquals(5, upsert(buildBatch(locationId, 5, 0)));
+        long[] ids = readIds(locationId);
+        assertEquals(5, ids.length);
+
+        // same dates, different weather: every row is updated and keeps its _id
+        ForecastBatch changed = buildBatch(locationId, 5, 10);
+        assertEquals(5, upsert(changed));
+        assertEquals(5, upsert(buildBatch(locationId, 6, 10)));
+        long[] after = readIds(locationId);
+        assertEquals(6, after.length);
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals("Error: upsert replaced row " + i + " instead of updating it", ids[i], after[i]);
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry.COLUMN_MAX_TEMP, WeatherEntry.COLUMN_SHORT_DESC},
+                null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertTrue(cursor.moveToFirst());
+        assertEquals(changed.getHigh(0), cursor.getDouble(0));
+        assertEquals(changed.getDescription(0), cursor.getString(1));
+        cursor.close();
+    }
+
+    /*
+        Builds and writes BENCHMARK_ROWS rows both ways and logs what each allocated on this
+        thread (the provider runs on the calling thread in-process).  Each path writes new
+        dates, so both do the same inserts.  The batch path must allocate less.
+     */
+    @SuppressWarnings("deprecation")
+    public void testAllocationBenchmark() {
+        long locationId = insertLocation();
+
+        // warm up both paths
+        writeContentValues(buildContentValues(locationId, 10, 0));
+        upsert(buildBatch(locationId, 10, 0));
+        deleteWeather();
+
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        int written = writeContentValues(buildContentValues(locationId, BENCHMARK_ROWS, 0));
+        long valuesNanos = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        long valuesBytes = Debug.getThreadAllocSize();
+        long valuesCount = Debug.getThreadAllocCount();
+        assertEquals(BENCHMARK_ROWS, written);
+        deleteWeather();
+
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        start = System.nanoTime();
+        written = upsert(buildBatch(locationId, BENCHMARK_ROWS, 0));
+        long batchNanos = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        long batchBytes = Debug.getThreadAllocSize();
+        long batchCount = Debug.getThreadAllocCount();
+        assertEquals(BENCHMARK_ROWS, written);
+
+        Log.d(LOG_TAG, BENCHMARK_ROWS + " rows | ContentValues: " + valuesBytes + " bytes, " +
+                valuesCount + " allocs, " + valuesNanos / 1000000 + " ms | ForecastBatch: " +
+                batchBytes + " bytes, " + batchCount + " allocs, " + batchNanos / 1000000 + " ms");
+        assertTrue("Error: the batch path allocated more (" + batchBytes + " bytes) than " +
+                "ContentValues (" + valuesBytes + " bytes)", batchBytes < valuesBytes);
+    }
+
+    private static ForecastBatch buildBatch(long locationId, int days, int offset) {
+        ForecastBatch batch = new ForecastBatch(days);
+        for (int day = 0; day < days; day++) {
+            batch.add(locationId, WeatherContract.normalizeDate(TestUtilities.TEST_DATE) + day * DAY,
+                    20 + offset + day % 10, 10 + offset, 80, 1013.2, 3.4, 270, 800 + offset,
+                    offset == 0 ? "Clear" : "Clouds");
+        }
+        return batch;
+    }
+
+    private static Vector<ContentValues> buildContentValues(long locationId, int days, int offset) {
+        Vector<ContentValues> rows = new Vector<ContentValues>(days);
+        for (int day = 0; day < days; day++) {
+            ContentValues values = new ContentValues();
+            values.put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+            values.put(WeatherEntry.COLUMN_DATE,
+                    WeatherContract.normalizeDate(TestUtilities.TEST_DATE) + day * DAY);
+            values.put(WeatherEntry.COLUMN_MAX_TEMP, 20.0 + offset + day % 10);
+            values.put(WeatherEntry.COLUMN_MIN_TEMP, 10.0 + offset);
+            values.put(WeatherEntry.COLUMN_HUMIDITY, 80);
+            values.put(WeatherEntry.COLUMN_PRESSURE, 1013.2);
+            values.put(WeatherEntry.COLUMN_WIND_SPEED, 3.4);
+            values.put(WeatherEntry.COLUMN_DEGREES, 270.0);
+            values.put(WeatherEntry.COLUMN_WEATHER_ID, 800 + offset);
+            values.put(WeatherEntry.COLUMN_SHORT_DESC, offset == 0 ? "Clear" : "Clouds");
+            rows.add(values);
+        }
+        return rows;
+    }
+
+    private int writeContentValues(Vector<ContentValues> rows) {
+        return mContext.getContentResolver().bulkInsert(WeatherEntry.buildWeatherUpsertUri(),
+                rows.toArray(new ContentValues[rows.size()]));
+    }
+
+    private int upsert(ForecastBatch batch) {
+        Bundle extras = new Bundle();
+        extras.putParcelable(WeatherEntry.EXTRA_BATCH, batch);
+        Bundle reply = mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherEntry.METHOD_UPSERT_BATCH, null, extras);
+        return reply.getInt(WeatherEntry.EXTRA_ROW_COUNT);
+    }
+
+    private long[] readIds(long locationId) {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(locationId)}, WeatherEntry.COLUMN_DATE + " ASC");
+        long[] ids = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        return ids;
+    }
+
+    private long insertLocation() {
+        return ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+    }
+
+    private void deleteWeather() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+    }
+
+    private void deleteAll() {
+        deleteWeather();
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
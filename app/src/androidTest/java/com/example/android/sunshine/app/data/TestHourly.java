@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.sync.ForecastIngester;
+import com.example.android.sunshine.app.sync.SyntheticWeatherSource;
+
+/*
+    Tests the hourly table: its row id encoding, the window query, ingestion of the 3-hourly
+    forecast, and how a 5 day window query compares with the daily query it sits next to.
+ */
+public class TestHourly extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestHourly.class.getSimpleName();
+
+    private static final long TEST_TIME = 1419033600L;  // December 20th, 2014, in seconds
+    private static final long SLOT = 3 * 3600;
+    private static final long DAY = 24 * 3600;
+
+    private static final int BENCHMARK_LOCATIONS = 50;
+    private static final int BENCHMARK_DAYS = 14;
+    private static final int BENCHMARK_ITERATIONS = 200;
+    // how much slower than the daily query the hourly window may be before the test fails
+    private static final int SLOWDOWN_MARGIN = 4;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    public void testRowIdOrdersByLocationThenTime() {
+        assertTrue(HourlyEntry.buildRowId(1, TEST_TIME) < HourlyEntry.buildRowId(1, TEST_TIME + SLOT));
+        assertTrue(HourlyEntry.buildRowId(1, HourlyEntry.MAX_TIME) < HourlyEntry.buildRowId(2, 0));
+        assertEquals(TEST_TIME, HourlyEntry.buildRowId(7, TEST_TIME) & HourlyEntry.MAX_TIME);
+        assertEquals(-123, HourlyEntry.toTenths(-12.34));
+        assertEquals(1013.2, HourlyEntry.fromTenths(HourlyEntry.toTenths(1013.24)));
+    }
+
+    public void testWindowQueryReturnsOnlyTheWindow() {
+        long northPole = TestUtilities.insertLocation(mContext, TestUtilities.TEST_LOCATION);
+        long other = TestUtilities.insertLocation(mContext, "10001");
+        TestUtilities.bulkInsertSlots(mContext, northPole, TEST_TIME, 40);
+        TestUtilities.bulkInsertSlots(mContext, other, TEST_TIME, 40);
+
+        Uri window = HourlyEntry.buildHourlyLocationWithWindow(TestUtilities.TEST_LOCATION,
+                TEST_TIME + DAY, TEST_TIME + 2 * DAY);
+        Cursor cursor = mContext.getContentResolver().query(window,
+                new String[]{HourlyEntry.COLUMN_LOC_KEY, HourlyEntry.COLUMN_TIME}, null, null, null);
+        assertEquals("Error: a one day window should hold eight slots", 8, cursor.getCount());
+        long expectedTime = TEST_TIME + DAY;
+        while (cursor.moveToNext()) {
+            assertEquals(northPole, cursor.getLong(0));
+            assertEquals("Error: slots out of order", expectedTime, cursor.getLong(1));
+            expectedTime += SLOT;
+        }
+        cursor.close();
+
+        // writing a slot again replaces it rather than adding a row
+        TestUtilities.bulkInsertSlots(mContext, northPole, TEST_TIME, 40);
+        cursor = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocation(TestUtilities.TEST_LOCATION), null, null, null, null);
+        assertEquals(40, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testIngestHourly() throws Exception {
+        ForecastIngester ingester = new ForecastIngester(mContext, new SyntheticWeatherSource(5, 0));
+        ForecastIngester.Result result = ingester.ingestHourly("syn00001");
+        assertEquals(40, result.rowsWritten);
+
+        long now = System.currentTimeMillis() / 1000;
+        Cursor cursor = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocationWithWindow("syn00001", now - SLOT, now + 5 * DAY),
+                null, null, null, null);
+        assertEquals(40, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        Fills BENCHMARK_LOCATIONS locations with BENCHMARK_DAYS daily rows and eight times as
+        many hourly rows, then times the daily "weather/<location>?date=" query that the
+        forecast list runs against a 5 day hourly window.  The hourly query reads about three
+        times as many rows; the timings are logged for comparison.  Timing on a device is too
+        noisy to compare the two closely, so the test only fails when the window query is
+        several times slower, which is what losing its _ID range (a scan of the table) costs.
+     */
+    public void testHourlyWindowQueryBenchmark() {
+        String[] settings = new String[BENCHMARK_LOCATIONS];
+        ContentValues[] daily = new ContentValues[BENCHMARK_LOCATIONS * BENCHMARK_DAYS];
+        for (int i = 0; i < BENCHMARK_LOCATIONS; i++) {
+            settings[i] = "bench" + i;
+            long locationId = TestUtilities.insertLocation(mContext, settings[i]);
+            for (int day = 0; day < BENCHMARK_DAYS; day++) {
+                ContentValues values = TestUtilities.createWeatherValues(locationId);
+                values.put(WeatherEntry.COLUMN_DATE, (TEST_TIME + day * DAY) * 1000);
+                daily[i * BENCHMARK_DAYS + day] = values;
+            }
+            TestUtilities.bulkInsertSlots(mContext, locationId, TEST_TIME, BENCHMARK_DAYS * 8);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, daily);
+
+        // warm up both paths
+        long dailyNanos = timeQueries(settings, true, 10);
+        long hourlyNanos = timeQueries(settings, false, 10);
+
+        dailyNanos = timeQueries(settings, true, BENCHMARK_ITERATIONS);
+        hourlyNanos = timeQueries(settings, false, BENCHMARK_ITERATIONS);
+        Log.d(LOG_TAG, "daily query: " + dailyNanos / BENCHMARK_ITERATIONS / 1000 + " us, " +
+                "5 day hourly window: " + hourlyNanos / BENCHMARK_ITERATIONS / 1000 + " us");
+        assertTrue("Error: the hourly window query (" + hourlyNanos + " ns) was far slower " +
+                "than the daily query (" + dailyNanos + " ns)",
+                hourlyNanos <= SLOWDOWN_MARGIN * dailyNanos);
+    }
+
+    private long timeQueries(String[] settings, boolean daily, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            String setting = settings[i % settings.length];
+            Uri uri = daily ?
+                    WeatherEntry.buildWeatherLocationWithStartDate(setting, TEST_TIME * 1000) :
+                    HourlyEntry.buildHourlyLocationWithWindow(setting, TEST_TIME, TEST_TIME + 5 * DAY);
+            Cursor cursor = mContext.getContentResolver().query(uri, null, null, null, null);
+            int expected = daily ? BENCHMARK_DAYS : 40;
+            assertEquals(expected, cursor.getCount());
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+            }
+            cursor.close();
+        }
+        return System.nanoTime() - start;
+    }
+}
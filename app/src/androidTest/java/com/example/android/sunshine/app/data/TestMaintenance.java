@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.utils.PollingCheck;
+
+/*
+    Tests the retention pass behind WeatherEntry.METHOD_MAINTAIN: stale days go, each location
+    keeps its budget of the newest rows, locations left without rows are deleted, only the
+    trimmed locations are notified, and the run is recorded with what it reclaimed.
+ */
+public class TestMaintenance extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestMaintenance.class.getSimpleName();
+
+    private static final long DAY = 1000L * 60 * 60 * 24;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    public void testStaleAndOverBudgetRowsAreDeleted() {
+        long firstDay = WeatherContract.normalizeDate(System.currentTimeMillis()) - 10 * DAY;
+        long locationId = TestUtilities.insertLocation(mContext, "maintenance-budget");
+        TestUtilities.bulkInsertDays(mContext, locationId, firstDay, 40);
+        TestUtilities.bulkInsertSlots(mContext, locationId, System.currentTimeMillis() / 1000, 60);
+
+        // 5 days are stale, then 15 more are over the budget of 20
+        Bundle reply = maintain(firstDay + 5 * DAY, 20, 48);
+        assertEquals(15 + 5 + 12, reply.getInt(WeatherEntry.EXTRA_DELETED_COUNT));
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{"count(*)", "min(" + WeatherEntry.COLUMN_DATE + ")"},
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(20, cursor.getInt(0));
+        assertEquals("Error: the newest days should have been kept",
+                firstDay + 20 * DAY, cursor.getLong(1));
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(HourlyEntry.CONTENT_URI,
+                new String[]{"count(*)"}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(48, cursor.getInt(0));
+        cursor.close();
+    }
+
+    public void testEmptyLocationsAreDeleted() {
+        long kept = TestUtilities.insertLocation(mContext, "maintenance-kept");
+        long empty = TestUtilities.insertLocation(mContext, "maintenance-empty");
+        TestUtilities.bulkInsertDays(mContext, kept,
+                WeatherContract.normalizeDate(System.currentTimeMillis()), 3);
+        LocationIdCache.put("maintenance-empty", empty, LocationIdCache.getGeneration());
+
+        maintain(0, WeatherMaintenance.DEFAULT_DAILY_BUDGET,
+                WeatherMaintenance.DEFAULT_HOURLY_BUDGET);
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry._ID}, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(kept, cursor.getLong(0));
+        cursor.close();
+        assertEquals("Error: the deleted location is still cached",
+                -1, LocationIdCache.get("maintenance-empty"));
+    }
+
+    public void testOnlyTrimmedLocationsAreNotified() throws Exception {
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        TestUtilities.bulkInsertDays(mContext,
+                TestUtilities.insertLocation(mContext, "maintenance-trimmed"), today,
+                WeatherMaintenance.DEFAULT_DAILY_BUDGET + 5);
+        TestUtilities.bulkInsertDays(mContext,
+                TestUtilities.insertLocation(mContext, "maintenance-untouched"), today, 3);
+
+        final TestUtilities.CountingObserver trimmed = TestUtilities.CountingObserver.register(
+                mContext, WeatherEntry.buildWeatherLocation("maintenance-trimmed"));
+        TestUtilities.CountingObserver untouched = TestUtilities.CountingObserver.register(
+                mContext, WeatherEntry.buildWeatherLocation("maintenance-untouched"));
+        try {
+            maintain(0, WeatherMaintenance.DEFAULT_DAILY_BUDGET,
+                    WeatherMaintenance.DEFAULT_HOURLY_BUDGET);
+            new PollingCheck(5000) {
+                @Override
+                protected boolean check() {
+                    return trimmed.getCount() > 0;
+                }
+            }.run();
+            // give a stray notification time to arrive
+            Thread.sleep(500);
+            assertEquals("Error: a location the pass didn't touch was notified",
+                    0, untouched.getCount());
+        } finally {
+            trimmed.unregister();
+            untouched.unregister();
+        }
+    }
+
+    /*
+        Trims 50 locations of 400 days each to the default budget and logs what the pass
+        reclaimed and how long it took.  The first pass also switches the database to
+        incremental auto-vacuum, which is a full VACUUM.
+     */
+    public void testRetentionPassBenchmark() {
+        final int locations = 50;
+        final int days = 400;
+        long firstDay = WeatherContract.normalizeDate(System.currentTimeMillis());
+        for (int l = 0; l < locations; l++) {
+            TestUtilities.bulkInsertDays(mContext,
+                    TestUtilities.insertLocation(mContext, "maintenance-" + l), firstDay, days);
+        }
+
+        Bundle reply = maintain(0, WeatherMaintenance.DEFAULT_DAILY_BUDGET,
+                WeatherMaintenance.DEFAULT_HOURLY_BUDGET);
+        int deleted = reply.getInt(WeatherEntry.EXTRA_DELETED_COUNT);
+        long reclaimed = reply.getLong(WeatherEntry.EXTRA_RECLAIMED_BYTES);
+        assertEquals(locations * (days - WeatherMaintenance.DEFAULT_DAILY_BUDGET), deleted);
+        assertTrue("Error: deleting " + deleted + " rows reclaimed nothing", reclaimed > 0);
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        assertEquals("Error: the database wasn't switched to incremental auto-vacuum", 2,
+                DatabaseUtils.longForQuery(dbHelper.getReadableDatabase(),
+                        "PRAGMA auto_vacuum", null));
+        dbHelper.close();
+
+        Cursor cursor = mContext.getContentResolver().query(SyncMetricsEntry.CONTENT_URI,
+                null, null, null, null);
+        assertTrue("Error: the pass wasn't recorded", cursor.moveToFirst());
+        assertEquals(SyncMetricsEntry.KIND_MAINTENANCE,
+                cursor.getInt(cursor.getColumnIndex(SyncMetricsEntry.COLUMN_KIND)));
+        assertEquals(deleted,
+                cursor.getInt(cursor.getColumnIndex(SyncMetricsEntry.COLUMN_ROWS_DELETED)));
+        assertEquals(reclaimed,
+                cursor.getLong(cursor.getColumnIndex(SyncMetricsEntry.COLUMN_BYTES)));
+        cursor.close();
+
+        Log.d(LOG_TAG, "Retention pass over " + locations * days + " rows | deleted " +
+                deleted + " | reclaimed " + reclaimed + " bytes | " +
+                reply.getLong(WeatherEntry.EXTRA_DURATION) + " ms");
+    }
+
+    private Bundle maintain(long staleBefore, int dailyBudget, int hourlyBudget) {
+        Bundle extras = new Bundle();
+        extras.putLong(WeatherEntry.EXTRA_STALE_BEFORE, staleBefore);
+        extras.putInt(WeatherEntry.EXTRA_DAILY_BUDGET, dailyBudget);
+        extras.putInt(WeatherEntry.EXTRA_HOURLY_BUDGET, hourlyBudget);
+        return mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherEntry.METHOD_MAINTAIN, null, extras);
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/*
+    Migration harness: for every schema version WeatherDbHelper can upgrade from, creates a
+    database with that version's schema, fills it with synthetic data, upgrades it by opening
+    it with WeatherDbHelper and times that.  The result must keep every row and end up with
+    exactly the schema of a freshly created database.
+
+    The old schemas below are frozen copies of what each version created.  Don't change
+    them; a new version adds its own entry.
+ */
+public class TestMigrations extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestMigrations.class.getSimpleName();
+
+    private static final String MIGRATED_DATABASE = "migration_test.db";
+    private static final String FRESH_DATABASE = "migration_fresh.db";
+
+    private static final int LOCATIONS = 20;
+    private static final int DAYS = 365;
+    private static final int HOURLY_SLOTS = 40;
+    private static final int METRICS_RUNS = 10;
+
+    private static final String LOCATION_V2 = "CREATE TABLE location (" +
+            "_id INTEGER PRIMARY KEY,city_name TEXT NOT NULL, latitude_coordinate REAL NOT NULL, " +
+            "longitude_coordinate REAL NOT NULL, location_setting TEXT UNIQUE NOT NULL);";
+
+    private static final String LOCATION_V3 = "CREATE TABLE location (" +
+            "_id INTEGER PRIMARY KEY,city_name TEXT NOT NULL, latitude_coordinate REAL NOT NULL, " +
+            "longitude_coordinate REAL NOT NULL, location_setting TEXT UNIQUE NOT NULL, etag TEXT, " +
+            "last_modified TEXT);";
+
+    private static final String WEATHER_V2 = "CREATE TABLE weather (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT,location_id INTEGER NOT NULL, " +
+            "date INTEGER NOT NULL, short_desc TEXT NOT NULL, weather_id INTEGER NOT NULL," +
+            "min REAL NOT NULL, max REAL NOT NULL, humidity REAL NOT NULL, " +
+            "pressure REAL NOT NULL, wind REAL NOT NULL, degrees REAL NOT NULL, " +
+            " FOREIGN KEY (location_id) REFERENCES location (_id),  " +
+            "UNIQUE (date, location_id) ON CONFLICT REPLACE);";
+
+    private static final String HOURLY_V4 = "CREATE TABLE hourly (" +
+            "_id INTEGER PRIMARY KEY ON CONFLICT REPLACE,location_id INTEGER NOT NULL, " +
+            "time INTEGER NOT NULL, weather_id INTEGER NOT NULL, temp INTEGER NOT NULL, " +
+            "humidity INTEGER NOT NULL, pressure INTEGER NOT NULL, wind INTEGER NOT NULL, " +
+            "degrees INTEGER NOT NULL,  FOREIGN KEY (location_id) REFERENCES location (_id));";
+
+    private static final String SYNC_METRICS_V5 = "CREATE TABLE sync_metrics (" +
+            "_id INTEGER PRIMARY KEY ON CONFLICT REPLACE,run INTEGER NOT NULL, " +
+            "kind INTEGER NOT NULL, start_time INTEGER NOT NULL, duration_ms INTEGER NOT NULL, " +
+            "locations INTEGER NOT NULL, not_modified INTEGER NOT NULL, " +
+            "connect_ms INTEGER NOT NULL, first_byte_ms INTEGER NOT NULL, " +
+            "bytes INTEGER NOT NULL, parse_ms INTEGER NOT NULL, " +
+            "rows_inserted INTEGER NOT NULL, rows_replaced INTEGER NOT NULL, " +
+            "rows_deleted INTEGER NOT NULL, notify_count INTEGER NOT NULL);";
+
+    private static final String WEATHER_LOCATION_DATE_INDEX_V6 =
+            "CREATE INDEX IF NOT EXISTS weather_location_date ON weather (location_id, date);";
+
+    // index: version - WeatherDbHelper.OLDEST_MIGRATED_VERSION
+    private static final String[][] SCHEMAS = {
+            {LOCATION_V2, WEATHER_V2},
+            {LOCATION_V3, WEATHER_V2},
+            {LOCATION_V3, WEATHER_V2, HOURLY_V4},
+            {LOCATION_V3, WEATHER_V2, HOURLY_V4, SYNC_METRICS_V5},
+            {LOCATION_V3, WEATHER_V2, HOURLY_V4, SYNC_METRICS_V5, WEATHER_LOCATION_DATE_INDEX_V6},
+    };
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(MIGRATED_DATABASE);
+        mContext.deleteDatabase(FRESH_DATABASE);
+        super.tearDown();
+    }
+
+    public void testEveryVersionHasASchema() {
+        assertEquals("Error: add the schema of the version you're replacing to SCHEMAS",
+                WeatherDbHelper.DATABASE_VERSION - WeatherDbHelper.OLDEST_MIGRATED_VERSION,
+                SCHEMAS.length);
+    }
+
+    public void testUpgradeFromEveryVersion() {
+        String expectedSchema = describeFreshSchema();
+        for (int i = 0; i < SCHEMAS.length; i++) {
+            int version = WeatherDbHelper.OLDEST_MIGRATED_VERSION + i;
+            mContext.deleteDatabase(MIGRATED_DATABASE);
+            createOldDatabase(version, SCHEMAS[i]);
+
+            long start = SystemClock.elapsedRealtime();
+            WeatherDbHelper helper = new WeatherDbHelper(mContext, MIGRATED_DATABASE);
+            SQLiteDatabase db = helper.getWritableDatabase();
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            Log.d(LOG_TAG, "Upgrade from version " + version + " to " +
+                    WeatherDbHelper.DATABASE_VERSION + ": " + elapsed + " ms");
+            try {
+                assertEquals(WeatherDbHelper.DATABASE_VERSION, db.getVersion());
+                assertEquals("Error: the upgrade from version " + version + " changed the schema " +
+                        "differently from onCreate", expectedSchema, describeSchema(db));
+                assertEquals("Error: the upgrade from version " + version + " lost locations",
+                        LOCATIONS, count(db, "location"));
+                assertEquals("Error: the upgrade from version " + version + " lost weather",
+                        LOCATIONS * DAYS, count(db, "weather"));
+                assertEquals("Error: the upgrade from version " + version + " didn't fill " +
+                        "current_forecast", LOCATIONS * DAYS, count(db, "current_forecast"));
+                if (version >= 4) {
+                    assertEquals(LOCATIONS * HOURLY_SLOTS, count(db, "hourly"));
+                }
+                if (version >= 5) {
+                    assertEquals(METRICS_RUNS, count(db, "sync_metrics"));
+                }
+            } finally {
+                helper.close();
+            }
+        }
+    }
+
+    private void createOldDatabase(int version, String[] schema) {
+        SQLiteDatabase db = mContext.openOrCreateDatabase(MIGRATED_DATABASE, Context.MODE_PRIVATE, null);
+        try {
+            db.beginTransaction();
+            try {
+                for (String sql : schema) {
+                    db.execSQL(sql);
+                }
+                fill(db, version);
+                db.setVersion(version);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    // Synthetic data, written with plain SQL so it fits the old schema
+    private static void fill(SQLiteDatabase db, int version) {
+        long firstDay = WeatherContract.normalizeDate(TestUtilities.TEST_DATE);
+        for (int l = 1; l <= LOCATIONS; l++) {
+            db.execSQL("INSERT INTO location (_id, city_name, latitude_coordinate, longitude_coordinate, " +
+                    "location_setting) VALUES (?, ?, ?, ?, ?)",
+                    new Object[]{l, "City " + l, 40.0 + l, -120.0 + l, "location-" + l});
+            for (int d = 0; d < DAYS; d++) {
+                db.execSQL("INSERT INTO weather (location_id, date, short_desc, weather_id, " +
+                        "min, max, humidity, pressure, wind, degrees) " +
+                        "VALUES (?, ?, 'Clear', 800, ?, ?, 80, 1013.2, 3.4, 270)",
+                        new Object[]{l, firstDay + d * 86400000L, 10 + d % 7, 20 + d % 9});
+            }
+            if (version >= 4) {
+                for (int h = 0; h < HOURLY_SLOTS; h++) {
+                    long time = 1419033600L + h * 3 * 3600;
+                    db.execSQL("INSERT INTO hourly VALUES (?, ?, ?, 800, 150, 80, 10132, 34, 270)",
+                            new Object[]{((long) l << 32) | time, l, time});
+                }
+            }
+        }
+        if (version >= 5) {
+            for (int run = 1; run <= METRICS_RUNS; run++) {
+                db.execSQL("INSERT INTO sync_metrics VALUES " +
+                        "(?, ?, 0, 0, 100, 1, 0, 10, 20, 1000, 5, 14, 0, 0, 14)",
+                        new Object[]{run, run});
+            }
+        }
+    }
+
+    private String describeFreshSchema() {
+        mContext.deleteDatabase(FRESH_DATABASE);
+        WeatherDbHelper helper = new WeatherDbHelper(mContext, FRESH_DATABASE);
+        try {
+            return describeSchema(helper.getReadableDatabase());
+        } finally {
+            helper.close();
+        }
+    }
+
+    /*
+        The columns of every table (name, type, NOT NULL, default, primary key) and the
+        indexes on each, in a canonical order.
+     */
+    private static String describeSchema(SQLiteDatabase db) {
+        TreeMap<String, String> objects = new TreeMap<String, String>();
+        Cursor master = db.rawQuery("SELECT type, name, tbl_name FROM sqlite_master " +
+                "WHERE name NOT LIKE 'sqlite_%' AND name != 'android_metadata'", null);
+        List<String> tables = new ArrayList<String>();
+        try {
+            while (master.moveToNext()) {
+                String type = master.getString(0);
+                if ("table".equals(type)) {
+                    tables.add(master.getString(1));
+                } else {
+                    objects.put(type + " " + master.getString(1), "on " + master.getString(2));
+                }
+            }
+        } finally {
+            master.close();
+        }
+        for (String table : tables) {
+            StringBuilder columns = new StringBuilder();
+            Cursor info = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+            try {
+                while (info.moveToNext()) {
+                    columns.append(info.getString(info.getColumnIndex("name"))).append(' ')
+                            .append(info.getString(info.getColumnIndex("type"))).append(' ')
+                            .append(info.getInt(info.getColumnIndex("notnull"))).append(' ')
+                            .append(info.getString(info.getColumnIndex("dflt_value"))).append(' ')
+                            .append(info.getInt(info.getColumnIndex("pk"))).append(", ");
+                }
+            } finally {
+                info.close();
+            }
+            objects.put("table " + table, columns.toString());
+        }
+        return objects.toString();
+    }
+
+    private static long count(SQLiteDatabase db, String table) {
+        return DatabaseUtils.queryNumEntries(db, table);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.TestUtilities.CountingObserver;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.sync.ForecastIngester;
+import com.example.android.sunshine.app.sync.SyntheticWeatherSource;
+import com.example.android.sunshine.app.utils.PollingCheck;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Counts the change notifications observers of one location's list, of one day's detail
+    view and of another location receive, to check that a write only reaches the observers of
+    the locations and days it touched, once per location.
+ */
+public class TestNotifications extends AndroidTestCase {
+
+    private static final int DAYS = 14;
+    private static final String OTHER_LOCATION = "notifications-other";
+
+    private final List<CountingObserver> mObservers = new ArrayList<CountingObserver>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (CountingObserver observer : mObservers) {
+            observer.unregister();
+        }
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    public void testMultiLocationSync() throws Exception {
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        TestUtilities.bulkInsertDays(mContext,
+                TestUtilities.insertLocation(mContext, OTHER_LOCATION), today, 3);
+        List<String> settings = SyntheticWeatherSource.buildLocationSettings(3);
+
+        CountingObserver anyWeather = register(WeatherEntry.CONTENT_URI);
+        CountingObserver list = register(WeatherEntry.buildWeatherLocation(settings.get(0)));
+        CountingObserver detail = register(
+                WeatherEntry.buildWeatherLocationWithDate(settings.get(1), today));
+        CountingObserver other = register(WeatherEntry.buildWeatherLocation(OTHER_LOCATION));
+
+        SyntheticWeatherSource source = new SyntheticWeatherSource(DAYS, 0);
+        ForecastIngester ingester = new ForecastIngester(mContext, source);
+        sync(ingester, settings);
+        awaitCount(anyWeather, settings.size());
+
+        assertEquals("Error: a sync should notify once per location", settings.size(),
+                anyWeather.getCount());
+        assertEquals(1, list.getCount());
+        assertEquals(1, detail.getCount());
+        assertEquals("Error: a location that wasn't synced was notified", 0, other.getCount());
+
+        // new values for the first location only
+        source.setGeneration(1);
+        sync(ingester, settings.subList(0, 1));
+        awaitCount(anyWeather, settings.size() + 1);
+
+        assertEquals(settings.size() + 1, anyWeather.getCount());
+        assertEquals(2, list.getCount());
+        assertEquals("Error: a sync of another location reloaded the detail view",
+                1, detail.getCount());
+        assertEquals(0, other.getCount());
+    }
+
+    public void testBulkInsertAndDeleteNotifyTheirLocation() throws Exception {
+        long locationId = TestUtilities.insertLocation(mContext, TestUtilities.TEST_LOCATION);
+        TestUtilities.insertLocation(mContext, OTHER_LOCATION);
+
+        CountingObserver list = register(WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION));
+        CountingObserver other = register(WeatherEntry.buildWeatherLocation(OTHER_LOCATION));
+
+        TestUtilities.bulkInsertDays(mContext, locationId,
+                WeatherContract.normalizeDate(System.currentTimeMillis()), DAYS);
+        awaitCount(list, 1);
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_LOC_KEY + " = ?", new String[]{Long.toString(locationId)});
+        awaitCount(list, 2);
+
+        assertEquals("Error: each write should notify the location once", 2, list.getCount());
+        assertEquals("Error: writes to one location notified another", 0, other.getCount());
+    }
+
+    private void sync(ForecastIngester ingester, List<String> settings) throws Exception {
+        List<ForecastIngester.Forecast> forecasts = new ArrayList<ForecastIngester.Forecast>();
+        for (String setting : settings) {
+            forecasts.add(ingester.fetch(setting));
+        }
+        ingester.write(forecasts);
+    }
+
+    // Waits for count notifications, then a little longer for any extra ones to arrive
+    private static void awaitCount(final CountingObserver observer, final int count)
+            throws InterruptedException {
+        new PollingCheck(5000) {
+            @Override
+            protected boolean check() {
+                return observer.getCount() >= count;
+            }
+        }.run();
+        Thread.sleep(500);
+    }
+
+    private CountingObserver register(Uri uri) {
+        CountingObserver observer = CountingObserver.register(mContext, uri);
+        mObservers.add(observer);
+        return observer;
+    }
+}
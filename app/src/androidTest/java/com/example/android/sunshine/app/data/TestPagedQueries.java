@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Walks weather history page by page through the provider's keyset paging (PARAM_LIMIT,
+    PARAM_AFTER_DATE, PARAM_AFTER_ID), checking that every row comes back exactly once and
+    in (date, _id) order, and times a year of history for BENCHMARK_LOCATIONS locations read
+    with and without paging.
+ */
+public class TestPagedQueries extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestPagedQueries.class.getSimpleName();
+
+    private static final long DAY = 24L * 3600 * 1000;
+    private static final long FIRST_DAY = WeatherContract.normalizeDate(1419033600000L);
+    private static final String[] PAGE_PROJECTION = {WeatherEntry.COLUMN_DATE, WeatherEntry._ID};
+
+    private static final int BENCHMARK_LOCATIONS = 500;
+    private static final int BENCHMARK_DAYS = 365;
+    private static final int BENCHMARK_PAGE_SIZE = 100;
+
+    private ContentResolver mResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = mContext.getContentResolver();
+        TestUtilities.deleteAllRecords(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    public void testLocationPagesCoverHistoryOnce() {
+        TestUtilities.bulkInsertDays(mContext,
+                TestUtilities.insertLocation(mContext, "paged-0"), FIRST_DAY, 100);
+        TestUtilities.bulkInsertDays(mContext,
+                TestUtilities.insertLocation(mContext, "paged-1"), FIRST_DAY, 100);
+
+        long[] scan = scan(WeatherEntry.buildWeatherLocationPage("paged-0", 0, 7));
+        assertEquals("Error: the pages didn't return the location's days once each", 100, scan[0]);
+        assertEquals(15, scan[1]);
+
+        // from a start date on
+        scan = scan(WeatherEntry.buildWeatherLocationPage("paged-0", FIRST_DAY + 90 * DAY, 7));
+        assertEquals(10, scan[0]);
+    }
+
+    public void testPagesAcrossLocationsBreakTiesById() {
+        // every date is stored for three locations, so pages end in the middle of a date
+        TestUtilities.bulkInsertDays(mContext,
+                TestUtilities.insertLocation(mContext, "paged-0"), FIRST_DAY, 50);
+        TestUtilities.bulkInsertDays(mContext,
+                TestUtilities.insertLocation(mContext, "paged-1"), FIRST_DAY, 50);
+        TestUtilities.bulkInsertDays(mContext,
+                TestUtilities.insertLocation(mContext, "paged-2"), FIRST_DAY, 50);
+
+        long[] scan = scan(WeatherEntry.buildWeatherPage(10));
+        assertEquals("Error: rows sharing a date were skipped or repeated", 150, scan[0]);
+        assertEquals(16, scan[1]);
+    }
+
+    public void testPagedQueryRejectsSortOrder() {
+        try {
+            mResolver.query(WeatherEntry.buildWeatherLocationPage("paged-0", 0, 7), null, null,
+                    null, WeatherEntry.COLUMN_DATE + " DESC");
+            fail("Error: a paged query accepted a sort order");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testPagedQueryRejectsInvalidLimit() {
+        for (String limit : new String[]{"0", "-1", "abc", ""}) {
+            Uri uri = WeatherEntry.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(WeatherEntry.PARAM_LIMIT, limit).build();
+            try {
+                mResolver.query(uri, null, null, null, null);
+                fail("Error: a paged query accepted the limit \"" + limit + "\"");
+            } catch (IllegalArgumentException e) {
+                assertEquals("Invalid page size: " + limit, e.getMessage());
+            }
+        }
+        assertEquals(0, WeatherEntry.getPageSizeFromUri(WeatherEntry.CONTENT_URI));
+    }
+
+    public void testNextPageKeepsTheQuery() {
+        Uri page = WeatherEntry.buildWeatherLocationPage("/North Pole", FIRST_DAY, 25);
+        Uri next = WeatherEntry.buildNextPage(WeatherEntry.buildNextPage(page, 1, 2), 3, 4);
+        assertEquals("/North Pole", WeatherEntry.getLocationSettingFromUri(next));
+        assertEquals(FIRST_DAY, WeatherEntry.getStartDateFromUri(next));
+        assertEquals(25, WeatherEntry.getPageSizeFromUri(next));
+        assertEquals(3, WeatherEntry.getAfterDateFromUri(next));
+        assertEquals(4, WeatherEntry.getAfterIdFromUri(next));
+        assertEquals(Long.MIN_VALUE, WeatherEntry.getAfterDateFromUri(page));
+    }
+
+    /*
+        A year of history for BENCHMARK_LOCATIONS locations, read once per location and once
+        as a whole, as a single query and as BENCHMARK_PAGE_SIZE row pages.  The single
+        query makes its cursor hold (and refill windows for) every row; a page cursor never
+        holds more than BENCHMARK_PAGE_SIZE.
+     */
+    public void testYearScanBenchmark() {
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < BENCHMARK_LOCATIONS; i++) {
+            long locationId = TestUtilities.insertLocation(mContext, "paged-" + i);
+            TestUtilities.bulkInsertDays(mContext, locationId, FIRST_DAY, BENCHMARK_DAYS);
+        }
+        Log.d(LOG_TAG, "Inserted " + BENCHMARK_LOCATIONS * BENCHMARK_DAYS + " days in " +
+                (SystemClock.elapsedRealtime() - start) + " ms");
+
+        // per location, like a history screen
+        start = SystemClock.elapsedRealtime();
+        long unpagedRows = 0;
+        long unpagedLargest = 0;
+        for (int i = 0; i < BENCHMARK_LOCATIONS; i++) {
+            long read = readAll(WeatherEntry.buildWeatherLocation("paged-" + i),
+                    WeatherEntry.COLUMN_DATE + " ASC");
+            unpagedRows += read;
+            unpagedLargest = Math.max(unpagedLargest, read);
+        }
+        long unpagedMillis = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        long pagedRows = 0;
+        long pages = 0;
+        for (int i = 0; i < BENCHMARK_LOCATIONS; i++) {
+            long[] scan = scan(WeatherEntry.buildWeatherLocationPage("paged-" + i, 0,
+                    BENCHMARK_PAGE_SIZE));
+            pagedRows += scan[0];
+            pages += scan[1];
+        }
+        long pagedMillis = SystemClock.elapsedRealtime() - start;
+        Log.d(LOG_TAG, "Per location: unpaged " + unpagedMillis + " ms, up to " +
+                unpagedLargest + " rows per cursor | paged " + pagedMillis + " ms, " + pages +
+                " pages of up to " + BENCHMARK_PAGE_SIZE + " rows");
+        assertEquals(BENCHMARK_LOCATIONS * BENCHMARK_DAYS, unpagedRows);
+        assertEquals(unpagedRows, pagedRows);
+
+        // every location at once, like an export
+        start = SystemClock.elapsedRealtime();
+        long read = readAll(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_DATE + " ASC, " + WeatherEntry._ID + " ASC");
+        unpagedMillis = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        long[] scan = scan(WeatherEntry.buildWeatherPage(BENCHMARK_PAGE_SIZE));
+        pagedMillis = SystemClock.elapsedRealtime() - start;
+        Log.d(LOG_TAG, "All locations: unpaged " + unpagedMillis + " ms, " + read +
+                " rows in one cursor | paged " + pagedMillis + " ms, " + scan[1] + " pages");
+        assertEquals(BENCHMARK_LOCATIONS * BENCHMARK_DAYS, read);
+        assertEquals(read, scan[0]);
+    }
+
+    /*
+        Reads every page from the first one, checking the rows come in strictly increasing
+        (date, _id) order.
+        @return the rows read and the number of pages
+     */
+    private long[] scan(Uri page) {
+        int pageSize = WeatherEntry.getPageSizeFromUri(page);
+        long rows = 0;
+        long pages = 0;
+        long lastDate = Long.MIN_VALUE;
+        long lastId = Long.MIN_VALUE;
+        while (true) {
+            Cursor cursor = mResolver.query(page, PAGE_PROJECTION, null, null, null);
+            try {
+                pages++;
+                assertTrue("Error: a page was longer than asked for", cursor.getCount() <= pageSize);
+                while (cursor.moveToNext()) {
+                    long date = cursor.getLong(0);
+                    long id = cursor.getLong(1);
+                    assertTrue("Error: row (" + date + ", " + id + ") came after (" +
+                                    lastDate + ", " + lastId + ")",
+                            date > lastDate || (date == lastDate && id > lastId));
+                    lastDate = date;
+                    lastId = id;
+                    rows++;
+                }
+                if (cursor.getCount() < pageSize) {
+                    return new long[]{rows, pages};
+                }
+            } finally {
+                cursor.close();
+            }
+            page = WeatherEntry.buildNextPage(page, lastDate, lastId);
+        }
+    }
+
+    // @return the rows read
+    private long readAll(Uri uri, String sortOrder) {
+        Cursor cursor = mResolver.query(uri, PAGE_PROJECTION, null, null, sortOrder);
+        try {
+            long rows = 0;
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+                rows++;
+            }
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+}
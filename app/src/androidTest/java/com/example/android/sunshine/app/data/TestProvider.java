@@ -16,20 +16,26 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.ArrayList;
+
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
     that at least the basic functionality has been implemented correctly.
@@ -56,6 +62,11 @@ public class TestProvider extends AndroidTestCase {
                 null,
                 null
         );
+        mContext.getContentResolver().delete(
+                WeatherContract.HourlyEntry.CONTENT_URI,
+                null,
+                null
+        );
         mContext.getContentResolver().delete(
                 LocationEntry.CONTENT_URI,
                 null,
@@ -529,4 +540,221 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    /*
+        The upsert flavour of bulkInsert must update rows in place (keeping their _id) and only
+        notify observers of the dates it actually wrote.
+     */
+    public void testUpsertBulkInsert() throws InterruptedException {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        ContentValues[] bulkInsertContentValues = createBulkInsertWeatherValues(locationRowId);
+        int insertCount = mContext.getContentResolver().bulkInsert(
+                WeatherEntry.buildWeatherUpsertUri(), bulkInsertContentValues);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, insertCount);
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        long[] idsBefore = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            idsBefore[i] = cursor.getLong(0);
+        }
+        cursor.close();
+
+        long changedDate = bulkInsertContentValues[3].getAsLong(WeatherEntry.COLUMN_DATE);
+        long untouchedDate = bulkInsertContentValues[5].getAsLong(WeatherEntry.COLUMN_DATE);
+
+        TestUtilities.TestContentObserver changedObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION, changedDate),
+                true, changedObserver);
+        TestUtilities.TestContentObserver untouchedObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION, untouchedDate),
+                true, untouchedObserver);
+
+        ContentValues changed = new ContentValues(bulkInsertContentValues[3]);
+        changed.put(WeatherEntry.COLUMN_MAX_TEMP, 99);
+        assertEquals(1, mContext.getContentResolver().bulkInsert(
+                WeatherEntry.buildWeatherUpsertUri(), new ContentValues[]{changed}));
+
+        changedObserver.waitForNotificationOrFail();
+        // give a wrongly broadcast notification time to arrive before checking for it
+        Thread.sleep(500);
+        assertFalse("Error: upsert notified a date it didn't write", untouchedObserver.mContentChanged);
+        mContext.getContentResolver().unregisterContentObserver(changedObserver);
+        mContext.getContentResolver().unregisterContentObserver(untouchedObserver);
+        untouchedObserver.mHT.quit();
+
+        cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID, WeatherEntry.COLUMN_MAX_TEMP}, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        for (int i = 0; cursor.moveToNext(); i++) {
+            assertEquals("Error: upsert replaced row " + i + " instead of updating it",
+                    idsBefore[i], cursor.getLong(0));
+            if (i == 3) {
+                assertEquals(99.0, cursor.getDouble(1));
+            }
+        }
+        cursor.close();
+    }
+
+    /*
+        applyBatch runs in one transaction: when an operation fails, the ones before it are
+        rolled back too.
+     */
+    public void testApplyBatchIsAtomic() throws Exception {
+        ArrayList<ContentProviderOperation> operations = createLocationAndWeatherOperations();
+        // fails: there is no such row
+        operations.add(ContentProviderOperation.newAssertQuery(LocationEntry.CONTENT_URI)
+                .withSelection(LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                        new String[]{"nowhere"})
+                .withExpectedCount(1)
+                .build());
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+            fail("Error: the failing assert didn't fail the batch");
+        } catch (OperationApplicationException e) {
+            // expected
+        }
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals("Error: a failed batch left its first insert behind", 0, cursor.getCount());
+        cursor.close();
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true,
+                weatherObserver);
+        ContentProviderResult[] results = mContext.getContentResolver().applyBatch(
+                WeatherContract.CONTENT_AUTHORITY, createLocationAndWeatherOperations());
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+
+        assertEquals(2, results.length);
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+    }
+
+    // A location, and a day of weather for it that refers to it by back reference
+    private static ArrayList<ContentProviderOperation> createLocationAndWeatherOperations() {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        ContentValues weatherValues = TestUtilities.createWeatherValues(0);
+        weatherValues.remove(WeatherEntry.COLUMN_LOC_KEY);
+        operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                .withValues(weatherValues)
+                .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                .withYieldAllowed(true)
+                .build());
+        return operations;
+    }
+
+    /*
+        METHOD_INGEST creates the location, writes only the days whose values changed, prunes
+        the old days and stores the validators, in one call.
+     */
+    public void testIngestCall() {
+        long firstDay = WeatherContract.normalizeDate(TestUtilities.TEST_DATE);
+        long day = 1000L * 60 * 60 * 24;
+
+        Bundle reply = ingest(createIngestBatch(firstDay, 75), firstDay, "\"v1\"");
+        long locationId = reply.getLongArray(WeatherEntry.EXTRA_LOCATION_IDS)[0];
+        assertTrue(locationId > 0);
+        assertEquals(3, reply.getInt(WeatherEntry.EXTRA_ROW_COUNT));
+        assertEquals(3, reply.getInt(WeatherEntry.EXTRA_INSERTED_COUNT));
+
+        // the same days again, one of them changed, plus a day that has gone stale
+        ContentValues stale = TestUtilities.createWeatherValues(locationId);
+        stale.put(WeatherEntry.COLUMN_DATE, firstDay - day);
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, stale);
+        reply = ingest(createIngestBatch(firstDay, 99), firstDay, "\"v2\"");
+        assertEquals(locationId, reply.getLongArray(WeatherEntry.EXTRA_LOCATION_IDS)[0]);
+        assertEquals("Error: unchanged days were written again",
+                1, reply.getInt(WeatherEntry.EXTRA_ROW_COUNT));
+        assertEquals(0, reply.getInt(WeatherEntry.EXTRA_INSERTED_COUNT));
+        assertEquals(1, reply.getInt(WeatherEntry.EXTRA_DELETED_COUNT));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                new String[]{WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP},
+                null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(3, cursor.getCount());
+        assertTrue(cursor.moveToPosition(1));
+        assertEquals(firstDay + day, cursor.getLong(0));
+        assertEquals(99.0, cursor.getDouble(1));
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry.COLUMN_ETAG}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("\"v2\"", cursor.getString(0));
+        cursor.close();
+    }
+
+    /*
+        A cached location id rides along with METHOD_INGEST, but the provider only trusts it
+        while the cache generation it was read in is current.
+     */
+    public void testIngestCallIgnoresStaleCachedIds() {
+        long firstDay = WeatherContract.normalizeDate(TestUtilities.TEST_DATE);
+        int generation = LocationIdCache.getGeneration();
+        Bundle reply = ingest(createIngestBatch(firstDay, 75), firstDay, "\"v1\"");
+        long locationId = reply.getLongArray(WeatherEntry.EXTRA_LOCATION_IDS)[0];
+
+        // deleting locations invalidates the cache, so an id read before means nothing
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        assertTrue(LocationIdCache.getGeneration() != generation);
+        reply = ingest(createIngestBatch(firstDay, 75), firstDay, "\"v1\"",
+                locationId + 1000, generation);
+        long resolvedId = reply.getLongArray(WeatherEntry.EXTRA_LOCATION_IDS)[0];
+        assertTrue("Error: the provider used a cached id from an old generation",
+                resolvedId != locationId + 1000);
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry._ID}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(resolvedId, cursor.getLong(0));
+        cursor.close();
+    }
+
+    // Three days from firstDay, all with a high of 75 but the second one
+    private static ForecastBatch createIngestBatch(long firstDay, double secondDayHigh) {
+        ForecastBatch batch = new ForecastBatch(3);
+        for (int i = 0; i < 3; i++) {
+            batch.add(-1, firstDay + i * 1000L * 60 * 60 * 24, i == 1 ? secondDayHigh : 75,
+                    65, 1.2, 1.3, 5.5, 1.1, 321, "Asteroids");
+        }
+        return batch;
+    }
+
+    private Bundle ingest(ForecastBatch batch, long staleBefore, String etag) {
+        return ingest(batch, staleBefore, etag, -1, LocationIdCache.getGeneration());
+    }
+
+    private Bundle ingest(ForecastBatch batch, long staleBefore, String etag, long cachedId,
+                          int generation) {
+        Bundle payload = new Bundle();
+        payload.putStringArray(WeatherEntry.EXTRA_LOCATION_SETTINGS,
+                new String[]{TestUtilities.TEST_LOCATION});
+        payload.putStringArray(WeatherEntry.EXTRA_CITY_NAMES, new String[]{"North Pole"});
+        payload.putDoubleArray(WeatherEntry.EXTRA_COORD_LATS, new double[]{64.7488});
+        payload.putDoubleArray(WeatherEntry.EXTRA_COORD_LONGS, new double[]{-147.353});
+        payload.putStringArray(WeatherEntry.EXTRA_ETAGS, new String[]{etag});
+        payload.putStringArray(WeatherEntry.EXTRA_LAST_MODIFIEDS, new String[]{null});
+        payload.putIntArray(WeatherEntry.EXTRA_ROW_COUNTS, new int[]{batch.size()});
+        payload.putParcelable(WeatherEntry.EXTRA_BATCH, batch);
+        payload.putLong(WeatherEntry.EXTRA_STALE_BEFORE, staleBefore);
+        payload.putLongArray(WeatherEntry.EXTRA_CACHED_LOCATION_IDS, new long[]{cachedId});
+        payload.putInt(WeatherEntry.EXTRA_LOCATION_ID_GENERATION, generation);
+        return mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherEntry.METHOD_INGEST, null, payload);
+    }
 }
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Runs EXPLAIN QUERY PLAN on the statements behind each provider route and fails if SQLite
+    would read a whole table (or a whole index) to answer one.  With history for many
+    locations in the weather table, a full scan per query is what makes the list slow.
+ */
+public class TestQueryPlans extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestQueryPlans.class.getSimpleName();
+
+    private static final String SORT_BY_DATE = WeatherEntry.COLUMN_DATE + " ASC";
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // Not deleted first: the provider keeps its connection to this file open
+        mDb = new WeatherDbHelper(mContext).getWritableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    // "weather/*", as the forecast list asks for it
+    public void testWeatherWithLocation() {
+        String sql = WeatherProvider.sCurrentForecastQueryBuilder.buildQuery(null,
+                WeatherProvider.sLocationSettingSelection, null, null, SORT_BY_DATE, null);
+        List<String> plan = assertNoScan(sql, "94043");
+        assertNoSort(plan);
+    }
+
+    // "weather/*?date=", the forecast list from today on
+    public void testWeatherWithLocationAndStartDate() {
+        String sql = WeatherProvider.sCurrentForecastQueryBuilder.buildQuery(null,
+                WeatherProvider.sLocationSettingWithStartDateSelection, null, null,
+                SORT_BY_DATE, null);
+        List<String> plan = assertNoScan(sql, "94043", "1419033600000");
+        assertNoSort(plan);
+    }
+
+    // "weather/*/#", the detail view
+    public void testWeatherWithLocationAndDate() {
+        String sql = WeatherProvider.sCurrentForecastQueryBuilder.buildQuery(null,
+                WeatherProvider.sLocationSettingAndDaySelection, null, null, null, null);
+        assertNoScan(sql, "94043", "1419033600000");
+    }
+
+    // "weather/*?limit=&after_date=&after_id=", a page of a location's history
+    public void testWeatherWithLocationPage() {
+        String sql = WeatherProvider.sCurrentForecastQueryBuilder.buildQuery(null,
+                "(" + WeatherProvider.sLocationSettingSelection + ") AND " +
+                        WeatherProvider.sAfterRowSelection, null, null,
+                WeatherProvider.sLocationPageOrder, "50");
+        List<String> plan = assertNoScan(sql, "94043", "1419033600000", "1419033600000", "7");
+        assertNoSort(plan);
+    }
+
+    // "weather?limit=&after_date=&after_id=", a page of every location's history
+    public void testWeatherPage() {
+        String sql = WeatherProvider.sWeatherQueryBuilder.buildQuery(null,
+                WeatherProvider.sAfterRowSelection, null, null, WeatherProvider.sPageOrder, "50");
+        assertNoScan(sql, "1419033600000", "1419033600000", "7");
+    }
+
+    // The upsert's UPDATE, once per incoming row
+    public void testUpsertUpdate() {
+        assertNoScan(WeatherProvider.SQL_UPDATE_WEATHER,
+                "1", "1", "1", "1", "1", "1", "1", "Clear", "1", "1419033600000");
+    }
+
+    // The ingester's read of the stored rows for the locations it fetched
+    public void testStoredRowsForLocations() {
+        assertNoScan("SELECT * FROM " + WeatherEntry.TABLE_NAME + " WHERE " +
+                WeatherEntry.COLUMN_LOC_KEY + " IN (?,?)", "1", "2");
+    }
+
+    // Deleting a location's old days through "weather/*"
+    public void testDeleteOldWeatherForLocation() {
+        assertNoScan("DELETE FROM " + WeatherEntry.TABLE_NAME + " WHERE " +
+                WeatherProvider.sLocationIdFromSettingSelection + " AND (" +
+                WeatherEntry.COLUMN_DATE + " < ?)", "94043", "1419033600000");
+    }
+
+    // "hourly/*", a time window
+    public void testHourlyWithLocation() {
+        List<String> plan = assertNoScan("SELECT * FROM " + HourlyEntry.TABLE_NAME + " WHERE " +
+                        WeatherProvider.sHourlyRowIdWindowSelection + " ORDER BY " +
+                        HourlyEntry._ID + " ASC",
+                "94043", "0", "94043", Long.toString(HourlyEntry.MAX_TIME));
+        assertNoSort(plan);
+    }
+
+    // Deleting a location's ended slots through "hourly/*"
+    public void testDeleteOldHourlyForLocation() {
+        assertNoScan("DELETE FROM " + HourlyEntry.TABLE_NAME + " WHERE " +
+                WeatherProvider.sHourlyLocationIdFromSettingSelection + " AND (" +
+                HourlyEntry.COLUMN_TIME + " < ?)", "94043", "94043", "1419033600");
+    }
+
+    // The location lookup every fetch starts with
+    public void testLocationBySetting() {
+        assertNoScan("SELECT " + LocationEntry._ID + " FROM " + LocationEntry.TABLE_NAME +
+                " WHERE " + LocationEntry.COLUMN_LOCATION_SETTING + " = ?", "94043");
+    }
+
+    public void testUpgradeFromVersion5AddsIndex() {
+        mDb.execSQL("DROP INDEX " + WeatherDbHelper.WEATHER_LOCATION_DATE_INDEX);
+        ContentValues location = TestUtilities.createNorthPoleLocationValues();
+        location.put(LocationEntry.COLUMN_LOCATION_SETTING, "query-plans-upgrade");
+        long locationId = mDb.insert(LocationEntry.TABLE_NAME, null, location);
+        assertTrue(locationId != -1);
+        try {
+            new WeatherDbHelper(mContext).onUpgrade(mDb, 5, 6);
+
+            Cursor c = mDb.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index' AND name = ?",
+                    new String[]{WeatherDbHelper.WEATHER_LOCATION_DATE_INDEX});
+            assertTrue("Error: the upgrade from version 5 did not add the index", c.moveToFirst());
+            c.close();
+            c = mDb.query(LocationEntry.TABLE_NAME, null, LocationEntry._ID + " = ?",
+                    new String[]{Long.toString(locationId)}, null, null, null);
+            assertTrue("Error: the upgrade from version 5 dropped data", c.moveToFirst());
+            c.close();
+        } finally {
+            mDb.delete(LocationEntry.TABLE_NAME, LocationEntry._ID + " = ?",
+                    new String[]{Long.toString(locationId)});
+        }
+    }
+
+    /*
+        Fails if any step of the plan is a SCAN, i.e. reads every row of a table or index,
+        rather than a SEARCH through an index or the row id.
+     */
+    private List<String> assertNoScan(String sql, String... args) {
+        List<String> plan = explain(sql, args);
+        for (String step : plan) {
+            assertFalse("Error: full scan in the plan for " + sql + ": " + plan,
+                    step.startsWith("SCAN "));
+        }
+        return plan;
+    }
+
+    // Fails if the rows have to be sorted after they are found, instead of read in order
+    private static void assertNoSort(List<String> plan) {
+        for (String step : plan) {
+            assertFalse("Error: the plan sorts the result: " + plan,
+                    step.contains("TEMP B-TREE FOR ORDER BY"));
+        }
+    }
+
+    private List<String> explain(String sql, String... args) {
+        Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        List<String> plan = new ArrayList<String>();
+        try {
+            // "detail" is the last column in every SQLite version
+            int detail = c.getColumnIndexOrThrow("detail");
+            while (c.moveToNext()) {
+                plan.add(c.getString(detail));
+            }
+        } finally {
+            c.close();
+        }
+        Log.d(LOG_TAG, sql + " -> " + plan);
+        return plan;
+    }
+}
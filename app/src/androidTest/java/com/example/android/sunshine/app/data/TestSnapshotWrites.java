@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+    Readers racing a stream of METHOD_INGEST snapshots.  Every generation moves the forecast
+    one day on (so a day is pruned and a new one written), rewrites the hourly slots and
+    renames the city, and stamps all of it with the generation number.  One reader goes
+    through the provider's forecast list query, the other reads the three tables in a
+    single statement on its own connection; neither may ever see rows of two generations,
+    a forecast missing days or slots, or a city name that doesn't go with the rows.
+ */
+public class TestSnapshotWrites extends AndroidTestCase {
+
+    private static final String LOG_TAG = TestSnapshotWrites.class.getSimpleName();
+
+    private static final String LOCATION = "snapshot-location";
+    private static final int GENERATIONS = 200;
+    private static final int DAYS = 14;
+    private static final int SLOTS = 40;
+    private static final long DAY = 24L * 3600 * 1000;
+    private static final long SLOT = 3 * 3600;
+    private static final long FIRST_DAY = WeatherContract.normalizeDate(1419033600000L);
+    private static final long FIRST_SLOT = 1419033600L;
+
+    private static final String SQL_SNAPSHOT = "SELECT " +
+            "(SELECT COUNT(*) FROM " + WeatherEntry.TABLE_NAME + " WHERE " +
+            WeatherEntry.COLUMN_LOC_KEY + " = l." + LocationEntry._ID + "), " +
+            "(SELECT MIN(" + WeatherEntry.COLUMN_MAX_TEMP + ") FROM " + WeatherEntry.TABLE_NAME +
+            " WHERE " + WeatherEntry.COLUMN_LOC_KEY + " = l." + LocationEntry._ID + "), " +
+            "(SELECT MAX(" + WeatherEntry.COLUMN_MAX_TEMP + ") FROM " + WeatherEntry.TABLE_NAME +
+            " WHERE " + WeatherEntry.COLUMN_LOC_KEY + " = l." + LocationEntry._ID + "), " +
+            "(SELECT COUNT(*) FROM " + HourlyEntry.TABLE_NAME + " WHERE " +
+            HourlyEntry.COLUMN_LOC_KEY + " = l." + LocationEntry._ID + "), " +
+            "(SELECT MIN(" + HourlyEntry.COLUMN_WEATHER_ID + ") FROM " + HourlyEntry.TABLE_NAME +
+            " WHERE " + HourlyEntry.COLUMN_LOC_KEY + " = l." + LocationEntry._ID + "), " +
+            "(SELECT MAX(" + HourlyEntry.COLUMN_WEATHER_ID + ") FROM " + HourlyEntry.TABLE_NAME +
+            " WHERE " + HourlyEntry.COLUMN_LOC_KEY + " = l." + LocationEntry._ID + "), " +
+            "l." + LocationEntry.COLUMN_CITY_NAME + " FROM " + LocationEntry.TABLE_NAME +
+            " AS l WHERE l." + LocationEntry.COLUMN_LOCATION_SETTING + " = ?";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    public void testSnapshotReplacesDailyHourlyAndLocationTogether() {
+        ingest(0);
+        ingest(1);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(LOCATION),
+                new String[]{WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP},
+                null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(DAYS, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals("Error: the stale day wasn't pruned", FIRST_DAY + DAY, cursor.getLong(0));
+        assertEquals(1.0, cursor.getDouble(1));
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(HourlyEntry.buildHourlyLocation(LOCATION),
+                new String[]{HourlyEntry.COLUMN_TIME}, null, null, HourlyEntry.COLUMN_TIME + " ASC");
+        assertEquals(SLOTS, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals("Error: the ended slot wasn't pruned", FIRST_SLOT + SLOT, cursor.getLong(0));
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry.COLUMN_CITY_NAME, LocationEntry.COLUMN_COORD_LAT},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?", new String[]{LOCATION}, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: the location metadata wasn't refreshed", "City 1", cursor.getString(0));
+        assertEquals(1.0, cursor.getDouble(1));
+        cursor.close();
+    }
+
+    public void testReadersNeverSeePartialSnapshots() throws Exception {
+        ingest(0);
+
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final int[] reads = new int[2];
+        final boolean[] done = new boolean[1];
+        Thread providerReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!isDone(done) && failure.get() == null) {
+                    checkForecastList(failure);
+                    reads[0]++;
+                }
+            }
+        }, "TestSnapshotWrites-provider");
+        final SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+        Thread tableReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!isDone(done) && failure.get() == null) {
+                    checkTables(db, failure);
+                    reads[1]++;
+                }
+            }
+        }, "TestSnapshotWrites-tables");
+
+        providerReader.start();
+        tableReader.start();
+        try {
+            for (int generation = 1; generation < GENERATIONS && failure.get() == null;
+                 generation++) {
+                ingest(generation);
+            }
+        } finally {
+            synchronized (done) {
+                done[0] = true;
+            }
+            providerReader.join();
+            tableReader.join();
+            db.close();
+        }
+
+        Log.d(LOG_TAG, GENERATIONS + " snapshots: " + reads[0] + " forecast list reads and " +
+                reads[1] + " table reads, none partial");
+        assertNull(failure.get(), failure.get());
+        assertTrue("Error: the readers didn't overlap the writes", reads[0] > 0 && reads[1] > 0);
+    }
+
+    private static boolean isDone(boolean[] done) {
+        synchronized (done) {
+            return done[0];
+        }
+    }
+
+    private void checkForecastList(AtomicReference<String> failure) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(LOCATION),
+                new String[]{WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP,
+                        LocationEntry.COLUMN_CITY_NAME},
+                null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        try {
+            if (cursor.getCount() != DAYS) {
+                failure.compareAndSet(null, "forecast list had " + cursor.getCount() + " days");
+                return;
+            }
+            cursor.moveToFirst();
+            int generation = (int) cursor.getDouble(1);
+            do {
+                long expectedDate = FIRST_DAY + (generation + cursor.getPosition()) * DAY;
+                if (cursor.getDouble(1) != generation || cursor.getLong(0) != expectedDate ||
+                        !("City " + generation).equals(cursor.getString(2))) {
+                    failure.compareAndSet(null, "forecast list mixed generation " +
+                            generation + " with " + cursor.getDouble(1) + " on " +
+                            cursor.getLong(0) + " in " + cursor.getString(2));
+                    return;
+                }
+            } while (cursor.moveToNext());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void checkTables(SQLiteDatabase db, AtomicReference<String> failure) {
+        Cursor cursor = db.rawQuery(SQL_SNAPSHOT, new String[]{LOCATION});
+        try {
+            cursor.moveToFirst();
+            int days = cursor.getInt(0);
+            int slots = cursor.getInt(3);
+            long generation = cursor.getLong(1);
+            if (days != DAYS || slots != SLOTS || cursor.getLong(2) != generation ||
+                    cursor.getLong(4) != generation || cursor.getLong(5) != generation ||
+                    !("City " + generation).equals(cursor.getString(6))) {
+                failure.compareAndSet(null, "tables held " + days + " days of generations " +
+                        generation + " to " + cursor.getLong(2) + ", " + slots +
+                        " slots of generations " + cursor.getLong(4) + " to " +
+                        cursor.getLong(5) + " and " + cursor.getString(6));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Generation g holds days g to g + DAYS - 1 and slots g to g + SLOTS - 1, all stamped g
+    private void ingest(int generation) {
+        ForecastBatch batch = new ForecastBatch(DAYS);
+        for (int d = 0; d < DAYS; d++) {
+            batch.add(-1, FIRST_DAY + (generation + d) * DAY, generation, generation - 10,
+                    50, 1000, 5, 90, 800, "Generation " + generation);
+        }
+        ContentValues[] slots = new ContentValues[SLOTS];
+        for (int s = 0; s < SLOTS; s++) {
+            slots[s] = new ContentValues();
+            slots[s].put(HourlyEntry.COLUMN_TIME, FIRST_SLOT + (generation + s) * SLOT);
+            slots[s].put(HourlyEntry.COLUMN_WEATHER_ID, generation);
+            slots[s].put(HourlyEntry.COLUMN_TEMP, 100);
+            slots[s].put(HourlyEntry.COLUMN_HUMIDITY, 50);
+            slots[s].put(HourlyEntry.COLUMN_PRESSURE, 10000);
+            slots[s].put(HourlyEntry.COLUMN_WIND_SPEED, 50);
+            slots[s].put(HourlyEntry.COLUMN_DEGREES, 90);
+        }
+
+        Bundle payload = new Bundle();
+        payload.putStringArray(WeatherEntry.EXTRA_LOCATION_SETTINGS, new String[]{LOCATION});
+        payload.putStringArray(WeatherEntry.EXTRA_CITY_NAMES, new String[]{"City " + generation});
+        payload.putDoubleArray(WeatherEntry.EXTRA_COORD_LATS, new double[]{generation});
+        payload.putDoubleArray(WeatherEntry.EXTRA_COORD_LONGS, new double[]{generation});
+        payload.putStringArray(WeatherEntry.EXTRA_ETAGS, new String[]{null});
+        payload.putStringArray(WeatherEntry.EXTRA_LAST_MODIFIEDS, new String[]{null});
+        payload.putIntArray(WeatherEntry.EXTRA_ROW_COUNTS, new int[]{DAYS});
+        payload.putParcelable(WeatherEntry.EXTRA_BATCH, batch);
+        payload.putLong(WeatherEntry.EXTRA_STALE_BEFORE, FIRST_DAY + generation * DAY);
+        payload.putString(WeatherEntry.EXTRA_HOURLY_LOCATION_SETTING, LOCATION);
+        payload.putString(WeatherEntry.EXTRA_HOURLY_CITY_NAME, "City " + generation);
+        payload.putDouble(WeatherEntry.EXTRA_HOURLY_COORD_LAT, generation);
+        payload.putDouble(WeatherEntry.EXTRA_HOURLY_COORD_LONG, generation);
+        payload.putParcelableArray(WeatherEntry.EXTRA_HOURLY_VALUES, slots);
+        payload.putLong(WeatherEntry.EXTRA_HOURLY_ENDED_BEFORE, FIRST_SLOT + generation * SLOT);
+
+        Bundle reply = mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherEntry.METHOD_INGEST, null, payload);
+        assertEquals(SLOTS, reply.getInt(WeatherEntry.EXTRA_HOURLY_ROW_COUNT));
+    }
+}
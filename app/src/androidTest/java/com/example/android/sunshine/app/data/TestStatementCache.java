@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Benchmarks bulkInsert of weather with the provider's cached compiled statements against
+    what it did before: SQLiteDatabase.insert per row, which builds the INSERT from the
+    ContentValues and prepares it every time.  Both run in one transaction on the same
+    database.  Only the row counts are asserted; the numbers are for tracking.
+ */
+public class TestStatementCache extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestStatementCache.class.getSimpleName();
+
+    private static final int LOCATIONS = 50;
+    private static final int DAYS = 1000;
+    private static final long DAY = 1000L * 60 * 60 * 24;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    public void testBulkInsertThroughputBenchmark() {
+        ContentValues[] rows = createRows();
+
+        // warm up both paths on one location's days
+        ContentValues[] warmUp = new ContentValues[DAYS];
+        System.arraycopy(rows, 0, warmUp, 0, DAYS);
+        insertWithoutCache(warmUp);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, warmUp);
+        deleteWeather();
+
+        long start = SystemClock.elapsedRealtime();
+        int uncached = insertWithoutCache(rows);
+        long uncachedMillis = Math.max(1, SystemClock.elapsedRealtime() - start);
+        assertEquals(rows.length, uncached);
+        assertEquals(rows.length, countWeather());
+        deleteWeather();
+
+        start = SystemClock.elapsedRealtime();
+        int cached = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, rows);
+        long cachedMillis = Math.max(1, SystemClock.elapsedRealtime() - start);
+        assertEquals(rows.length, cached);
+        assertEquals(rows.length, countWeather());
+
+        Log.d(LOG_TAG, rows.length + " row bulkInsert | SQLiteDatabase.insert: " +
+                uncachedMillis + " ms, " + (rows.length * 1000L / uncachedMillis) +
+                " rows/s | cached statement: " + cachedMillis + " ms, " +
+                (rows.length * 1000L / cachedMillis) + " rows/s");
+    }
+
+    // The provider's bulkInsert loop as it was before the statement cache
+    private int insertWithoutCache(ContentValues[] rows) {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        int returnCount = 0;
+        db.beginTransaction();
+        try {
+            for (ContentValues row : rows) {
+                if (db.insert(WeatherEntry.TABLE_NAME, null, row) != -1) {
+                    returnCount++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            db.close();
+        }
+        return returnCount;
+    }
+
+    // LOCATIONS locations with DAYS normalized days each, grouped by location
+    private ContentValues[] createRows() {
+        long firstDay = WeatherContract.normalizeDate(System.currentTimeMillis());
+        ContentValues[] rows = new ContentValues[LOCATIONS * DAYS];
+        for (int l = 0; l < LOCATIONS; l++) {
+            ContentValues location = TestUtilities.createNorthPoleLocationValues();
+            location.put(LocationEntry.COLUMN_LOCATION_SETTING, "statement-cache-" + l);
+            long locationId = ContentUris.parseId(
+                    mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, location));
+            for (int d = 0; d < DAYS; d++) {
+                ContentValues row = TestUtilities.createWeatherValues(locationId);
+                row.put(WeatherEntry.COLUMN_DATE, firstDay + d * DAY);
+                row.put(WeatherEntry.COLUMN_MAX_TEMP, 20.0 + d % 15);
+                rows[l * DAYS + d] = row;
+            }
+        }
+        return rows;
+    }
+
+    private int countWeather() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{"count(*)"}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void deleteWeather() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+    }
+
+    private void deleteAll() {
+        deleteWeather();
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
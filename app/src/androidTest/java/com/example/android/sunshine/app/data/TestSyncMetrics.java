@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.sync.ForecastIngester;
+import com.example.android.sunshine.app.sync.SyncMetrics;
+import com.example.android.sunshine.app.sync.SyntheticWeatherSource;
+
+/*
+    Tests the sync_metrics ring buffer: a run records what it cost, the table never grows past
+    its capacity, and the URI can't be written through the provider.
+ */
+public class TestSyncMetrics extends AndroidTestCase {
+
+    private static final int DAYS = 7;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    public void testIngestRecordsARun() throws Exception {
+        SyntheticWeatherSource source = new SyntheticWeatherSource(DAYS, 0);
+        ForecastIngester ingester = new ForecastIngester(mContext, source);
+        ingester.ingest("syn00001");
+
+        Cursor cursor = mContext.getContentResolver().query(SyncMetricsEntry.CONTENT_URI,
+                null, null, null, null);
+        assertTrue("Error: no metrics were recorded", cursor.moveToFirst());
+        assertEquals(SyncMetricsEntry.KIND_DAILY,
+                cursor.getInt(cursor.getColumnIndex(SyncMetricsEntry.COLUMN_KIND)));
+        assertEquals(1, cursor.getInt(cursor.getColumnIndex(SyncMetricsEntry.COLUMN_LOCATIONS)));
+        assertEquals(DAYS, cursor.getInt(cursor.getColumnIndex(SyncMetricsEntry.COLUMN_ROWS_INSERTED)));
+        assertEquals(0, cursor.getInt(cursor.getColumnIndex(SyncMetricsEntry.COLUMN_ROWS_REPLACED)));
+        assertTrue(cursor.getLong(cursor.getColumnIndex(SyncMetricsEntry.COLUMN_BYTES)) > 0);
+        assertTrue(cursor.getLong(cursor.getColumnIndex(SyncMetricsEntry.COLUMN_NOTIFY_COUNT)) > 0);
+        long firstRun = cursor.getLong(cursor.getColumnIndex(SyncMetricsEntry.COLUMN_RUN));
+        cursor.close();
+
+        // the same generation again comes back not modified and writes nothing
+        ingester.ingest("syn00001");
+        cursor = mContext.getContentResolver().query(SyncMetricsEntry.CONTENT_URI,
+                null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: the newest run should come first", firstRun + 1,
+                cursor.getLong(cursor.getColumnIndex(SyncMetricsEntry.COLUMN_RUN)));
+        assertEquals(1, cursor.getInt(cursor.getColumnIndex(SyncMetricsEntry.COLUMN_NOT_MODIFIED)));
+        assertEquals(0, cursor.getInt(cursor.getColumnIndex(SyncMetricsEntry.COLUMN_ROWS_INSERTED)));
+        cursor.close();
+    }
+
+    public void testRingBufferIsBounded() {
+        ForecastIngester.Result result = new ForecastIngester.Result();
+        for (int i = 0; i < SyncMetricsEntry.CAPACITY + 5; i++) {
+            SyncMetrics.record(mContext.getContentResolver(), SyncMetricsEntry.KIND_HOURLY,
+                    result, System.currentTimeMillis());
+        }
+        Cursor cursor = mContext.getContentResolver().query(SyncMetricsEntry.CONTENT_URI,
+                new String[]{SyncMetricsEntry.COLUMN_RUN}, null, null, null);
+        assertEquals(SyncMetricsEntry.CAPACITY, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        long newest = cursor.getLong(0);
+        assertTrue(cursor.moveToLast());
+        assertEquals("Error: the oldest runs should have been overwritten",
+                newest - SyncMetricsEntry.CAPACITY + 1, cursor.getLong(0));
+        cursor.close();
+    }
+
+    public void testMetricsAreReadOnly() {
+        ContentValues values = new ContentValues();
+        values.put(SyncMetricsEntry.COLUMN_KIND, SyncMetricsEntry.KIND_DAILY);
+        try {
+            mContext.getContentResolver().insert(SyncMetricsEntry.CONTENT_URI, values);
+            fail("Error: the metrics URI accepted an insert");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    private void deleteAll() {
+        // the provider won't delete metrics, so clear them straight from the database
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        dbHelper.getWritableDatabase().delete(SyncMetricsEntry.TABLE_NAME, null, null);
+        dbHelper.close();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
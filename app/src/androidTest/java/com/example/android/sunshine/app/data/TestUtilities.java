@@ -1,5 +1,7 @@
 package com.example.android.sunshine.app.data;
 
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.ContentObserver;
@@ -96,6 +98,76 @@ public class TestUtilities extends AndroidTestCase {
         return locationRowId;
     }
 
+    static final long DAY_MILLIS = 24L * 3600 * 1000;
+    // hourly slots start 3 hours apart; their times are in seconds
+    static final long SLOT_SECONDS = 3 * 3600;
+
+    // The North Pole under another location setting, inserted through the provider
+    static long insertLocation(Context context, String locationSetting) {
+        ContentValues values = createNorthPoleLocationValues();
+        values.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        return ContentUris.parseId(context.getContentResolver().insert(
+                WeatherContract.LocationEntry.CONTENT_URI, values));
+    }
+
+    // The same, straight into a database the provider doesn't own
+    static long insertLocation(SQLiteDatabase db, String locationSetting) {
+        ContentValues values = createNorthPoleLocationValues();
+        values.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        long locationId = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+        assertTrue("Error: Failure to insert location " + locationSetting, locationId != -1);
+        return locationId;
+    }
+
+    // count consecutive days of the default weather from firstDay, in one bulkInsert
+    static void bulkInsertDays(Context context, long locationId, long firstDay, int count) {
+        ContentValues[] days = new ContentValues[count];
+        for (int d = 0; d < count; d++) {
+            days[d] = createWeatherValues(locationId);
+            days[d].put(WeatherContract.WeatherEntry.COLUMN_DATE, firstDay + d * DAY_MILLIS);
+        }
+        assertEquals(count, context.getContentResolver().bulkInsert(
+                WeatherContract.WeatherEntry.CONTENT_URI, days));
+    }
+
+    // The same, straight into a database the provider doesn't own
+    static void insertDays(SQLiteDatabase db, long locationId, long firstDay, int count) {
+        for (int d = 0; d < count; d++) {
+            ContentValues values = createWeatherValues(locationId);
+            values.put(WeatherContract.WeatherEntry.COLUMN_DATE, firstDay + d * DAY_MILLIS);
+            assertTrue(db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values) != -1);
+        }
+    }
+
+    // count consecutive hourly slots from startTime (seconds), in one bulkInsert
+    static void bulkInsertSlots(Context context, long locationId, long startTime, int count) {
+        ContentValues[] slots = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            ContentValues values = new ContentValues();
+            values.put(WeatherContract.HourlyEntry.COLUMN_LOC_KEY, locationId);
+            values.put(WeatherContract.HourlyEntry.COLUMN_TIME, startTime + i * SLOT_SECONDS);
+            values.put(WeatherContract.HourlyEntry.COLUMN_WEATHER_ID, 800);
+            values.put(WeatherContract.HourlyEntry.COLUMN_TEMP,
+                    WeatherContract.HourlyEntry.toTenths(12.5 + i % 8));
+            values.put(WeatherContract.HourlyEntry.COLUMN_HUMIDITY, 80);
+            values.put(WeatherContract.HourlyEntry.COLUMN_PRESSURE,
+                    WeatherContract.HourlyEntry.toTenths(1013.2));
+            values.put(WeatherContract.HourlyEntry.COLUMN_WIND_SPEED,
+                    WeatherContract.HourlyEntry.toTenths(3.4));
+            values.put(WeatherContract.HourlyEntry.COLUMN_DEGREES, 270);
+            slots[i] = values;
+        }
+        assertEquals(count, context.getContentResolver().bulkInsert(
+                WeatherContract.HourlyEntry.CONTENT_URI, slots));
+    }
+
+    // Empties the hourly, weather and location tables through the provider
+    static void deleteAllRecords(Context context) {
+        context.getContentResolver().delete(WeatherContract.HourlyEntry.CONTENT_URI, null, null);
+        context.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        context.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+
     /*
         Students: The functions we provide inside of TestProvider use this utility class to test
         the ContentObserver callbacks using the PollingCheck class that we grabbed from the Android
@@ -148,4 +220,47 @@ public class TestUtilities extends AndroidTestCase {
     static TestContentObserver getTestContentObserver() {
         return TestContentObserver.getTestContentObserver();
     }
+
+    /*
+        Counts the change notifications for a URI and its descendants, for tests that need to
+        know how many arrived (or that none did), not just that one did.
+     */
+    public static class CountingObserver extends ContentObserver {
+        private final HandlerThread mHT;
+        private final ContentResolver mResolver;
+        private int mCount;
+
+        public static CountingObserver register(Context context, Uri uri) {
+            HandlerThread ht = new HandlerThread("CountingObserverThread");
+            ht.start();
+            CountingObserver observer = new CountingObserver(ht, context.getContentResolver());
+            observer.mResolver.registerContentObserver(uri, true, observer);
+            return observer;
+        }
+
+        private CountingObserver(HandlerThread ht, ContentResolver resolver) {
+            super(new Handler(ht.getLooper()));
+            mHT = ht;
+            mResolver = resolver;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public synchronized void onChange(boolean selfChange, Uri uri) {
+            mCount++;
+        }
+
+        public synchronized int getCount() {
+            return mCount;
+        }
+
+        public void unregister() {
+            mResolver.unregisterContentObserver(this);
+            mHT.quit();
+        }
+    }
 }
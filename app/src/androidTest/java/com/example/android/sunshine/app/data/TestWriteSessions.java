@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.TestUtilities.CountingObserver;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.sync.ForecastIngester;
+import com.example.android.sunshine.app.sync.SyntheticWeatherSource;
+import com.example.android.sunshine.app.sync.WriteSession;
+import com.example.android.sunshine.app.utils.PollingCheck;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Counts how often the list of one location would reload over a sync made of several
+    provider calls, with and without a write session around them, and checks that a
+    debounce window merges sessions that follow each other closely and that a session can only
+    be ended with its own token.
+ */
+public class TestWriteSessions extends AndroidTestCase {
+
+    private static final String LOG_TAG = TestWriteSessions.class.getSimpleName();
+
+    private static final int LOCATIONS = 3;
+    private static final int DAYS = 14;
+    private static final long DEBOUNCE_MILLIS = 300;
+
+    private final List<CountingObserver> mObservers = new ArrayList<CountingObserver>();
+    private ContentResolver mResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = mContext.getContentResolver();
+        TestUtilities.deleteAllRecords(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (CountingObserver observer : mObservers) {
+            observer.unregister();
+        }
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    public void testSessionNotifiesEachUriOnce() throws Exception {
+        List<String> settings = SyntheticWeatherSource.buildLocationSettings(LOCATIONS);
+        SyntheticWeatherSource source = new SyntheticWeatherSource(DAYS, 0);
+        ForecastIngester ingester = new ForecastIngester(mContext, source);
+
+        CountingObserver list = register(WeatherEntry.buildWeatherLocation(settings.get(0)));
+        CountingObserver anyWeather = register(WeatherEntry.CONTENT_URI);
+
+        // a sync putting the cached forecasts back, then writing the fresh ones
+        syncTwice(ingester, source, settings);
+        int listWithout = awaitSettled(list);
+        int anyWithout = anyWeather.getCount();
+
+        long session = WriteSession.begin(mResolver);
+        try {
+            syncTwice(ingester, source, settings);
+            Thread.sleep(500);
+            assertEquals("Error: a notification got through the open session",
+                    listWithout, list.getCount());
+        } finally {
+            WriteSession.end(mResolver, session, 0);
+        }
+        int listWith = awaitSettled(list) - listWithout;
+        int anyWith = anyWeather.getCount() - anyWithout;
+
+        Log.d(LOG_TAG, LOCATIONS + " locations written twice: one list reloaded " + listWithout +
+                " times without a session and " + listWith + " with one; all lists " +
+                anyWithout + " and " + anyWith + " times");
+        assertEquals(2, listWithout);
+        assertEquals("Error: the session should notify the location once", 1, listWith);
+        assertEquals("Error: the session should notify each location once", LOCATIONS, anyWith);
+    }
+
+    public void testAncestorCoversDescendants() throws Exception {
+        List<String> settings = SyntheticWeatherSource.buildLocationSettings(1);
+        ForecastIngester ingester = new ForecastIngester(mContext, new SyntheticWeatherSource(DAYS, 0));
+        CountingObserver list = register(WeatherEntry.buildWeatherLocation(settings.get(0)));
+        CountingObserver anyWeather = register(WeatherEntry.CONTENT_URI);
+
+        long session = WriteSession.begin(mResolver);
+        try {
+            syncEachLocation(ingester, settings);
+            // deleting everything notifies the base URI, which covers the location's
+            mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        } finally {
+            WriteSession.end(mResolver, session, 0);
+        }
+
+        assertEquals(1, awaitSettled(list));
+        assertEquals("Error: the location URI was sent along with its ancestor",
+                1, anyWeather.getCount());
+    }
+
+    public void testDebounceMergesSessions() throws Exception {
+        List<String> settings = SyntheticWeatherSource.buildLocationSettings(1);
+        SyntheticWeatherSource source = new SyntheticWeatherSource(DAYS, 0);
+        ForecastIngester ingester = new ForecastIngester(mContext, source);
+        CountingObserver list = register(WeatherEntry.buildWeatherLocation(settings.get(0)));
+
+        for (int generation = 0; generation < 3; generation++) {
+            source.setGeneration(generation);
+            long session = WriteSession.begin(mResolver);
+            try {
+                syncEachLocation(ingester, settings);
+            } finally {
+                WriteSession.end(mResolver, session, DEBOUNCE_MILLIS);
+            }
+            Thread.sleep(DEBOUNCE_MILLIS / 3);
+        }
+        assertEquals("Error: a notification was sent inside the debounce window",
+                0, list.getCount());
+
+        assertEquals("Error: sessions within the window should notify once",
+                1, awaitSettled(list));
+    }
+
+    public void testEndingTwiceLeavesOtherSessionsOpen() throws Exception {
+        List<String> settings = SyntheticWeatherSource.buildLocationSettings(1);
+        ForecastIngester ingester = new ForecastIngester(mContext, new SyntheticWeatherSource(DAYS, 0));
+        CountingObserver list = register(WeatherEntry.buildWeatherLocation(settings.get(0)));
+
+        long first = WriteSession.begin(mResolver);
+        WriteSession.end(mResolver, first, 0);
+        long second = WriteSession.begin(mResolver);
+        assertTrue("Error: two sessions got the same token", first != second);
+        try {
+            syncEachLocation(ingester, settings);
+            // a late second end of the first session must not end this one
+            WriteSession.end(mResolver, first, 0);
+            Thread.sleep(500);
+            assertEquals("Error: a stale end released the open session's notifications",
+                    0, list.getCount());
+        } finally {
+            WriteSession.end(mResolver, second, 0);
+        }
+        assertEquals(1, awaitSettled(list));
+    }
+
+    private void syncTwice(ForecastIngester ingester, SyntheticWeatherSource source,
+                           List<String> settings) throws Exception {
+        source.setGeneration(0);
+        syncEachLocation(ingester, settings);
+        source.setGeneration(1);
+        syncEachLocation(ingester, settings);
+    }
+
+    private void syncEachLocation(ForecastIngester ingester, List<String> settings)
+            throws Exception {
+        for (String setting : settings) {
+            List<ForecastIngester.Forecast> forecasts = new ArrayList<ForecastIngester.Forecast>();
+            forecasts.add(ingester.fetch(setting));
+            ingester.write(forecasts);
+        }
+    }
+
+    // Waits for a first notification, then long enough for any others to arrive
+    private static int awaitSettled(final CountingObserver observer) throws InterruptedException {
+        new PollingCheck(5000) {
+            @Override
+            protected boolean check() {
+                return observer.getCount() > 0;
+            }
+        }.run();
+        Thread.sleep(1000);
+        return observer.getCount();
+    }
+
+    private CountingObserver register(Uri uri) {
+        CountingObserver observer = CountingObserver.register(mContext, uri);
+        mObservers.add(observer);
+        return observer;
+    }
+}
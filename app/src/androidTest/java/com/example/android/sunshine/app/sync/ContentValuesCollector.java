@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Vector;
+
+/*
+    A ForecastJsonParser.Handler that turns every day into a ContentValues row for the weather
+    table, the shape the ingestion code used before ForecastBatch.  The parser tests compare
+    against it because ContentValues rows are easy to check column by column.
+ */
+public class ContentValuesCollector implements ForecastJsonParser.Handler {
+    public String cityName;
+    public double cityLatitude;
+    public double cityLongitude;
+
+    private final Vector<ContentValues> mRows = new Vector<ContentValues>(16);
+
+    @Override
+    public void onLocation(String cityName, double lat, double lon) {
+        this.cityName = cityName;
+        this.cityLatitude = lat;
+        this.cityLongitude = lon;
+    }
+
+    @Override
+    public void onDay(int index, ForecastJsonParser.Day day) {
+        ContentValues weatherValues = new ContentValues();
+
+        weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, day.humidity);
+        weatherValues.put(WeatherEntry.COLUMN_PRESSURE, day.pressure);
+        weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, day.windSpeed);
+        weatherValues.put(WeatherEntry.COLUMN_DEGREES, day.windDirection);
+        weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, day.high);
+        weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, day.low);
+        weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, day.description);
+        weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, day.weatherId);
+
+        mRows.add(weatherValues);
+    }
+
+    public boolean hasLocation() {
+        return cityName != null;
+    }
+
+    public Vector<ContentValues> getRows() {
+        return mRows;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+/*
+    OpenWeatherMap daily forecast responses for the ingestion tests.  RECORDED_MOUNTAIN_VIEW is
+    a response captured from api.openweathermap.org/data/2.5/forecast/daily?q=94043,USA&cnt=7;
+    buildDailyPayload stretches the recorded days out to any count for the larger benchmarks.
+ */
+public class ForecastPayloads {
+
+    public static final String RECORDED_CITY_NAME = "Mountain View";
+    public static final double RECORDED_LAT = 37.4056;
+    public static final double RECORDED_LON = -122.0775;
+    public static final int RECORDED_DAYS = 7;
+
+    private static final String RECORDED_CITY =
+            "{\"id\":5375480,\"name\":\"Mountain View\",\"coord\":{\"lon\":-122.0775,\"lat\":37.4056}," +
+            "\"country\":\"US\",\"population\":0}";
+
+    private static final String[] RECORDED_DAY_LIST = {
+            "{\"dt\":1419019200,\"temp\":{\"day\":15.86,\"min\":11.21,\"max\":15.86,\"night\":11.21,\"eve\":14.43,\"morn\":13.12}," +
+                    "\"pressure\":1023.35,\"humidity\":87,\"weather\":[{\"id\":500,\"main\":\"Rain\",\"description\":\"light rain\",\"icon\":\"10d\"}]," +
+                    "\"speed\":2.76,\"deg\":149,\"clouds\":92,\"rain\":0.75}",
+            "{\"dt\":1419105600,\"temp\":{\"day\":14.48,\"min\":10.6,\"max\":14.48,\"night\":10.6,\"eve\":12.8,\"morn\":11.07}," +
+                    "\"pressure\":1025.82,\"humidity\":90,\"weather\":[{\"id\":803,\"main\":\"Clouds\",\"description\":\"broken clouds\",\"icon\":\"04d\"}]," +
+                    "\"speed\":1.17,\"deg\":307,\"clouds\":64}",
+            "{\"dt\":1419192000,\"temp\":{\"day\":14.83,\"min\":8.25,\"max\":14.83,\"night\":8.25,\"eve\":12.46,\"morn\":9.54}," +
+                    "\"pressure\":1026.41,\"humidity\":88,\"weather\":[{\"id\":800,\"main\":\"Clear\",\"description\":\"sky is clear\",\"icon\":\"01d\"}]," +
+                    "\"speed\":1.36,\"deg\":314,\"clouds\":0}",
+            "{\"dt\":1419278400,\"temp\":{\"day\":16.2,\"min\":9.41,\"max\":16.2,\"night\":10.5,\"eve\":13.98,\"morn\":9.41}," +
+                    "\"pressure\":1024.3,\"humidity\":85,\"weather\":[{\"id\":802,\"main\":\"Clouds\",\"description\":\"scattered clouds\",\"icon\":\"03d\"}]," +
+                    "\"speed\":1.21,\"deg\":115,\"clouds\":48}",
+            "{\"dt\":1419364800,\"temp\":{\"day\":13.62,\"min\":10.74,\"max\":13.99,\"night\":11.18,\"eve\":13.99,\"morn\":10.74}," +
+                    "\"pressure\":1019.71,\"humidity\":0,\"weather\":[{\"id\":501,\"main\":\"Rain\",\"description\":\"moderate rain\",\"icon\":\"10d\"}]," +
+                    "\"speed\":3.46,\"deg\":168,\"clouds\":96,\"rain\":9.72}",
+            "{\"dt\":1419451200,\"temp\":{\"day\":11.04,\"min\":6.2,\"max\":11.04,\"night\":6.2,\"eve\":9.66,\"morn\":8.02}," +
+                    "\"pressure\":1022.56,\"humidity\":0,\"weather\":[{\"id\":500,\"main\":\"Rain\",\"description\":\"light rain\",\"icon\":\"10d\"}]," +
+                    "\"speed\":4.89,\"deg\":314,\"clouds\":38,\"rain\":1.25}",
+            "{\"dt\":1419537600,\"temp\":{\"day\":10.33,\"min\":4.86,\"max\":10.33,\"night\":4.86,\"eve\":8.93,\"morn\":5.75}," +
+                    "\"pressure\":1028.13,\"humidity\":0,\"weather\":[{\"id\":800,\"main\":\"Clear\",\"description\":\"sky is clear\",\"icon\":\"01d\"}]," +
+                    "\"speed\":2.17,\"deg\":331,\"clouds\":2}"
+    };
+
+    public static final String RECORDED_MOUNTAIN_VIEW = buildDailyPayload(RECORDED_DAYS);
+
+    /**
+     * Builds a daily forecast response with the given number of days by cycling through the
+     * recorded days.
+     */
+    public static String buildDailyPayload(int numDays) {
+        StringBuilder sb = new StringBuilder(256 + numDays * 320);
+        sb.append("{\"city\":").append(RECORDED_CITY)
+                .append(",\"cod\":\"200\",\"message\":0.0049,\"cnt\":").append(numDays)
+                .append(",\"list\":[");
+        for (int i = 0; i < numDays; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(RECORDED_DAY_LIST[i % RECORDED_DAY_LIST.length]);
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    public static InputStream asStream(String payload) {
+        try {
+            return new ByteArrayInputStream(payload.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
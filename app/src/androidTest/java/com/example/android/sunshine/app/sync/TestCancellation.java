@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/*
+    Checks that superseded ingestion stops without writing anything.
+ */
+public class TestCancellation extends AndroidTestCase {
+
+    private static final long LATENCY_MILLIS = 1000;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    public void testLocationChangeCancelsTheOldIngest() throws Exception {
+        final ForecastIngester ingester =
+                new ForecastIngester(getContext(), new SyntheticWeatherSource(7, LATENCY_MILLIS));
+        final Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ingester.ingest("syn00001");
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        });
+        thread.start();
+        // the fetch is now waiting on the source
+        Thread.sleep(LATENCY_MILLIS / 4);
+
+        assertEquals(1, ForecastIngester.cancelAllExcept("syn00002"));
+        thread.join(10000);
+
+        assertTrue("Error: the superseded ingest wasn't cancelled: " + failure[0],
+                failure[0] instanceof CancellationToken.CanceledException);
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI, null, null, null, null);
+        assertEquals("Error: a cancelled ingest wrote rows", 0, cursor.getCount());
+        cursor.close();
+
+        // a new ingest isn't affected by the old cancellation
+        assertEquals(7, new ForecastIngester(getContext(), new SyntheticWeatherSource(7, 0))
+                .ingest("syn00001").rowsWritten);
+    }
+
+    public void testCancelledIngesterDoesNothing() throws Exception {
+        ForecastIngester ingester = new ForecastIngester(getContext(), new SyntheticWeatherSource(7, 0));
+        ingester.getCancellationToken().cancel();
+        try {
+            ingester.ingest("syn00001");
+            fail("Error: a cancelled ingester still ingested");
+        } catch (CancellationToken.CanceledException e) {
+            // expected
+        }
+        try {
+            ingester.ingestHourly("syn00001");
+            fail("Error: a cancelled ingester still ingested the hourly forecast");
+        } catch (CancellationToken.CanceledException e) {
+            // expected
+        }
+    }
+
+    public void testCancelledStreamStopsReading() throws Exception {
+        CancellationToken parent = new CancellationToken();
+        CancellationToken token = new CancellationToken(parent);
+        InputStream in = token.wrap(new ByteArrayInputStream(new byte[16]));
+        assertEquals(0, in.read());
+        parent.cancel();
+        assertTrue(token.isCanceled());
+        try {
+            in.read(new byte[8]);
+            fail("Error: a cancelled stream was still read");
+        } catch (CancellationToken.CanceledException e) {
+            // expected
+        }
+    }
+
+    private void deleteAll() {
+        getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        getContext().getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+}
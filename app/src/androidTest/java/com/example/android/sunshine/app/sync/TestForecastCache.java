@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+
+/*
+    Tests the on-disk response cache: the mapped read path, LRU eviction, and replaying
+    recorded forecasts into an empty database.
+ */
+public class TestForecastCache extends AndroidTestCase {
+
+    private static final int DAYS = 7;
+    private static final long DAY_MILLIS = 24L * 3600 * 1000;
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "test_forecast_cache");
+        new ForecastCache(mDirectory, Long.MAX_VALUE).clear();
+        ForecastCache.getInstance(getContext()).clear();
+        deleteAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new ForecastCache(mDirectory, Long.MAX_VALUE).clear();
+        ForecastCache.getInstance(getContext()).clear();
+        deleteAll();
+        super.tearDown();
+    }
+
+    public void testPutAndGet() throws Exception {
+        ForecastCache cache = new ForecastCache(mDirectory, Long.MAX_VALUE);
+        String body = SyntheticWeatherSource.buildForecast("syn00001", 0, DAYS);
+        cache.put(ForecastCache.KIND_DAILY, "syn00001",
+                new ConditionalGet.Validators("\"abc\"", null), body.getBytes("UTF-8"), 1234L);
+
+        // a fresh instance reads what the first one wrote
+        ForecastCache.Entry entry = new ForecastCache(mDirectory, Long.MAX_VALUE)
+                .get(ForecastCache.KIND_DAILY, "syn00001");
+        assertNotNull(entry);
+        assertEquals("\"abc\"", entry.validators.etag);
+        assertNull(entry.validators.lastModified);
+        assertEquals(1234L, entry.fetchedAt);
+        assertEquals(body, read(entry.body));
+        assertNull(cache.get(ForecastCache.KIND_HOURLY, "syn00001"));
+        assertTrue("Error: the cached body wasn't compressed",
+                cache.getTotalBytes() < body.length());
+    }
+
+    public void testAbortedRecordingKeepsPreviousResponse() throws Exception {
+        ForecastCache cache = new ForecastCache(mDirectory, Long.MAX_VALUE);
+        String first = SyntheticWeatherSource.buildForecast("syn00001", 0, DAYS);
+        cache.put(ForecastCache.KIND_DAILY, "syn00001", null, first.getBytes("UTF-8"), 0);
+        long bytes = cache.getTotalBytes();
+
+        byte[] second = SyntheticWeatherSource.buildForecast("syn00001", 1, DAYS).getBytes("UTF-8");
+        ForecastCache.Recording recording =
+                cache.record(ForecastCache.KIND_DAILY, "syn00001", null, 0);
+        recording.write(second, 0, second.length / 2);
+        recording.abort();
+
+        assertEquals(bytes, cache.getTotalBytes());
+        assertEquals(first, read(cache.get(ForecastCache.KIND_DAILY, "syn00001").body));
+        // nothing of the partial copy is left behind
+        for (String name : mDirectory.list()) {
+            assertFalse("Error: " + name + " was left behind", name.endsWith(".tmp"));
+        }
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        ForecastCache probe = new ForecastCache(mDirectory, Long.MAX_VALUE);
+        probe.put(ForecastCache.KIND_DAILY, "syn00000", null,
+                SyntheticWeatherSource.buildForecast("syn00000", 0, DAYS).getBytes("UTF-8"), 0);
+        long entryBytes = probe.getTotalBytes();
+        probe.clear();
+
+        // room for about three locations
+        ForecastCache cache = new ForecastCache(mDirectory, entryBytes * 3 + entryBytes / 2);
+        for (int i = 1; i <= 3; i++) {
+            String setting = "syn0000" + i;
+            cache.put(ForecastCache.KIND_DAILY, setting, null,
+                    SyntheticWeatherSource.buildForecast(setting, 0, DAYS).getBytes("UTF-8"), 0);
+        }
+        // using the first one makes the second the least recently used
+        assertNotNull(cache.get(ForecastCache.KIND_DAILY, "syn00001"));
+        cache.put(ForecastCache.KIND_DAILY, "syn00004", null,
+                SyntheticWeatherSource.buildForecast("syn00004", 0, DAYS).getBytes("UTF-8"), 0);
+
+        assertNull("Error: the least recently used location survived",
+                cache.get(ForecastCache.KIND_DAILY, "syn00002"));
+        assertNotNull(cache.get(ForecastCache.KIND_DAILY, "syn00001"));
+        assertNotNull(cache.get(ForecastCache.KIND_DAILY, "syn00004"));
+        assertEquals(3, cache.getLocationSettings(ForecastCache.KIND_DAILY).size());
+    }
+
+    public void testReplayAfterWipe() throws Exception {
+        ForecastCache cache = ForecastCache.getInstance(getContext());
+        ForecastIngester live = new ForecastIngester(getContext(),
+                new CachingWeatherSource(new SyntheticWeatherSource(DAYS, 0), cache));
+        assertEquals(DAYS, live.ingest("syn00001").rowsWritten);
+        live.ingestHourly("syn00001");
+        assertEquals(1, cache.getLocationSettings(ForecastCache.KIND_DAILY).size());
+
+        deleteAll();
+        cache.markReplayPending();
+        ForecastIngester.Result result = ForecastIngester.replayCacheIfPending(getContext());
+        assertNotNull(result);
+        assertEquals("Error: the replay didn't restore the forecast", DAYS, result.rowsWritten);
+        assertEquals(DAYS, countWeatherRows());
+        assertTrue(countRows(WeatherContract.HourlyEntry.CONTENT_URI) > 0);
+
+        assertNull("Error: a replay ran twice", ForecastIngester.replayCacheIfPending(getContext()));
+    }
+
+    public void testStaleReplayDropsPastDays() throws Exception {
+        ForecastCache cache = ForecastCache.getInstance(getContext());
+        cache.put(ForecastCache.KIND_DAILY, "syn00001", null,
+                SyntheticWeatherSource.buildForecast("syn00001", 0, DAYS).getBytes("UTF-8"),
+                System.currentTimeMillis() - 2 * DAY_MILLIS);
+
+        ForecastIngester.replayCache(getContext());
+        assertEquals("Error: days before today were replayed", DAYS - 2, countWeatherRows());
+    }
+
+    private int countWeatherRows() {
+        return countRows(WeatherContract.WeatherEntry.CONTENT_URI);
+    }
+
+    private int countRows(Uri uri) {
+        Cursor cursor = getContext().getContentResolver().query(uri, null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private static String read(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toString("UTF-8");
+    }
+
+    private void deleteAll() {
+        getContext().getContentResolver().delete(WeatherContract.HourlyEntry.CONTENT_URI, null, null);
+        getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        getContext().getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+}
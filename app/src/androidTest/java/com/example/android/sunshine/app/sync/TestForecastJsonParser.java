@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Vector;
+
+public class TestForecastJsonParser extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastJsonParser.class.getSimpleName();
+
+    private static final int BENCHMARK_ITERATIONS = 20;
+
+    /*
+        The streaming parser must produce exactly the rows the old JSONObject code produced.
+     */
+    public void testMatchesDomParser() throws Exception {
+        ContentValuesCollector collector = new ContentValuesCollector();
+        new ForecastJsonParser().parse(
+                ForecastPayloads.asStream(ForecastPayloads.RECORDED_MOUNTAIN_VIEW), collector);
+
+        assertTrue("Error: the city was not reported", collector.hasLocation());
+        assertEquals(ForecastPayloads.RECORDED_CITY_NAME, collector.cityName);
+        assertEquals(ForecastPayloads.RECORDED_LAT, collector.cityLatitude);
+        assertEquals(ForecastPayloads.RECORDED_LON, collector.cityLongitude);
+
+        Vector<ContentValues> domRows =
+                parseWithDom(ForecastPayloads.asStream(ForecastPayloads.RECORDED_MOUNTAIN_VIEW));
+        Vector<ContentValues> streamRows = collector.getRows();
+
+        assertEquals("Error: streaming and DOM parsers disagree on the number of days",
+                domRows.size(), streamRows.size());
+        assertEquals(ForecastPayloads.RECORDED_DAYS, streamRows.size());
+        for (int i = 0; i < domRows.size(); i++) {
+            ContentValues expected = domRows.get(i);
+            ContentValues actual = streamRows.get(i);
+            for (String column : expected.keySet()) {
+                assertEquals("Error: column " + column + " differs on day " + i,
+                        expected.getAsString(column), actual.getAsString(column));
+            }
+        }
+    }
+
+    public void testMalformedPayloadThrows() {
+        try {
+            new ForecastJsonParser().parse(ForecastPayloads.asStream("{\"list\":[{\"temp\":"),
+                    new ContentValuesCollector());
+            fail("Error: a truncated payload should not parse");
+        } catch (Exception expected) {
+            // JsonReader throws either an IOException or an IllegalStateException
+        }
+    }
+
+    /*
+        Compares the allocations and wall time of the old read-to-String + JSONObject path with
+        the streaming parser.  The numbers are logged so they can be tracked over time; the
+        assertion only checks that streaming never allocates more than the DOM path.
+     */
+    public void testStreamingVersusDomBenchmark() throws Exception {
+        int[] dayCounts = {7, 16, 160, 1600};
+        for (int numDays : dayCounts) {
+            String payload = ForecastPayloads.buildDailyPayload(numDays);
+
+            // warm up both paths so the first iteration doesn't pay for class loading
+            parseWithDom(ForecastPayloads.asStream(payload));
+            parseWithStream(ForecastPayloads.asStream(payload));
+
+            long[] dom = measure(payload, true);
+            long[] stream = measure(payload, false);
+
+            Log.d(LOG_TAG, "cnt=" + numDays + " (" + payload.length() + " chars)" +
+                    " dom: " + dom[0] / BENCHMARK_ITERATIONS + " bytes, " +
+                    dom[1] / BENCHMARK_ITERATIONS + " allocs, " +
+                    dom[2] / BENCHMARK_ITERATIONS / 1000 + " us" +
+                    " | stream: " + stream[0] / BENCHMARK_ITERATIONS + " bytes, " +
+                    stream[1] / BENCHMARK_ITERATIONS + " allocs, " +
+                    stream[2] / BENCHMARK_ITERATIONS / 1000 + " us");
+
+            assertTrue("Error: streaming allocated more than the DOM path for cnt=" + numDays,
+                    stream[0] <= dom[0]);
+        }
+    }
+
+    /**
+     * @return {allocated bytes, allocation count, elapsed nanos} summed over all iterations
+     */
+    @SuppressWarnings("deprecation")
+    private long[] measure(String payload, boolean dom) throws Exception {
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            if (dom) {
+                parseWithDom(ForecastPayloads.asStream(payload));
+            } else {
+                parseWithStream(ForecastPayloads.asStream(payload));
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        return new long[]{Debug.getThreadAllocSize(), Debug.getThreadAllocCount(), elapsed};
+    }
+
+    private static Vector<ContentValues> parseWithStream(InputStream in) throws Exception {
+        ContentValuesCollector collector = new ContentValuesCollector();
+        new ForecastJsonParser().parse(in, collector);
+        return collector.getRows();
+    }
+
+    /*
+        The ingestion code as it was before the streaming parser: read the whole body into a
+        String, build a JSONObject tree, then copy it into ContentValues.
+     */
+    private static Vector<ContentValues> parseWithDom(InputStream in) throws Exception {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        StringBuffer buffer = new StringBuffer();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            buffer.append(line + "\n");
+        }
+
+        JSONObject forecastJson = new JSONObject(buffer.toString());
+        JSONArray weatherArray = forecastJson.getJSONArray("list");
+        // the collector only copies the values into ContentValues, like the old code did
+        ContentValuesCollector dates = new ContentValuesCollector();
+        ForecastJsonParser.Day day = new ForecastJsonParser.Day();
+
+        Vector<ContentValues> rows = new Vector<ContentValues>(weatherArray.length());
+        for (int i = 0; i < weatherArray.length(); i++) {
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+            JSONObject weatherObject = dayForecast.getJSONArray("weather").getJSONObject(0);
+            JSONObject temperatureObject = dayForecast.getJSONObject("temp");
+
+            day.pressure = dayForecast.getDouble("pressure");
+            day.humidity = dayForecast.getInt("humidity");
+            day.windSpeed = dayForecast.getDouble("speed");
+            day.windDirection = dayForecast.getDouble("deg");
+            day.description = weatherObject.getString("main");
+            day.weatherId = weatherObject.getInt("id");
+            day.high = temperatureObject.getDouble("max");
+            day.low = temperatureObject.getDouble("min");
+            dates.onDay(i, day);
+        }
+        rows.addAll(dates.getRows());
+        return rows;
+    }
+}
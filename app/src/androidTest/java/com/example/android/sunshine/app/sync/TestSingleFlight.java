@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Checks that overlapping refreshes and fetches of the same location share one fetch.
+ */
+public class TestSingleFlight extends AndroidTestCase {
+
+    private static final int REFRESHES = 20;
+    // long enough that every refresh starts while the first fetch is still running
+    private static final long LATENCY_MILLIS = 1000;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    public void testConcurrentRefreshesShareOneFetch() throws Exception {
+        final CountingSource source =
+                new CountingSource(new SyntheticWeatherSource(7, LATENCY_MILLIS));
+        final CountDownLatch start = new CountDownLatch(1);
+        final ForecastIngester.Result[] results = new ForecastIngester.Result[REFRESHES];
+        final Throwable[] failures = new Throwable[REFRESHES];
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < REFRESHES; i++) {
+            final int index = i;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        // a new ingester each time, like FetchWeatherTask and the sync adapter
+                        results[index] = new ForecastIngester(getContext(), source)
+                                .ingest("syn00001");
+                    } catch (Throwable t) {
+                        failures[index] = t;
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(30000);
+        }
+
+        for (int i = 0; i < REFRESHES; i++) {
+            assertNull("Error: refresh " + i + " failed: " + failures[i], failures[i]);
+            assertSame("Error: refresh " + i + " didn't share the result", results[0], results[i]);
+        }
+        assertEquals("Error: overlapping refreshes fetched more than once", 1, source.opens.get());
+        assertEquals(7, results[0].rowsWritten);
+
+        // once the flight has landed, the next refresh fetches again
+        new ForecastIngester(getContext(), source).ingest("syn00001");
+        assertEquals(2, source.opens.get());
+    }
+
+    public void testJoinersShareTheFailure() throws Exception {
+        final SingleFlight<String> flight = new SingleFlight<String>();
+        final CountDownLatch leaderStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final IOException failure = new IOException("boom");
+        final Throwable[] joinerFailure = new Throwable[1];
+
+        Thread leader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flight.execute("key", new SingleFlight.Call<String>() {
+                        @Override
+                        public String call() throws IOException {
+                            leaderStarted.countDown();
+                            try {
+                                release.await();
+                            } catch (InterruptedException e) {
+                                throw new IOException(e.toString());
+                            }
+                            throw failure;
+                        }
+                    });
+                } catch (IOException e) {
+                    // expected
+                }
+            }
+        });
+        leader.start();
+        leaderStarted.await();
+
+        Thread joiner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flight.execute("key", new SingleFlight.Call<String>() {
+                        @Override
+                        public String call() {
+                            throw new AssertionError("joiner ran its own call");
+                        }
+                    });
+                } catch (Throwable t) {
+                    joinerFailure[0] = t;
+                }
+            }
+        });
+        joiner.start();
+        // give the joiner time to queue up behind the leader
+        Thread.sleep(200);
+        assertTrue(flight.isInFlight("key"));
+        release.countDown();
+        leader.join(5000);
+        joiner.join(5000);
+
+        assertSame(failure, joinerFailure[0]);
+        assertFalse(flight.isInFlight("key"));
+    }
+
+    public void testJoinersRetryWhenTheLeaderIsCanceled() throws Exception {
+        final SingleFlight<String> flight = new SingleFlight<String>();
+        final CountDownLatch leaderStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final String[] joinerResult = new String[1];
+        final Throwable[] joinerFailure = new Throwable[1];
+
+        Thread leader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flight.execute("key", new SingleFlight.Call<String>() {
+                        @Override
+                        public String call() throws IOException {
+                            leaderStarted.countDown();
+                            try {
+                                release.await();
+                            } catch (InterruptedException e) {
+                                throw new IOException(e.toString());
+                            }
+                            throw new CancellationToken.CanceledException();
+                        }
+                    });
+                } catch (IOException e) {
+                    // expected
+                }
+            }
+        });
+        leader.start();
+        leaderStarted.await();
+
+        Thread joiner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    joinerResult[0] = flight.execute("key", new SingleFlight.Call<String>() {
+                        @Override
+                        public String call() {
+                            return "joiner";
+                        }
+                    });
+                } catch (Throwable t) {
+                    joinerFailure[0] = t;
+                }
+            }
+        });
+        joiner.start();
+        Thread.sleep(200);
+        release.countDown();
+        leader.join(5000);
+        joiner.join(5000);
+
+        // the leader's cancellation wasn't the joiner's, so it ran its own call
+        assertNull("Error: the joiner failed: " + joinerFailure[0], joinerFailure[0]);
+        assertEquals("joiner", joinerResult[0]);
+        assertFalse(flight.isInFlight("key"));
+    }
+
+    public void testBatchFetchJoinsRefresh() throws Exception {
+        final CountingSource source =
+                new CountingSource(new SyntheticWeatherSource(7, LATENCY_MILLIS));
+        final Throwable[] failure = new Throwable[1];
+        Thread refresh = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    new ForecastIngester(getContext(), source).ingest("syn00002");
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        });
+        refresh.start();
+        // let the refresh start its fetch, then fetch the same location as a batch sync does
+        Thread.sleep(200);
+        ForecastIngester.Forecast forecast =
+                new ForecastIngester(getContext(), source).fetch("syn00002");
+        refresh.join(30000);
+
+        assertNull("Error: the refresh failed: " + failure[0], failure[0]);
+        assertFalse(forecast.isNotModified());
+        assertEquals("Error: the batch fetch didn't join the refresh", 1, source.opens.get());
+    }
+
+    public void testRefreshAndSnapshotShareOneFetch() throws Exception {
+        final CountingSource source =
+                new CountingSource(new SyntheticWeatherSource(7, LATENCY_MILLIS));
+        final ForecastIngester.Result[] refresh = new ForecastIngester.Result[1];
+        final Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh[0] = new ForecastIngester(getContext(), source).ingest("syn00003");
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        });
+        thread.start();
+        // the sync's snapshot starts while the refresh is still fetching
+        Thread.sleep(200);
+        ForecastIngester.Result snapshot =
+                new ForecastIngester(getContext(), source).ingestSnapshot("syn00003");
+        thread.join(30000);
+
+        assertNull("Error: the refresh failed: " + failure[0], failure[0]);
+        assertEquals("Error: the refresh and the snapshot fetched the daily forecast twice",
+                1, source.opens.get());
+        assertEquals(7, refresh[0].rowsWritten);
+        // the snapshot joined the refresh, then wrote the hourly forecast itself
+        assertTrue(snapshot.hourlyWritten);
+        assertEquals(1, source.hourlyOpens.get());
+        assertTrue(countHourly("syn00003") > 0);
+    }
+
+    public void testSnapshotAndRefreshShareOneFetch() throws Exception {
+        final CountingSource source =
+                new CountingSource(new SyntheticWeatherSource(7, LATENCY_MILLIS));
+        final ForecastIngester.Result[] snapshot = new ForecastIngester.Result[1];
+        final Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    snapshot[0] = new ForecastIngester(getContext(), source)
+                            .ingestSnapshot("syn00004");
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        });
+        thread.start();
+        Thread.sleep(200);
+        ForecastIngester.Result refresh =
+                new ForecastIngester(getContext(), source).ingest("syn00004");
+        thread.join(30000);
+
+        assertNull("Error: the snapshot failed: " + failure[0], failure[0]);
+        assertEquals("Error: the snapshot and the refresh fetched the daily forecast twice",
+                1, source.opens.get());
+        assertSame("Error: the refresh didn't join the snapshot", snapshot[0], refresh);
+        assertTrue(refresh.hourlyWritten);
+        assertEquals(1, source.hourlyOpens.get());
+    }
+
+    private int countHourly(String locationSetting) {
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.HourlyEntry.buildHourlyLocation(locationSetting),
+                null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Counts the forecasts the ingester asks its source for
+    private static class CountingSource implements WeatherSource {
+        final AtomicInteger opens = new AtomicInteger();
+        final AtomicInteger hourlyOpens = new AtomicInteger();
+        private final SyntheticWeatherSource mSource;
+
+        CountingSource(SyntheticWeatherSource source) {
+            mSource = source;
+        }
+
+        @Override
+        public Response open(String locationSetting, ConditionalGet.Validators validators)
+                throws IOException {
+            opens.incrementAndGet();
+            // always serve the body so a second fetch would write again
+            return mSource.open(locationSetting, new ConditionalGet.Validators(null, null));
+        }
+
+        @Override
+        public Response openHourly(String locationSetting) throws IOException {
+            hourlyOpens.incrementAndGet();
+            return mSource.openHourly(locationSetting);
+        }
+    }
+
+    private void deleteAll() {
+        getContext().getContentResolver().delete(WeatherContract.HourlyEntry.CONTENT_URI, null, null);
+        getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        getContext().getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/*
+    Drives the sync and provider path with SyntheticWeatherSource so ingestion throughput can
+    be measured without the network.
+ */
+public class TestSyntheticWeatherSource extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestSyntheticWeatherSource.class.getSimpleName();
+
+    private static final int BENCHMARK_LOCATIONS = 50;
+    private static final int BENCHMARK_DAYS = 14;
+    private static final long BENCHMARK_LATENCY_MILLIS = 20;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll();
+        super.tearDown();
+    }
+
+    public void testForecastsAreDeterministic() throws Exception {
+        SyntheticWeatherSource source = new SyntheticWeatherSource(BENCHMARK_DAYS, 0);
+        ConditionalGet.Validators none = new ConditionalGet.Validators(null, null);
+
+        String first = read(source.open("syn00001", none));
+        assertEquals("Error: the same location and generation gave different forecasts",
+                first, read(source.open("syn00001", none)));
+        assertFalse("Error: two locations got the same forecast",
+                first.equals(read(source.open("syn00002", none))));
+
+        source.setGeneration(1);
+        assertFalse("Error: a new generation didn't change the forecast",
+                first.equals(read(source.open("syn00001", none))));
+
+        ContentValuesCollector collector = new ContentValuesCollector();
+        new ForecastJsonParser().parse(source.open("syn00001", none).getBody(), collector);
+        assertTrue(collector.hasLocation());
+        assertEquals(BENCHMARK_DAYS, collector.getRows().size());
+    }
+
+    public void testUnchangedForecastIsNotModified() throws Exception {
+        SyntheticWeatherSource source = new SyntheticWeatherSource(BENCHMARK_DAYS, 0);
+        ForecastIngester ingester = new ForecastIngester(getContext(), source);
+
+        assertEquals(BENCHMARK_DAYS, ingester.ingest("syn00001").rowsWritten);
+        ForecastIngester.Result again = ingester.ingest("syn00001");
+        assertEquals("Error: an unchanged synthetic forecast was written again",
+                0, again.rowsWritten);
+        assertEquals(0, again.locationsWritten);
+
+        source.setGeneration(1);
+        assertTrue("Error: a changed synthetic forecast wasn't written",
+                ingester.ingest("syn00001").rowsWritten > 0);
+    }
+
+    public void testEmptyBatchSync() throws Exception {
+        ForecastIngester ingester =
+                new ForecastIngester(getContext(), new SyntheticWeatherSource(BENCHMARK_DAYS, 0));
+        SyncResult syncResult = new SyncResult();
+        ForecastIngester.Result result = new SunshineSyncAdapter(getContext(), false)
+                .syncLocations(ingester, new LinkedHashSet<String>(), syncResult);
+        assertNotNull(result);
+        assertEquals(0, result.rowsWritten);
+        assertEquals(0, syncResult.stats.numIoExceptions);
+    }
+
+    /*
+        Syncs BENCHMARK_LOCATIONS locations through the same batch path the sync adapter uses
+        and logs the throughput.  Only the row count is asserted; the numbers are for tracking.
+     */
+    public void testBatchSyncThroughputBenchmark() throws Exception {
+        SyntheticWeatherSource source =
+                new SyntheticWeatherSource(BENCHMARK_DAYS, BENCHMARK_LATENCY_MILLIS);
+        ForecastIngester ingester = new ForecastIngester(getContext(), source);
+        SunshineSyncAdapter adapter = new SunshineSyncAdapter(getContext(), false);
+        Set<String> locationSettings = new LinkedHashSet<String>(
+                SyntheticWeatherSource.buildLocationSettings(BENCHMARK_LOCATIONS));
+
+        for (int generation = 0; generation < 2; generation++) {
+            source.setGeneration(generation);
+            SyncResult syncResult = new SyncResult();
+            long start = SystemClock.elapsedRealtime();
+            ForecastIngester.Result result =
+                    adapter.syncLocations(ingester, locationSettings, syncResult);
+            long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+
+            assertNotNull(result);
+            assertEquals(0, syncResult.stats.numIoExceptions);
+            Log.d(LOG_TAG, (generation == 0 ? "cold" : "changed") + " sync of " +
+                    BENCHMARK_LOCATIONS + " locations x " + BENCHMARK_DAYS + " days: " +
+                    elapsed + " ms, " + (result.rowsWritten * 1000L / elapsed) + " rows/s (" +
+                    result.timings + ")");
+        }
+
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI, new String[]{"count(*)"},
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(BENCHMARK_LOCATIONS * BENCHMARK_DAYS, cursor.getInt(0));
+        cursor.close();
+    }
+
+    private static String read(WeatherSource.Response response) throws Exception {
+        Reader reader = new InputStreamReader(response.getBody(), "UTF-8");
+        StringBuilder sb = new StringBuilder();
+        char[] buffer = new char[4096];
+        int n;
+        while ((n = reader.read(buffer)) != -1) {
+            sb.append(buffer, 0, n);
+        }
+        response.close();
+        return sb.toString();
+    }
+
+    private void deleteAll() {
+        getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        getContext().getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.SyncResult;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/*
+    Runs the shared HTTP client and the sync path against StubHttpServer's fault modes.
+ */
+public class TestWeatherHttpClient extends AndroidTestCase {
+    static final String TEST_ETAG = "\"6b8a-4f2c1e\"";
+
+    private static final int TEST_READ_TIMEOUT_MILLIS = 500;
+    private static final int TEST_MAX_ATTEMPTS = 3;
+
+    private StubHttpServer mServer;
+    private WeatherHttpClient mClient;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAll();
+        mServer = new StubHttpServer();
+        mServer.setResponse(ForecastPayloads.RECORDED_MOUNTAIN_VIEW, TEST_ETAG, null);
+        // short timeouts and backoff keep the fault tests quick
+        mClient = new WeatherHttpClient(2000, TEST_READ_TIMEOUT_MILLIS, TEST_MAX_ATTEMPTS, 20);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        deleteAll();
+        super.tearDown();
+    }
+
+    public void testFetchesReuseOneConnection() throws Exception {
+        HttpWeatherSource source = new HttpWeatherSource(mServer.getBaseUrl(), mClient);
+        ConditionalGet.Validators none = new ConditionalGet.Validators(null, null);
+        for (int i = 0; i < 3; i++) {
+            assertRecordedForecast(source.open("94043", none));
+        }
+        assertEquals(3, mServer.getRequestCount());
+        assertEquals("Error: sequential fetches didn't reuse the kept-alive connection",
+                1, mServer.getConnectionCount());
+        assertEquals("gzip", mServer.getRequestHeaders(0).get("accept-encoding"));
+    }
+
+    public void testServerErrorsAreRetried() throws Exception {
+        mServer.setFault(StubHttpServer.FAULT_SERVER_ERROR, TEST_MAX_ATTEMPTS - 1, 0);
+        HttpWeatherSource source = new HttpWeatherSource(mServer.getBaseUrl(), mClient);
+        assertRecordedForecast(source.open("94043", new ConditionalGet.Validators(null, null)));
+        assertEquals(TEST_MAX_ATTEMPTS, mServer.getRequestCount());
+    }
+
+    public void testResetConnectionIsRetried() throws Exception {
+        mServer.setFault(StubHttpServer.FAULT_RESET, 1, 0);
+        HttpWeatherSource source = new HttpWeatherSource(mServer.getBaseUrl(), mClient);
+        assertRecordedForecast(source.open("94043", new ConditionalGet.Validators(null, null)));
+        assertTrue(mServer.getRequestCount() >= 2);
+    }
+
+    public void testSlowServerTimesOut() throws Exception {
+        // slower than the read timeout on every attempt
+        mServer.setFault(StubHttpServer.FAULT_SLOW, TEST_MAX_ATTEMPTS,
+                TEST_READ_TIMEOUT_MILLIS * 4);
+        HttpWeatherSource source = new HttpWeatherSource(mServer.getBaseUrl(), mClient);
+        long start = SystemClock.elapsedRealtime();
+        try {
+            source.open("94043", new ConditionalGet.Validators(null, null));
+            fail("Error: a server slower than the read timeout should fail the fetch");
+        } catch (SocketTimeoutException expected) {
+            // what we want
+        }
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        assertEquals(TEST_MAX_ATTEMPTS, mServer.getRequestCount());
+        assertTrue("Error: the fetch hung for " + elapsed + " ms",
+                elapsed < TEST_MAX_ATTEMPTS * TEST_READ_TIMEOUT_MILLIS * 4);
+    }
+
+    /*
+        A sync against a server that keeps failing must not write anything and must tell the
+        SyncManager why, so it backs off.
+     */
+    public void testPersistentServerErrorIsReportedToSyncResult() throws Exception {
+        mServer.setFault(StubHttpServer.FAULT_SERVER_ERROR, 100, 0);
+        mServer.setRetryAfter("120");
+        ForecastIngester ingester = new ForecastIngester(getContext(),
+                new HttpWeatherSource(mServer.getBaseUrl(), mClient));
+        Set<String> locationSettings =
+                new LinkedHashSet<String>(Collections.singletonList("94043"));
+
+        SyncResult syncResult = new SyncResult();
+        ForecastIngester.Result result = new SunshineSyncAdapter(getContext(), false)
+                .syncLocations(ingester, locationSettings, syncResult);
+
+        assertEquals(0, result.rowsWritten);
+        assertEquals(1, syncResult.stats.numIoExceptions);
+        assertTrue("Error: Retry-After didn't delay the next sync",
+                syncResult.delayUntil >= System.currentTimeMillis() / 1000 + 60);
+        assertTrue(syncResult.hasSoftError());
+    }
+
+    public void testMalformedForecastIsAHardError() throws Exception {
+        mServer.setResponse("{\"city\":{\"name\":\"Nowhere\"},\"list\":[{\"temp\":{}}]}",
+                TEST_ETAG, null);
+        ForecastIngester ingester = new ForecastIngester(getContext(),
+                new HttpWeatherSource(mServer.getBaseUrl(), mClient));
+        SyncResult syncResult = new SyncResult();
+        try {
+            ingester.ingest("94043");
+            fail("Error: a forecast without descriptions should not ingest");
+        } catch (IOException e) {
+            SunshineSyncAdapter.recordFailure(syncResult, e);
+        }
+        assertEquals(1, syncResult.stats.numParseExceptions);
+        assertTrue(syncResult.hasHardError());
+    }
+
+    public void testRejectedApiKeyIsAHardError() throws Exception {
+        mServer.setFault(StubHttpServer.FAULT_UNAUTHORIZED, 100, 0);
+        SyncResult syncResult = syncOneLocation();
+
+        assertEquals("Error: a 401 was retried", 1, mServer.getRequestCount());
+        assertEquals(1, syncResult.stats.numAuthExceptions);
+        assertEquals(0, syncResult.stats.numIoExceptions);
+        assertTrue(syncResult.hasHardError());
+    }
+
+    public void testUnknownCityIsNotRetried() throws Exception {
+        mServer.setFault(StubHttpServer.FAULT_NOT_FOUND, 100, 0);
+        SyncResult syncResult = syncOneLocation();
+
+        assertEquals("Error: a 404 was retried", 1, mServer.getRequestCount());
+        assertEquals(1, syncResult.stats.numSkippedEntries);
+        assertFalse("Error: a 404 asked the SyncManager to try again",
+                syncResult.hasSoftError());
+    }
+
+    public void testClientNeedsAnAttempt() {
+        try {
+            new WeatherHttpClient(2000, TEST_READ_TIMEOUT_MILLIS, 0, 20);
+            fail("Error: a client that never tries was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private SyncResult syncOneLocation() {
+        ForecastIngester ingester = new ForecastIngester(getContext(),
+                new HttpWeatherSource(mServer.getBaseUrl(), mClient));
+        SyncResult syncResult = new SyncResult();
+        ForecastIngester.Result result = new SunshineSyncAdapter(getContext(), false)
+                .syncLocations(ingester, Collections.singleton("94043"), syncResult);
+        assertEquals(0, result.rowsWritten);
+        return syncResult;
+    }
+
+    private static void assertRecordedForecast(WeatherSource.Response response) throws Exception {
+        assertFalse(response.isNotModified());
+        assertEquals(TEST_ETAG, response.getValidators().etag);
+        ContentValuesCollector collector = new ContentValuesCollector();
+        try {
+            new ForecastJsonParser().parse(response.getBody(), collector);
+        } finally {
+            response.close();
+        }
+        assertEquals(ForecastPayloads.RECORDED_CITY_NAME, collector.cityName);
+        assertEquals(ForecastPayloads.RECORDED_DAYS, collector.getRows().size());
+    }
+
+    private void deleteAll() {
+        getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        getContext().getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A tiny HTTP/1.1 server bound to localhost, for exercising the network code without the
+ * real OpenWeatherMap.  It serves one body with fixed validators and honours
+ * If-None-Match / If-Modified-Since with a 304.  Connections are kept alive and the body is
+ * gzipped when the client asks for it.  Every request's headers are recorded so tests can
+ * check what the client sent.
+ * <p/>
+ * {@link #setFault} makes the next few requests misbehave: answer late, drop the connection
+ * without answering, or answer 503, 401 or 404.
+ */
+public class StubHttpServer {
+
+    public static final int FAULT_NONE = 0;
+    // sleep for the fault delay before answering
+    public static final int FAULT_SLOW = 1;
+    // close the socket with an RST instead of answering
+    public static final int FAULT_RESET = 2;
+    // answer 503 Service Unavailable, with Retry-After if one was set
+    public static final int FAULT_SERVER_ERROR = 3;
+    // answer 401 Unauthorized, as OpenWeatherMap does for a bad API key
+    public static final int FAULT_UNAUTHORIZED = 4;
+    // answer 404 Not Found, as OpenWeatherMap does for a city it doesn't know
+    public static final int FAULT_NOT_FOUND = 5;
+
+    private final ServerSocket mServerSocket;
+    private final Thread mThread;
+    private final List<Map<String, String>> mRequests = new ArrayList<Map<String, String>>();
+    private final List<Socket> mSockets = new ArrayList<Socket>();
+
+    private volatile byte[] mBody = new byte[0];
+    private volatile String mEtag;
+    private volatile String mLastModified;
+
+    private int mFault = FAULT_NONE;
+    private int mFaultsLeft;
+    private long mFaultDelayMillis;
+    private String mRetryAfter;
+
+    public StubHttpServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "StubHttpServer");
+        mThread.start();
+    }
+
+    /**
+     * @return a base URL (ending in "?") that the code under test can append query
+     * parameters to.
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/data/2.5/forecast/daily?";
+    }
+
+    public void setResponse(String body, String etag, String lastModified) {
+        try {
+            mBody = body.getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        mEtag = etag;
+        mLastModified = lastModified;
+    }
+
+    /**
+     * Makes the next count requests fail the given way.
+     *
+     * @param delayMillis how long FAULT_SLOW waits before answering
+     */
+    public synchronized void setFault(int fault, int count, long delayMillis) {
+        mFault = fault;
+        mFaultsLeft = count;
+        mFaultDelayMillis = delayMillis;
+    }
+
+    /**
+     * @param retryAfter value of the Retry-After header sent with FAULT_SERVER_ERROR, or null
+     */
+    public synchronized void setRetryAfter(String retryAfter) {
+        mRetryAfter = retryAfter;
+    }
+
+    public synchronized int getRequestCount() {
+        return mRequests.size();
+    }
+
+    /**
+     * @return the headers of the request, with lower case names
+     */
+    public synchronized Map<String, String> getRequestHeaders(int index) {
+        return mRequests.get(index);
+    }
+
+    /**
+     * @return how many TCP connections clients have opened so far
+     */
+    public synchronized int getConnectionCount() {
+        return mSockets.size();
+    }
+
+    public void shutdown() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+        synchronized (this) {
+            // kept-alive connections would otherwise sit in readLine forever
+            for (Socket socket : mSockets) {
+                closeQuietly(socket);
+            }
+        }
+        try {
+            mThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serve() {
+        while (!mServerSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            synchronized (this) {
+                mSockets.add(socket);
+            }
+            // one thread per connection, so a slow or kept-alive connection doesn't hold up
+            // the next one
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (handle(socket)) {
+                            // keep serving requests on this connection
+                        }
+                    } catch (IOException e) {
+                        // the client went away
+                    } finally {
+                        closeQuietly(socket);
+                    }
+                }
+            }, "StubHttpServer-connection").start();
+        }
+    }
+
+    /**
+     * Serves one request.
+     *
+     * @return true if the connection can take another request
+     */
+    protected boolean handle(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        String requestLine = readLine(in);
+        if (requestLine == null) {
+            return false;
+        }
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put(":request", requestLine);
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                        line.substring(colon + 1).trim());
+            }
+        }
+
+        int fault;
+        long faultDelayMillis;
+        String retryAfter;
+        synchronized (this) {
+            mRequests.add(headers);
+            fault = mFaultsLeft > 0 ? mFault : FAULT_NONE;
+            if (fault != FAULT_NONE) {
+                mFaultsLeft--;
+            }
+            faultDelayMillis = mFaultDelayMillis;
+            retryAfter = mRetryAfter;
+        }
+
+        OutputStream out = socket.getOutputStream();
+        if (fault == FAULT_RESET) {
+            socket.setSoLinger(true, 0);
+            socket.close();
+            return false;
+        }
+        if (fault == FAULT_SLOW) {
+            try {
+                Thread.sleep(faultDelayMillis);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        if (fault == FAULT_SERVER_ERROR || fault == FAULT_UNAUTHORIZED ||
+                fault == FAULT_NOT_FOUND) {
+            String status = fault == FAULT_SERVER_ERROR ? "503 Service Unavailable" :
+                    fault == FAULT_UNAUTHORIZED ? "401 Unauthorized" : "404 Not Found";
+            String error = "{\"cod\":\"" + status.substring(0, 3) + "\"}";
+            StringBuilder head = new StringBuilder("HTTP/1.1 " + status + "\r\n");
+            if (fault == FAULT_SERVER_ERROR && retryAfter != null) {
+                head.append("Retry-After: ").append(retryAfter).append("\r\n");
+            }
+            head.append("Content-Type: application/json; charset=utf-8\r\n");
+            head.append("Content-Length: ").append(error.length()).append("\r\n\r\n");
+            head.append(error);
+            out.write(head.toString().getBytes("US-ASCII"));
+            out.flush();
+            return true;
+        }
+
+        String etag = mEtag;
+        String lastModified = mLastModified;
+        boolean notModified =
+                (etag != null && etag.equals(headers.get("if-none-match"))) ||
+                (etag == null && lastModified != null &&
+                        lastModified.equals(headers.get("if-modified-since")));
+
+        StringBuilder head = new StringBuilder();
+        head.append(notModified ? "HTTP/1.1 304 Not Modified\r\n" : "HTTP/1.1 200 OK\r\n");
+        if (etag != null) head.append("ETag: ").append(etag).append("\r\n");
+        if (lastModified != null) head.append("Last-Modified: ").append(lastModified).append("\r\n");
+        if (notModified) {
+            head.append("\r\n");
+            out.write(head.toString().getBytes("US-ASCII"));
+        } else {
+            byte[] body = mBody;
+            String acceptEncoding = headers.get("accept-encoding");
+            if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                body = gzip(body);
+                head.append("Content-Encoding: gzip\r\n");
+            }
+            head.append("Content-Type: application/json; charset=utf-8\r\n");
+            head.append("Content-Length: ").append(body.length).append("\r\n\r\n");
+            out.write(head.toString().getBytes("US-ASCII"));
+            out.write(body);
+        }
+        out.flush();
+        return !"close".equalsIgnoreCase(headers.get("connection"));
+    }
+
+    // Reads a CRLF terminated line byte by byte, so nothing past the headers is buffered away
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = sb.length();
+                if (length > 0 && sb.charAt(length - 1) == '\r') {
+                    sb.setLength(length - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        gzip.write(body);
+        gzip.close();
+        return bytes.toByteArray();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+}
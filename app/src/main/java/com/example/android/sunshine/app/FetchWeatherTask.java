@@ -15,31 +15,17 @@
  */
 package com.example.android.sunshine.app;
 
-import android.annotation.TargetApi;
-import android.content.ContentUris;
-import android.content.ContentValues;
+import android.content.ContentResolver;
 import android.content.Context;
-import android.database.Cursor;
-import android.net.Uri;
 import android.os.AsyncTask;
-import android.os.Build;
-import android.text.format.Time;
 import android.util.Log;
 
-import com.example.android.sunshine.app.data.WeatherContract;
-import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.sync.CancellationToken;
+import com.example.android.sunshine.app.sync.ForecastIngester;
+import com.example.android.sunshine.app.sync.HttpWeatherSource;
+import com.example.android.sunshine.app.sync.WriteSession;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Vector;
 
 public class FetchWeatherTask extends AsyncTask<String, Void, Void> {
 
@@ -47,13 +33,28 @@ public class FetchWeatherTask extends AsyncTask<String, Void, Void> {
 
     //private ArrayAdapter<String> mForecastAdapter;
     private final Context mContext;
+    private final ForecastIngester mIngester;
 
     //public FetchWeatherTask(Context context, ArrayAdapter<String> forecastAdapter) {
     public FetchWeatherTask(Context context) {
-        mContext = context;
+        this(context, HttpWeatherSource.FORECAST_BASE_URL);
         //mForecastAdapter = forecastAdapter;
     }
 
+    // Lets the tests point the task at a local server
+    FetchWeatherTask(Context context, String forecastBaseUrl) {
+        mContext = context;
+        mIngester = new ForecastIngester(context, forecastBaseUrl);
+    }
+
+    /**
+     * Stops the fetch at its next read or stage boundary, without writing anything more.
+     */
+    public void cancelFetch() {
+        mIngester.getCancellationToken().cancel();
+        cancel(false);
+    }
+
     private boolean DEBUG = true;
 
     /* The date/time conversion code is going to be moved outside the asynctask later,
@@ -106,63 +107,8 @@ public class FetchWeatherTask extends AsyncTask<String, Void, Void> {
      * @param lon             the longitude of the city
      * @return the row ID of the added location.
      */
-    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
     long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        // Students: First, check if the location with this city name exists in the db
-        // If it exists, return the current ID
-        // Otherwise, insert it using the content resolver and the base URI
-        String[] selectionArgs = {locationSetting};
-        String[] columns = {WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, WeatherContract.LocationEntry.COLUMN_CITY_NAME, WeatherContract.LocationEntry.COLUMN_COORD_LAT, WeatherContract.LocationEntry.COLUMN_COORD_LONG};
-
-        long locationId;
-        Cursor cursor = mContext.getContentResolver().query(
-                WeatherContract.LocationEntry.CONTENT_URI, //table
-                new String[]{WeatherContract.LocationEntry._ID}, //columns to return
-                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?", //selection
-                new String[]{locationSetting}, //Selection arguments
-                null,
-                null
-        );
-
-
-        //If the cursor returned a valid position, return the ID of the row the cursor is pointing at
-        if (cursor.moveToFirst()) {
-            locationId = cursor.getLong(cursor.getColumnIndex(WeatherContract.LocationEntry._ID));
-            //return cursor.getLong(cursor.getColumnIndex(WeatherContract.LocationEntry._ID));
-        }
-        //if it did not return location, create the location's content values and insert them in to the table
-        else {
-            //populate the content values with the values passed to addLocation
-            ContentValues values = new ContentValues();
-            values.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
-            values.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
-            values.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
-            values.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
-
-
-            //insert the new values in to the location table
-            Uri insertedUri = mContext.getContentResolver().insert(WeatherContract.LocationEntry.CONTENT_URI, values);
-
-            //query for the new values just added
-            Cursor insertedCursor = mContext.getContentResolver().query(
-                    WeatherContract.LocationEntry.CONTENT_URI, //table
-                    new String[]{WeatherContract.LocationEntry._ID}, //columns to return
-                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?", //selection
-                    new String[]{locationSetting}, //Selection arguments
-                    null,
-                    null
-            );
-            //The ID is at the end of the returned URI
-            locationId = ContentUris.parseId(insertedUri);
-//            if (insertedCursor.moveToFirst()){
-//                return insertedCursor.getLong(insertedCursor.getColumnIndex(WeatherContract.LocationEntry._ID));
-//            }
-
-
-        }
-        //Close cursor and return long for where cursor is pointing to
-        cursor.close();
-        return locationId;
+        return mIngester.addLocation(locationSetting, cityName, lat, lon);
     }
 
     /*
@@ -186,179 +132,6 @@ public class FetchWeatherTask extends AsyncTask<String, Void, Void> {
 //        return resultStrs;
 //    }
 
-    /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
-     * <p/>
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
-     */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                            String locationSetting)
-            throws JSONException {
-
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
-
-        // These are the names of the JSON objects that need to be extracted.
-
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
-
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
-
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
-
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
-
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
-
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
-
-        try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
-
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
-
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
-
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
-
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
-
-            Time dayTime = new Time();
-            dayTime.setToNow();
-
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
-
-            // now we work exclusively in UTC
-            dayTime = new Time();
-
-            for (int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
-
-                double high;
-                double low;
-
-                String description;
-                int weatherId;
-
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
-
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay + i);
-
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
-
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
-
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
-
-                ContentValues weatherValues = new ContentValues();
-
-                weatherValues.put(WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, weatherId);
-
-                cVVector.add(weatherValues);
-            }
-            int inserted = 0;
-
-            // add to database
-            if (cVVector.size() > 0) {
-                // Student: call bulkInsert to add the weatherEntries to the database here
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                inserted = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, cVVector.toArray(cvArray));
-            }
-
-            Log.d(LOG_TAG, "FetchWeatherTask Complete. " + inserted + " Inserted");
-
-//
-//            // Sort order:  Ascending, by date.
-//            String sortOrder = WeatherEntry.COLUMN_DATE + " ASC";
-//            Uri weatherForLocationUri = WeatherEntry.buildWeatherLocationWithStartDate(
-//                    locationSetting, System.currentTimeMillis());
-//
-//            // Students: Uncomment the next lines to display what what you stored in the bulkInsert
-//
-//            Cursor cur = mContext.getContentResolver().query(weatherForLocationUri,
-//                    null, null, null, sortOrder);
-//
-//            cVVector = new Vector<ContentValues>(cur.getCount());
-//            if ( cur.moveToFirst() ) {
-//                do {
-//                    ContentValues cv = new ContentValues();
-//                    DatabaseUtils.cursorRowToContentValues(cur, cv);
-//                    cVVector.add(cv);
-//                } while (cur.moveToNext());
-//            }
-//
-//            Log.d(LOG_TAG, "FetchWeatherTask Complete. " + cVVector.size() + " Inserted");
-//
-//            String[] resultStrs = convertContentValuesToUXFormat(cVVector);
-//            return resultStrs;
-
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-        }
-        //return null;
-    }
-
-
     @Override
     protected Void doInBackground(String... params) {
 
@@ -368,90 +141,23 @@ public class FetchWeatherTask extends AsyncTask<String, Void, Void> {
         }
         String locationQuery = params[0];
 
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
-
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
-
-        String format = "json";
-        String units = "metric";
-        int numDays = 14;
-
+        ContentResolver resolver = mContext.getContentResolver();
+        long session = WriteSession.begin(resolver);
         try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APP_ID = "APPID";
-            final String APP_KEY = "99c1da3dd06bf5bda6d3d333273554c8";
-
-            Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
-                    .appendQueryParameter(QUERY_PARAM, params[0]+",USA")
-                    .appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APP_ID, APP_KEY)
-                    .build();
-
-            URL url = new URL(builtUri.toString());
-            Log.d(LOG_TAG, "The URL used to fetch the JSON is: "+url);
+            // Shows the last forecasts again right away if the database was wiped, even offline
+            ForecastIngester.replayCacheIfPending(mContext);
 
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
-
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return null;
-            }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
-            }
-
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                return null;
-            }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
-            Log.d("JSON", "The buffer is showing: "+forecastJsonStr);
+            ForecastIngester.Result result = mIngester.ingest(locationQuery);
+            Log.d(LOG_TAG, "FetchWeatherTask Complete. " + result.rowsWritten + " Inserted");
+        } catch (CancellationToken.CanceledException e) {
+            Log.d(LOG_TAG, "FetchWeatherTask for " + locationQuery + " cancelled");
         } catch (IOException e) {
             Log.e(LOG_TAG, "Error ", e);
             // If the code didn't successfully get the weather data, there's no point in attemping
             // to parse it.
-            return null;
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, "Error: "+e);
-            e.printStackTrace();
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
-                }
-            }
+            // The user is waiting on this one, so no debounce
+            WriteSession.end(resolver, session, 0);
         }
 
 //        try {
@@ -460,7 +166,6 @@ public class FetchWeatherTask extends AsyncTask<String, Void, Void> {
 //            Log.e(LOG_TAG, e.getMessage(), e);
 //            e.printStackTrace();
 //        }
-        // This will only happen if there was an error getting or parsing the forecast.
         return null;
     }
 
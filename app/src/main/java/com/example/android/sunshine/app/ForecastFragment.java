@@ -36,6 +36,7 @@ import android.widget.AdapterView;
 import android.widget.ListView;
 
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.sync.ForecastIngester;
 
 /**
  * Encapsulates fetching the forecast and displaying it as a {@link ListView} layout.
@@ -44,6 +45,9 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
 
     private ForecastAdapter mForecastAdapter;
     private static final int MY_LOADER_ID = 666;
+    // the last fetch started, and the location it is for
+    private FetchWeatherTask mWeatherTask;
+    private String mWeatherTaskLocation;
 
     private static final String[] FORECAST_COLUMNS = {
             // In this case the id needs to be fully qualified with a table name, since
@@ -87,6 +91,9 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
     }
 
     public void onLocationChanged(){
+        // Whatever is still fetching the old location is wasted work now, and would hold the
+        // network and the database write lock the new one needs
+        ForecastIngester.cancelAllExcept(Utility.getPreferredLocation(getActivity()));
         updateWeather();
         getLoaderManager().restartLoader(MY_LOADER_ID, null, this);
     }
@@ -164,6 +171,12 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getActivity());
         String location = prefs.getString(getString(R.string.pref_location_key),
                 getString(R.string.pref_location_default));
+        // A task for the same location is left to finish: the new one joins its fetch
+        if (mWeatherTask != null && !location.equals(mWeatherTaskLocation)) {
+            mWeatherTask.cancelFetch();
+        }
+        mWeatherTask = weatherTask;
+        mWeatherTaskLocation = location;
         weatherTask.execute(location);
     }
 
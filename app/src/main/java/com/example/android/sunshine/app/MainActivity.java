@@ -26,6 +26,7 @@ import android.view.Menu;
 import android.view.MenuItem;
 
 import com.example.android.sunshine.app.data.DetailFragment;
+import com.example.android.sunshine.app.sync.MaintenanceService;
 
 public class MainActivity extends ActionBarActivity {
 
@@ -39,6 +40,7 @@ public class MainActivity extends ActionBarActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         mLocation = Utility.getPreferredLocation(this);
+        MaintenanceService.schedule(this);
 
         setContentView(R.layout.activity_main);
 
@@ -69,7 +71,6 @@ public class MainActivity extends ActionBarActivity {
         super.onResume();
         String location = Utility.getPreferredLocation(this);
 
-<<<<<<< HEAD
         if (location != null && !location.equals(mLocation)) {
             ForecastFragment ff = (ForecastFragment) getSupportFragmentManager().findFragmentById(R.id.fragment_forecast);
             if (null != ff) {
@@ -80,17 +81,6 @@ public class MainActivity extends ActionBarActivity {
                 df.onLocationChanged(location);
             }
             mLocation = location;
-=======
-        if (location != null && location != mLocation){
-            ForecastFragment ff = (ForecastFragment) getSupportFragmentManager().findFragmentById(R.id.fragment_forecast);
-            if (null != ff){
-                ff.onLocationChanged();
-            }
-            DetailFragment df = (DetailFragment) getSupportFragmentManager().findFragmentByTag(DETAILFRAGMENT_TAG);
-            if (null !=df){
-                df.onLocationChanged(location);
-            }
->>>>>>> parent of 2a07f45... Merge branch 'sw600'
         }
 //        if (Utility.getPreferredLocation(this) != mLocation) {
 //            ForecastFragment ff = (ForecastFragment) getSupportFragmentManager().findFragmentById(R.id.fragment_forecast);
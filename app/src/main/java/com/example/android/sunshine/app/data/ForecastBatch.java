@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Arrays;
+
+/**
+ * Rows for the weather table held column by column in primitive arrays, instead of one
+ * ContentValues (a HashMap of boxed values) per row.  The parser appends to it, the ingester
+ * fills in locations and dates, and WeatherProvider binds the columns straight into compiled
+ * statements, so a forecast crosses the whole pipeline without boxing.
+ * <p/>
+ * Dates must already be normalized with {@link WeatherContract#normalizeDate}; the provider
+ * doesn't normalize them again.
+ */
+public class ForecastBatch implements Parcelable {
+
+    private int mSize;
+    private long[] mLocationIds;
+    private long[] mDates;
+    private double[] mHighs;
+    private double[] mLows;
+    private double[] mHumidities;
+    private double[] mPressures;
+    private double[] mWindSpeeds;
+    private double[] mDegrees;
+    private int[] mWeatherIds;
+    private String[] mDescriptions;
+
+    public ForecastBatch() {
+        this(16);
+    }
+
+    public ForecastBatch(int capacity) {
+        allocate(Math.max(capacity, 1));
+    }
+
+    private void allocate(int capacity) {
+        mLocationIds = new long[capacity];
+        mDates = new long[capacity];
+        mHighs = new double[capacity];
+        mLows = new double[capacity];
+        mHumidities = new double[capacity];
+        mPressures = new double[capacity];
+        mWindSpeeds = new double[capacity];
+        mDegrees = new double[capacity];
+        mWeatherIds = new int[capacity];
+        mDescriptions = new String[capacity];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mLocationIds.length) {
+            return;
+        }
+        capacity = Math.max(capacity, mLocationIds.length * 2);
+        mLocationIds = Arrays.copyOf(mLocationIds, capacity);
+        mDates = Arrays.copyOf(mDates, capacity);
+        mHighs = Arrays.copyOf(mHighs, capacity);
+        mLows = Arrays.copyOf(mLows, capacity);
+        mHumidities = Arrays.copyOf(mHumidities, capacity);
+        mPressures = Arrays.copyOf(mPressures, capacity);
+        mWindSpeeds = Arrays.copyOf(mWindSpeeds, capacity);
+        mDegrees = Arrays.copyOf(mDegrees, capacity);
+        mWeatherIds = Arrays.copyOf(mWeatherIds, capacity);
+        mDescriptions = Arrays.copyOf(mDescriptions, capacity);
+    }
+
+    /**
+     * Appends a row.
+     *
+     * @return its index
+     */
+    public int add(long locationId, long date, double high, double low, double humidity,
+                   double pressure, double windSpeed, double degrees, int weatherId,
+                   String description) {
+        ensureCapacity(mSize + 1);
+        int i = mSize++;
+        mLocationIds[i] = locationId;
+        mDates[i] = date;
+        mHighs[i] = high;
+        mLows[i] = low;
+        mHumidities[i] = humidity;
+        mPressures[i] = pressure;
+        mWindSpeeds[i] = windSpeed;
+        mDegrees[i] = degrees;
+        mWeatherIds[i] = weatherId;
+        mDescriptions[i] = description;
+        return i;
+    }
+
+    /**
+     * Appends row i of another batch, with the given location and date.
+     */
+    public int add(ForecastBatch other, int i, long locationId, long date) {
+        return add(locationId, date, other.mHighs[i], other.mLows[i], other.mHumidities[i],
+                other.mPressures[i], other.mWindSpeeds[i], other.mDegrees[i],
+                other.mWeatherIds[i], other.mDescriptions[i]);
+    }
+
+    /**
+     * @return true if row i here and row j of the other batch have the same weather, whatever
+     * their locations and dates.
+     */
+    public boolean sameWeather(int i, ForecastBatch other, int j) {
+        return Double.compare(mHighs[i], other.mHighs[j]) == 0 &&
+                Double.compare(mLows[i], other.mLows[j]) == 0 &&
+                Double.compare(mHumidities[i], other.mHumidities[j]) == 0 &&
+                Double.compare(mPressures[i], other.mPressures[j]) == 0 &&
+                Double.compare(mWindSpeeds[i], other.mWindSpeeds[j]) == 0 &&
+                Double.compare(mDegrees[i], other.mDegrees[j]) == 0 &&
+                mWeatherIds[i] == other.mWeatherIds[j] &&
+                (mDescriptions[i] == null ? other.mDescriptions[j] == null :
+                        mDescriptions[i].equals(other.mDescriptions[j]));
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        // drop the strings so they can be collected; the primitives are just overwritten
+        Arrays.fill(mDescriptions, 0, mSize, null);
+        mSize = 0;
+    }
+
+    public long getLocationId(int i) {
+        return mLocationIds[i];
+    }
+
+    public long getDate(int i) {
+        return mDates[i];
+    }
+
+    public double getHigh(int i) {
+        return mHighs[i];
+    }
+
+    public double getLow(int i) {
+        return mLows[i];
+    }
+
+    public double getHumidity(int i) {
+        return mHumidities[i];
+    }
+
+    public double getPressure(int i) {
+        return mPressures[i];
+    }
+
+    public double getWindSpeed(int i) {
+        return mWindSpeeds[i];
+    }
+
+    public double getDegrees(int i) {
+        return mDegrees[i];
+    }
+
+    public int getWeatherId(int i) {
+        return mWeatherIds[i];
+    }
+
+    public String getDescription(int i) {
+        return mDescriptions[i];
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mSize);
+        for (int i = 0; i < mSize; i++) {
+            dest.writeLong(mLocationIds[i]);
+            dest.writeLong(mDates[i]);
+            dest.writeDouble(mHighs[i]);
+            dest.writeDouble(mLows[i]);
+            dest.writeDouble(mHumidities[i]);
+            dest.writeDouble(mPressures[i]);
+            dest.writeDouble(mWindSpeeds[i]);
+            dest.writeDouble(mDegrees[i]);
+            dest.writeInt(mWeatherIds[i]);
+            dest.writeString(mDescriptions[i]);
+        }
+    }
+
+    public static final Parcelable.Creator<ForecastBatch> CREATOR =
+            new Parcelable.Creator<ForecastBatch>() {
+                @Override
+                public ForecastBatch createFromParcel(Parcel source) {
+                    int size = source.readInt();
+                    ForecastBatch batch = new ForecastBatch(size);
+                    for (int i = 0; i < size; i++) {
+                        batch.add(source.readLong(), source.readLong(), source.readDouble(),
+                                source.readDouble(), source.readDouble(), source.readDouble(),
+                                source.readDouble(), source.readDouble(), source.readInt(),
+                                source.readString());
+                    }
+                    return batch;
+                }
+
+                @Override
+                public ForecastBatch[] newArray(int size) {
+                    return new ForecastBatch[size];
+                }
+            };
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import java.util.HashMap;
+
+/**
+ * Process-wide map from location setting to the _ID of its row in the location table, so
+ * ingestion can resolve a location without a query once it has seen it.
+ * <p/>
+ * WeatherProvider calls {@link #invalidate} whenever a write could remove a location or
+ * change its setting, inside that write's transaction so the bump is visible before the
+ * commit.  Every invalidation bumps a generation; a lookup that started before one must not
+ * store what it found, which {@link #put} checks.  ForecastIngester sends the ids it has
+ * cached, with their generation, along with METHOD_INGEST, and the provider uses them instead
+ * of looking the locations up while that generation is current.
+ */
+public class LocationIdCache {
+
+    private static final HashMap<String, Long> sIds = new HashMap<String, Long>();
+    private static int sGeneration;
+
+    private LocationIdCache() {
+    }
+
+    /**
+     * @return the cached _ID, or -1 if the location hasn't been resolved since the last
+     * invalidation.
+     */
+    public static synchronized long get(String locationSetting) {
+        Long id = sIds.get(locationSetting);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @return the generation to hand to {@link #put} once the lookup is done.
+     */
+    public static synchronized int getGeneration() {
+        return sGeneration;
+    }
+
+    /**
+     * Caches a looked up id, unless the cache was invalidated since generation was read.
+     */
+    public static synchronized void put(String locationSetting, long id, int generation) {
+        if (generation == sGeneration) {
+            sIds.put(locationSetting, id);
+        }
+    }
+
+    public static synchronized void invalidate() {
+        sIds.clear();
+        sGeneration++;
+    }
+}
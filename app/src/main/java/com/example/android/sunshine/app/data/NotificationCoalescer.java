@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds WeatherProvider's change notifications while a write session is open, so a sync that
+ * writes through several provider calls (replaying the cache, the daily forecast, the hourly
+ * one, its metrics) makes every CursorLoader reload once, after the last write, instead of
+ * once per call.
+ * <p/>
+ * Every session has a token, which {@link #beginSession} hands out and {@link #endSession}
+ * takes back, so ending a session that has already gone can't end someone else's.  While any
+ * session is open every notification waits, and when the last one ends each URI is sent
+ * once.  A URI is dropped altogether when one of its ancestors is sent too, since observers
+ * of the descendant hear the ancestor's notification anyway.  An ending session may ask for a
+ * debounce window: the URIs are then sent that long after it, and a session that begins and
+ * ends in the meantime pushes the window back, so syncs that run back to back are delivered
+ * together.
+ * <p/>
+ * With no session open and no window running, a notification is sent right away.
+ */
+class NotificationCoalescer {
+
+    interface Sender {
+        void send(Uri uri);
+    }
+
+    // A session that has seen no writes for this long is taken to be abandoned by a client
+    // that died before ending it, and must not silence the provider for good.  Writes (and
+    // begins) push the deadline of every open session back, since the provider can't tell
+    // which session a write belongs to.
+    static final long MAX_IDLE_MILLIS = 30 * 1000;
+
+    private final Sender mSender;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LinkedHashSet<Uri> mPending = new LinkedHashSet<Uri>();
+    // open sessions, by token, with the uptime at which each is given up on
+    private final HashMap<Long, Long> mSessions = new HashMap<Long, Long>();
+    private long mNextToken = 1;
+    private long mDebounceMillis;
+    private boolean mWindowRunning;
+    private boolean mExpiryPosted;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (NotificationCoalescer.this) {
+                mWindowRunning = false;
+            }
+            flush();
+        }
+    };
+
+    private final Runnable mExpireSessions = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (NotificationCoalescer.this) {
+                mExpiryPosted = false;
+                long now = SystemClock.uptimeMillis();
+                Iterator<Long> deadlines = mSessions.values().iterator();
+                while (deadlines.hasNext()) {
+                    if (deadlines.next() <= now) {
+                        deadlines.remove();
+                    }
+                }
+                if (!mSessions.isEmpty()) {
+                    // the rest saw writes since this was posted
+                    postExpiry();
+                    return;
+                }
+            }
+            flush();
+        }
+    };
+
+    NotificationCoalescer(Sender sender) {
+        mSender = sender;
+    }
+
+    void notifyChange(Uri uri) {
+        synchronized (this) {
+            if (!mSessions.isEmpty() || mWindowRunning) {
+                extendSessions();
+                mPending.add(uri);
+                return;
+            }
+        }
+        mSender.send(uri);
+    }
+
+    /**
+     * Tells the open sessions that a write happened, so none of them expires while their
+     * client is still busy.
+     */
+    synchronized void onWrite() {
+        extendSessions();
+    }
+
+    /**
+     * @return the token to hand to {@link #endSession}
+     */
+    synchronized long beginSession() {
+        long token = mNextToken++;
+        mSessions.put(token, 0L);
+        extendSessions();
+        if (!mExpiryPosted) {
+            postExpiry();
+        }
+        return token;
+    }
+
+    /**
+     * @param token          what {@link #beginSession} returned; a session that has expired or
+     *                       already ended is ignored
+     * @param debounceMillis how long to hold the notifications after the last session ends;
+     *                       0 sends them right away
+     */
+    void endSession(long token, long debounceMillis) {
+        synchronized (this) {
+            if (mSessions.remove(token) == null) {
+                return;
+            }
+            mDebounceMillis = Math.max(mDebounceMillis, debounceMillis);
+            if (!mSessions.isEmpty()) {
+                return;
+            }
+            mHandler.removeCallbacks(mExpireSessions);
+            mExpiryPosted = false;
+            if (mDebounceMillis > 0) {
+                mWindowRunning = true;
+                restartWindow();
+                return;
+            }
+        }
+        flush();
+    }
+
+    // Called with the lock held
+    private void extendSessions() {
+        long deadline = SystemClock.uptimeMillis() + MAX_IDLE_MILLIS;
+        for (Map.Entry<Long, Long> session : mSessions.entrySet()) {
+            session.setValue(deadline);
+        }
+    }
+
+    // Called with the lock held; posts the expiry check for the earliest deadline
+    private void postExpiry() {
+        long earliest = Long.MAX_VALUE;
+        for (long deadline : mSessions.values()) {
+            earliest = Math.min(earliest, deadline);
+        }
+        mHandler.postAtTime(mExpireSessions, earliest);
+        mExpiryPosted = true;
+    }
+
+    // Called with the lock held
+    private void restartWindow() {
+        mHandler.removeCallbacks(mFlush);
+        mHandler.postDelayed(mFlush, mDebounceMillis);
+    }
+
+    private void flush() {
+        List<Uri> uris;
+        synchronized (this) {
+            if (!mSessions.isEmpty() || mWindowRunning) {
+                // a session began since this was scheduled; its end flushes
+                return;
+            }
+            uris = withoutDescendants(mPending);
+            mPending.clear();
+            mDebounceMillis = 0;
+        }
+        for (Uri uri : uris) {
+            mSender.send(uri);
+        }
+    }
+
+    private static List<Uri> withoutDescendants(LinkedHashSet<Uri> uris) {
+        List<Uri> result = new ArrayList<Uri>(uris.size());
+        for (Uri uri : uris) {
+            boolean covered = false;
+            for (Uri other : uris) {
+                if (other != uri && isAncestor(other, uri)) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                result.add(uri);
+            }
+        }
+        return result;
+    }
+
+    // Observers are matched on the authority and the path; the query doesn't count
+    private static boolean isAncestor(Uri ancestor, Uri uri) {
+        if (!ancestor.getAuthority().equals(uri.getAuthority())) {
+            return false;
+        }
+        List<String> ancestorPath = ancestor.getPathSegments();
+        List<String> path = uri.getPathSegments();
+        return ancestorPath.size() < path.size() &&
+                ancestorPath.equals(path.subList(0, ancestorPath.size()));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Keeps WeatherProvider's compiled write and lookup statements between calls, so a row
+ * costs a bind and a step instead of building, compiling and finalizing its SQL.
+ * <p/>
+ * A statement holds its bindings, so two binder threads can't share one.  Callers check a
+ * statement out with {@link #acquire} and hand it back with {@link #release}; a thread that
+ * finds none idle compiles its own, and at most {@link #MAX_IDLE} of each SQL are kept.
+ * Statements belong to the database they were compiled on, so the cache is emptied when
+ * that changes (the helper reopened it) and when the provider shuts down.
+ */
+class StatementCache {
+
+    private static final int MAX_IDLE = 4;
+
+    private final HashMap<String, ArrayList<SQLiteStatement>> mIdle =
+            new HashMap<String, ArrayList<SQLiteStatement>>();
+    private SQLiteDatabase mDb;
+
+    SQLiteStatement acquire(SQLiteDatabase db, String sql) {
+        synchronized (this) {
+            if (db != mDb) {
+                close();
+                mDb = db;
+            }
+            ArrayList<SQLiteStatement> idle = mIdle.get(sql);
+            if (idle != null && !idle.isEmpty()) {
+                return idle.remove(idle.size() - 1);
+            }
+        }
+        // Not under the lock: compiling may wait for the database, which another caller can
+        // be holding in a transaction while it releases its own statements
+        return db.compileStatement(sql);
+    }
+
+    void release(SQLiteDatabase db, String sql, SQLiteStatement statement) {
+        if (statement == null) {
+            return;
+        }
+        synchronized (this) {
+            ArrayList<SQLiteStatement> idle = mIdle.get(sql);
+            if (idle == null) {
+                idle = new ArrayList<SQLiteStatement>(MAX_IDLE);
+                mIdle.put(sql, idle);
+            }
+            if (db == mDb && idle.size() < MAX_IDLE) {
+                // don't keep strings alive through the bindings
+                statement.clearBindings();
+                idle.add(statement);
+                return;
+            }
+        }
+        statement.close();
+    }
+
+    synchronized void close() {
+        for (ArrayList<SQLiteStatement> idle : mIdle.values()) {
+            for (SQLiteStatement statement : idle) {
+                statement.close();
+            }
+        }
+        mIdle.clear();
+        mDb = null;
+    }
+}
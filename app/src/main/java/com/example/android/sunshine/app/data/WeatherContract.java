@@ -44,6 +44,18 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_HOURLY = "hourly";
+    public static final String PATH_SYNC_METRICS = "sync_metrics";
+
+    // provider call() methods, on BASE_CONTENT_URI, bracketing a write session: while one is
+    // open the provider holds its change notifications, and once the last one ends it sends
+    // each changed URI once, EXTRA_DEBOUNCE_MILLIS (optional) later.  BEGIN replies with an
+    // EXTRA_SESSION_TOKEN that END has to hand back.  A session that sees no writes for 30
+    // seconds is given up on, and its END ignored.
+    public static final String METHOD_BEGIN_WRITE_SESSION = "begin_write_session";
+    public static final String METHOD_END_WRITE_SESSION = "end_write_session";
+    public static final String EXTRA_SESSION_TOKEN = "session_token";
+    public static final String EXTRA_DEBOUNCE_MILLIS = "debounce_ms";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
@@ -70,6 +82,10 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LONG = "longitude_coordinate";
         //Column with location setting (zipcode)
         public static final String COLUMN_LOCATION_SETTING = "location_setting";
+        // HTTP validators of the last forecast response stored for this location, sent back
+        // as If-None-Match / If-Modified-Since so an unchanged forecast costs a 304 and nothing else
+        public static final String COLUMN_ETAG = "etag";
+        public static final String COLUMN_LAST_MODIFIED = "last_modified";
 
         public static final Uri CONTENT_URI =
                 BASE_CONTENT_URI.buildUpon().appendPath(PATH_LOCATION).build();
@@ -126,6 +142,94 @@ public class WeatherContract {
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_WEATHER;
 
 
+        // Query parameter asking bulkInsert to update the rows that already exist for a
+        // location and date instead of replacing them, and to notify only the dates written
+        public static final String PARAM_UPSERT = "upsert";
+
+        // Query parameters paging a weather query: at most PARAM_LIMIT rows in (date, _id)
+        // order, starting after the row whose date and _id are PARAM_AFTER_DATE and
+        // PARAM_AFTER_ID (the last row of the previous page), if given.  Paged queries take
+        // no sort order.  See buildWeatherLocationPage and buildNextPage.
+        public static final String PARAM_LIMIT = "limit";
+        public static final String PARAM_AFTER_DATE = "after_date";
+        public static final String PARAM_AFTER_ID = "after_id";
+
+        // provider call() method upserting a ForecastBatch (in EXTRA_BATCH) the same way; the
+        // returned Bundle holds the number of rows written in EXTRA_ROW_COUNT
+        public static final String METHOD_UPSERT_BATCH = "upsert_weather_batch";
+        public static final String EXTRA_BATCH = "batch";
+        public static final String EXTRA_ROW_COUNT = "row_count";
+
+        // provider call() method ingesting a whole sync in one transaction.  The payload holds
+        // one entry per location in the parallel EXTRA_LOCATION_SETTINGS, EXTRA_CITY_NAMES,
+        // EXTRA_COORD_LATS, EXTRA_COORD_LONGS, EXTRA_ETAGS and EXTRA_LAST_MODIFIEDS arrays, and
+        // the days of all of them in EXTRA_BATCH, grouped by location with EXTRA_ROW_COUNTS
+        // rows each (their location ids are ignored).  Each location's row is created if
+        // need be (or its city name and coordinates refreshed), only days whose values
+        // changed are written, days before EXTRA_STALE_BEFORE are deleted and the validators
+        // are stored.  The reply holds the EXTRA_LOCATION_IDS and the EXTRA_ROW_COUNT
+        // written, of which EXTRA_INSERTED_COUNT were new, plus EXTRA_DELETED_COUNT.
+        // The payload may also replace the 3-hourly slots of one location: see
+        // EXTRA_HOURLY_LOCATION_SETTING.  Either part may be empty; whatever the call holds
+        // commits as one snapshot, so readers see the stored forecast or the new one, never
+        // some of each.
+        public static final String METHOD_INGEST = "ingest_forecast";
+        public static final String EXTRA_LOCATION_SETTINGS = "location_settings";
+        public static final String EXTRA_CITY_NAMES = "city_names";
+        public static final String EXTRA_COORD_LATS = "coord_lats";
+        public static final String EXTRA_COORD_LONGS = "coord_longs";
+        public static final String EXTRA_ETAGS = "etags";
+        public static final String EXTRA_LAST_MODIFIEDS = "last_modifieds";
+        public static final String EXTRA_ROW_COUNTS = "row_counts";
+        public static final String EXTRA_STALE_BEFORE = "stale_before";
+        public static final String EXTRA_LOCATION_IDS = "location_ids";
+        public static final String EXTRA_INSERTED_COUNT = "inserted_count";
+        public static final String EXTRA_DELETED_COUNT = "deleted_count";
+
+        // Optional METHOD_INGEST hints from LocationIdCache: the ids cached for the locations
+        // (-1 where none is), parallel to EXTRA_LOCATION_SETTINGS, and for the hourly
+        // location, with the cache generation they were read in.  The provider only trusts
+        // them if the generation is still current once it holds the write lock.
+        public static final String EXTRA_CACHED_LOCATION_IDS = "cached_location_ids";
+        public static final String EXTRA_HOURLY_CACHED_LOCATION_ID = "hourly_cached_location_id";
+        public static final String EXTRA_LOCATION_ID_GENERATION = "location_id_generation";
+
+        // The hourly part of METHOD_INGEST: the location whose slots are replaced, with its
+        // EXTRA_HOURLY_CITY_NAME, EXTRA_HOURLY_COORD_LAT and EXTRA_HOURLY_COORD_LONG, the
+        // HourlyEntry rows in EXTRA_HOURLY_VALUES (their location ids are ignored), and
+        // EXTRA_HOURLY_ENDED_BEFORE, the time before which its slots are over and deleted.
+        // The reply adds EXTRA_HOURLY_LOCATION_ID, EXTRA_HOURLY_ROW_COUNT and
+        // EXTRA_HOURLY_DELETED_COUNT.
+        public static final String EXTRA_HOURLY_LOCATION_SETTING = "hourly_location_setting";
+        public static final String EXTRA_HOURLY_CITY_NAME = "hourly_city_name";
+        public static final String EXTRA_HOURLY_COORD_LAT = "hourly_coord_lat";
+        public static final String EXTRA_HOURLY_COORD_LONG = "hourly_coord_long";
+        public static final String EXTRA_HOURLY_VALUES = "hourly_values";
+        public static final String EXTRA_HOURLY_ENDED_BEFORE = "hourly_ended_before";
+        public static final String EXTRA_HOURLY_LOCATION_ID = "hourly_location_id";
+        public static final String EXTRA_HOURLY_ROW_COUNT = "hourly_row_count";
+        public static final String EXTRA_HOURLY_DELETED_COUNT = "hourly_deleted_count";
+
+        // provider call() method running the retention pass: for every location, days before
+        // EXTRA_STALE_BEFORE go, and so do the oldest days and hourly slots beyond
+        // EXTRA_DAILY_BUDGET and EXTRA_HOURLY_BUDGET (both optional), then locations left
+        // without rows.  The freed pages are vacuumed and the run is recorded in sync_metrics
+        // as SyncMetricsEntry.KIND_MAINTENANCE.  The reply holds EXTRA_DELETED_COUNT,
+        // EXTRA_RECLAIMED_BYTES and EXTRA_DURATION.
+        public static final String METHOD_MAINTAIN = "maintain";
+        public static final String EXTRA_DAILY_BUDGET = "daily_budget";
+        public static final String EXTRA_HOURLY_BUDGET = "hourly_budget";
+        public static final String EXTRA_RECLAIMED_BYTES = "reclaimed_bytes";
+        public static final String EXTRA_DURATION = "duration_ms";
+
+        public static Uri buildWeatherUpsertUri() {
+            return CONTENT_URI.buildUpon().appendQueryParameter(PARAM_UPSERT, "true").build();
+        }
+
+        public static boolean isUpsertUri(Uri uri) {
+            return "true".equals(uri.getQueryParameter(PARAM_UPSERT));
+        }
+
         public static Uri buildWeatherUri(long id) {
 
 
@@ -152,10 +256,88 @@ public class WeatherContract {
                     .appendPath(Long.toString(normalizeDate(date))).build();
         }
 
+        /**
+         * @return the first page of every location's days, in date order
+         */
+        public static Uri buildWeatherPage(int pageSize) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(PARAM_LIMIT, Integer.toString(pageSize)).build();
+        }
+
+        /**
+         * @return the first page of the location's days from startDate on (0 for all of them)
+         */
+        public static Uri buildWeatherLocationPage(String locationSetting, long startDate,
+                                                   int pageSize) {
+            Uri.Builder builder = CONTENT_URI.buildUpon().appendPath(locationSetting);
+            if (startDate != 0) {
+                builder.appendQueryParameter(COLUMN_DATE, Long.toString(normalizeDate(startDate)));
+            }
+            return builder.appendQueryParameter(PARAM_LIMIT, Integer.toString(pageSize)).build();
+        }
+
+        /**
+         * @param page     the URI a page was queried with
+         * @param lastDate the date of the last row of that page
+         * @param lastId   its _id
+         * @return the page after it
+         */
+        public static Uri buildNextPage(Uri page, long lastDate, long lastId) {
+            Uri.Builder builder = page.buildUpon().clearQuery();
+            String startDate = page.getQueryParameter(COLUMN_DATE);
+            if (startDate != null) {
+                builder.appendQueryParameter(COLUMN_DATE, startDate);
+            }
+            return builder.appendQueryParameter(PARAM_LIMIT, page.getQueryParameter(PARAM_LIMIT))
+                    .appendQueryParameter(PARAM_AFTER_DATE, Long.toString(lastDate))
+                    .appendQueryParameter(PARAM_AFTER_ID, Long.toString(lastId)).build();
+        }
+
         public static String getLocationSettingFromUri(Uri uri) {
             return uri.getPathSegments().get(1);
         }
 
+        /**
+         * @return whether the URI asks for a page, i.e. carries PARAM_LIMIT at all
+         */
+        public static boolean isPagedUri(Uri uri) {
+            return uri.getQueryParameter(PARAM_LIMIT) != null;
+        }
+
+        /**
+         * @return the page size, or 0 if the URI isn't paged
+         * @throws IllegalArgumentException if PARAM_LIMIT is there but isn't a positive number
+         */
+        public static int getPageSizeFromUri(Uri uri) {
+            String limit = uri.getQueryParameter(PARAM_LIMIT);
+            if (limit == null) {
+                return 0;
+            }
+            int pageSize;
+            try {
+                pageSize = Integer.parseInt(limit);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid page size: " + limit);
+            }
+            if (pageSize <= 0) {
+                throw new IllegalArgumentException("Invalid page size: " + limit);
+            }
+            return pageSize;
+        }
+
+        /**
+         * @return the date of the row the page starts after, or Long.MIN_VALUE for a first page
+         */
+        public static long getAfterDateFromUri(Uri uri) {
+            String date = uri.getQueryParameter(PARAM_AFTER_DATE);
+            return date == null || date.length() == 0 ? Long.MIN_VALUE : Long.parseLong(date);
+        }
+
+        public static long getAfterIdFromUri(Uri uri) {
+            String id = uri.getQueryParameter(PARAM_AFTER_ID);
+            return id == null || id.length() == 0 ? Long.MIN_VALUE : Long.parseLong(id);
+        }
+
         public static long getDateFromUri(Uri uri) {
             return Long.parseLong(uri.getPathSegments().get(2));
         }
@@ -168,4 +350,167 @@ public class WeatherContract {
                 return 0;
         }
     }
+
+    /*
+        Inner class that defines the table contents of the hourly table, which holds the
+        3-hourly forecast.  There are about eight times as many of these rows as daily ones, so
+        every value is stored as a small INTEGER (SQLite packs those into 1-4 bytes) and the
+        short description is left out, since it follows from the weather id.
+     */
+    public static final class HourlyEntry implements BaseColumns {
+
+        public static final String TABLE_NAME = "hourly";
+
+        // The _ID is not auto-assigned but built from the location and the time by
+        // buildRowId, so the table itself is ordered by location and then time.  A forecast
+        // window is then one range scan of the table's own b-tree, i.e. a covering index on
+        // location/time that costs no extra storage.
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // Start of the 3 hour slot, in seconds (not milliseconds) since the epoch
+        public static final String COLUMN_TIME = "time";
+        // Weather id as returned by API, to identify the icon to be used
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+        // Temperature in tenths of a degree Celsius
+        public static final String COLUMN_TEMP = "temp";
+        // Humidity in whole percent
+        public static final String COLUMN_HUMIDITY = "humidity";
+        // Pressure in tenths of a hPa
+        public static final String COLUMN_PRESSURE = "pressure";
+        // Wind speed in tenths of a m/s
+        public static final String COLUMN_WIND_SPEED = "wind";
+        // Meteorological degrees (e.g, 0 is north, 180 is south)
+        public static final String COLUMN_DEGREES = "degrees";
+
+        // Query parameters bounding a window, in seconds since the epoch
+        public static final String PARAM_START_TIME = "start";
+        public static final String PARAM_END_TIME = "end";
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_HOURLY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY;
+
+        public static Uri buildHourlyLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        /**
+         * @return the slots of the location starting in [startTime, endTime), both in seconds
+         */
+        public static Uri buildHourlyLocationWithWindow(
+                String locationSetting, long startTime, long endTime) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendQueryParameter(PARAM_START_TIME, Long.toString(startTime))
+                    .appendQueryParameter(PARAM_END_TIME, Long.toString(endTime)).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static long getStartTimeFromUri(Uri uri) {
+            String time = uri.getQueryParameter(PARAM_START_TIME);
+            return time == null || time.length() == 0 ? 0 : Long.parseLong(time);
+        }
+
+        public static long getEndTimeFromUri(Uri uri) {
+            String time = uri.getQueryParameter(PARAM_END_TIME);
+            return time == null || time.length() == 0 ? MAX_TIME : Long.parseLong(time);
+        }
+
+        // Times must fit in the low 32 bits of the row id
+        public static final long MAX_TIME = 0xffffffffL;
+
+        /**
+         * @return the _ID of the row for a location and slot: the location id in the high
+         * bits and the time in the low 32, so ids sort by location and then time.
+         */
+        public static long buildRowId(long locationId, long time) {
+            return (locationId << 32) | (time & MAX_TIME);
+        }
+
+        /**
+         * @return value in tenths, rounded, as stored in the temp, pressure and wind columns
+         */
+        public static int toTenths(double value) {
+            return (int) Math.round(value * 10);
+        }
+
+        public static double fromTenths(int tenths) {
+            return tenths / 10.0;
+        }
+    }
+
+    /*
+        Inner class that defines the table contents of the sync_metrics table: what every
+        ingestion run cost.  It is a ring buffer of the last CAPACITY runs, read-only through
+        the provider; runs are recorded with ContentResolver.call(METHOD_RECORD).  Recording a
+        run sends no change notification, so a sync that got nothing but 304s stays invisible
+        to observers.
+     */
+    public static final class SyncMetricsEntry implements BaseColumns {
+
+        public static final String TABLE_NAME = "sync_metrics";
+
+        // The ring holds this many runs; _ID is the slot, COLUMN_RUN % CAPACITY
+        public static final int CAPACITY = 256;
+
+        // provider call() method recording one run, with its values in EXTRA_VALUES
+        public static final String METHOD_RECORD = "record_sync_metrics";
+        public static final String EXTRA_VALUES = "values";
+
+        // Increasing number of the run, assigned by the provider
+        public static final String COLUMN_RUN = "run";
+        // What was ingested: one of the KIND_ constants
+        public static final String COLUMN_KIND = "kind";
+        // When the run started, in milliseconds since the epoch, and how long it took
+        public static final String COLUMN_START_TIME = "start_time";
+        public static final String COLUMN_DURATION = "duration_ms";
+        // Locations fetched, and how many of them were not modified
+        public static final String COLUMN_LOCATIONS = "locations";
+        public static final String COLUMN_NOT_MODIFIED = "not_modified";
+        // Summed over the locations: DNS + connect, time to first byte, bytes on the wire
+        public static final String COLUMN_CONNECT_TIME = "connect_ms";
+        public static final String COLUMN_FIRST_BYTE_TIME = "first_byte_ms";
+        public static final String COLUMN_BYTES = "bytes";
+        public static final String COLUMN_PARSE_TIME = "parse_ms";
+        public static final String COLUMN_ROWS_INSERTED = "rows_inserted";
+        public static final String COLUMN_ROWS_REPLACED = "rows_replaced";
+        public static final String COLUMN_ROWS_DELETED = "rows_deleted";
+        // Change notifications the provider sent while the run was writing; those held by an
+        // open write session go out when it ends, and aren't counted here
+        public static final String COLUMN_NOTIFY_COUNT = "notify_count";
+
+        public static final int KIND_DAILY = 0;
+        public static final int KIND_HOURLY = 1;
+        // A retention pass: COLUMN_ROWS_DELETED rows and COLUMN_LOCATIONS locations were
+        // deleted, and COLUMN_BYTES is how much the database shrank
+        public static final int KIND_MAINTENANCE = 2;
+        // A daily and an hourly forecast written together as one snapshot; the row counts
+        // are summed over both
+        public static final int KIND_SNAPSHOT = 3;
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_METRICS).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_METRICS;
+    }
+
+    /*
+        Inner class that defines the current_forecast table: each weather row together with
+        its location's columns, kept in step with both tables by triggers (see
+        WeatherDbHelper).  It has no URI of its own; the provider answers the weather URIs
+        with a location from it, so those queries no longer join.
+     */
+    public static final class CurrentForecastEntry implements BaseColumns {
+
+        public static final String TABLE_NAME = "current_forecast";
+
+        // _ID is the weather row's _ID.  The other columns have the names of the WeatherEntry
+        // and LocationEntry columns they are copied from.
+    }
 }
@@ -20,8 +20,12 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
+import com.example.android.sunshine.app.data.WeatherContract.CurrentForecastEntry;
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.sync.ForecastCache;
 
 /**
  * Manages a local database for weather data.
@@ -29,22 +33,214 @@ import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    static final int DATABASE_VERSION = 7;
 
     static final String DATABASE_NAME = "weather.db";
 
+    // Every weather query filters by location and then a date or date range, and sorts by
+    // date.  The UNIQUE (date, location_id) constraint's index has the columns the other way
+    // round, so it can't serve those; this one answers them with a single range search,
+    // already in date order.  Added in version 6.
+    static final String WEATHER_LOCATION_DATE_INDEX = "weather_location_date";
+
+    private static final String SQL_CREATE_WEATHER_LOCATION_DATE_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + WEATHER_LOCATION_DATE_INDEX + " ON " +
+                    WeatherEntry.TABLE_NAME + " (" +
+                    WeatherEntry.COLUMN_LOC_KEY + ", " +
+                    WeatherEntry.COLUMN_DATE + ");";
+
+    // Added in version 4
+    private static final String SQL_CREATE_HOURLY_TABLE = "CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+            // Not auto-assigned: HourlyEntry.buildRowId(location, time), which keeps the
+            // rows clustered by location and time and makes each slot unique
+            HourlyEntry._ID + " INTEGER PRIMARY KEY ON CONFLICT REPLACE," +
+
+            HourlyEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+            HourlyEntry.COLUMN_TIME + " INTEGER NOT NULL, " +
+            HourlyEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+            HourlyEntry.COLUMN_TEMP + " INTEGER NOT NULL, " +
+            HourlyEntry.COLUMN_HUMIDITY + " INTEGER NOT NULL, " +
+            HourlyEntry.COLUMN_PRESSURE + " INTEGER NOT NULL, " +
+            HourlyEntry.COLUMN_WIND_SPEED + " INTEGER NOT NULL, " +
+            HourlyEntry.COLUMN_DEGREES + " INTEGER NOT NULL, " +
+
+            " FOREIGN KEY (" +
+            HourlyEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+            LocationEntry.TABLE_NAME + " (" +
+            LocationEntry._ID + "));";
+
+    // Added in version 5
+    private static final String SQL_CREATE_SYNC_METRICS_TABLE = "CREATE TABLE " + SyncMetricsEntry.TABLE_NAME + " (" +
+            // the ring buffer slot, run % CAPACITY, so old runs are overwritten in place
+            SyncMetricsEntry._ID + " INTEGER PRIMARY KEY ON CONFLICT REPLACE," +
+            SyncMetricsEntry.COLUMN_RUN + " INTEGER NOT NULL, " +
+            SyncMetricsEntry.COLUMN_KIND + " INTEGER NOT NULL, " +
+            SyncMetricsEntry.COLUMN_START_TIME + " INTEGER NOT NULL, " +
+            SyncMetricsEntry.COLUMN_DURATION + " INTEGER NOT NULL, " +
+            SyncMetricsEntry.COLUMN_LOCATIONS + " INTEGER NOT NULL, " +
+            SyncMetricsEntry.COLUMN_NOT_MODIFIED + " INTEGER NOT NULL, " +
+            SyncMetricsEntry.COLUMN_CONNECT_TIME + " INTEGER NOT NULL, " +
+            SyncMetricsEntry.COLUMN_FIRST_BYTE_TIME + " INTEGER NOT NULL, " +
+            SyncMetricsEntry.COLUMN_BYTES + " INTEGER NOT NULL, " +
+            SyncMetricsEntry.COLUMN_PARSE_TIME + " INTEGER NOT NULL, " +
+            SyncMetricsEntry.COLUMN_ROWS_INSERTED + " INTEGER NOT NULL, " +
+            SyncMetricsEntry.COLUMN_ROWS_REPLACED + " INTEGER NOT NULL, " +
+            SyncMetricsEntry.COLUMN_ROWS_DELETED + " INTEGER NOT NULL, " +
+            SyncMetricsEntry.COLUMN_NOTIFY_COUNT + " INTEGER NOT NULL);";
+
+    /*
+        current_forecast, added in version 7, holds what the forecast list and detail view
+        used to get from joining weather and location on the location setting: every weather
+        row with its location's setting, city and coordinates.  Its UNIQUE (location_setting,
+        date) index answers a location's days with one range search, already in date order.
+
+        Triggers copy every write to either table into it, in the same statement, so each
+        write path of the provider (and the retention pass) keeps it current without knowing
+        about it.  Only weather rows whose location exists are copied, as the join did.
+     */
+    private static final String SQL_CREATE_CURRENT_FORECAST_TABLE = "CREATE TABLE " +
+            CurrentForecastEntry.TABLE_NAME + " (" +
+            // the weather row's _ID, so a write to it finds its copy
+            CurrentForecastEntry._ID + " INTEGER PRIMARY KEY ON CONFLICT REPLACE," +
+            WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+            LocationEntry.COLUMN_LOCATION_SETTING + " TEXT NOT NULL, " +
+            LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
+            LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
+            LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+            WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+            WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+            " UNIQUE (" + LocationEntry.COLUMN_LOCATION_SETTING + ", " +
+            WeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
+
+    private static final String CURRENT_FORECAST_COLUMNS = CurrentForecastEntry._ID + ", " +
+            WeatherEntry.COLUMN_LOC_KEY + ", " +
+            LocationEntry.COLUMN_LOCATION_SETTING + ", " +
+            LocationEntry.COLUMN_CITY_NAME + ", " +
+            LocationEntry.COLUMN_COORD_LAT + ", " +
+            LocationEntry.COLUMN_COORD_LONG + ", " +
+            WeatherEntry.COLUMN_DATE + ", " +
+            WeatherEntry.COLUMN_SHORT_DESC + ", " +
+            WeatherEntry.COLUMN_WEATHER_ID + ", " +
+            WeatherEntry.COLUMN_MIN_TEMP + ", " +
+            WeatherEntry.COLUMN_MAX_TEMP + ", " +
+            WeatherEntry.COLUMN_HUMIDITY + ", " +
+            WeatherEntry.COLUMN_PRESSURE + ", " +
+            WeatherEntry.COLUMN_WIND_SPEED + ", " +
+            WeatherEntry.COLUMN_DEGREES;
+
+    // INSERT OR REPLACE INTO current_forecast (...) SELECT <weather row>, <its location> FROM
+    // ...: the REPLACE drops the copy of a row the weather table's own ON CONFLICT REPLACE
+    // removed, which fires no delete trigger
+    private static String copyToCurrentForecast(String weather, String from, String where) {
+        return "INSERT OR REPLACE INTO " + CurrentForecastEntry.TABLE_NAME + " (" +
+                CURRENT_FORECAST_COLUMNS + ") SELECT " +
+                weather + "." + WeatherEntry._ID + ", " +
+                weather + "." + WeatherEntry.COLUMN_LOC_KEY + ", " +
+                LocationEntry.TABLE_NAME + "." + LocationEntry.COLUMN_LOCATION_SETTING + ", " +
+                LocationEntry.TABLE_NAME + "." + LocationEntry.COLUMN_CITY_NAME + ", " +
+                LocationEntry.TABLE_NAME + "." + LocationEntry.COLUMN_COORD_LAT + ", " +
+                LocationEntry.TABLE_NAME + "." + LocationEntry.COLUMN_COORD_LONG + ", " +
+                weather + "." + WeatherEntry.COLUMN_DATE + ", " +
+                weather + "." + WeatherEntry.COLUMN_SHORT_DESC + ", " +
+                weather + "." + WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                weather + "." + WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                weather + "." + WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                weather + "." + WeatherEntry.COLUMN_HUMIDITY + ", " +
+                weather + "." + WeatherEntry.COLUMN_PRESSURE + ", " +
+                weather + "." + WeatherEntry.COLUMN_WIND_SPEED + ", " +
+                weather + "." + WeatherEntry.COLUMN_DEGREES +
+                " FROM " + from + " WHERE " + where + ";";
+    }
+
+    private static final String DELETE_CURRENT_FORECAST_OF_OLD_WEATHER = "DELETE FROM " +
+            CurrentForecastEntry.TABLE_NAME + " WHERE " +
+            CurrentForecastEntry._ID + " = OLD." + WeatherEntry._ID + ";";
+
+    private static final String COPY_NEW_WEATHER = copyToCurrentForecast("NEW",
+            LocationEntry.TABLE_NAME, LocationEntry.TABLE_NAME + "." + LocationEntry._ID +
+                    " = NEW." + WeatherEntry.COLUMN_LOC_KEY);
+
+    private static final String[] SQL_CREATE_CURRENT_FORECAST_TRIGGERS = {
+            "CREATE TRIGGER current_forecast_weather_insert AFTER INSERT ON " +
+                    WeatherEntry.TABLE_NAME + " BEGIN " + COPY_NEW_WEATHER + " END;",
+
+            // the row may have moved to another date or location
+            "CREATE TRIGGER current_forecast_weather_update AFTER UPDATE ON " +
+                    WeatherEntry.TABLE_NAME + " BEGIN " +
+                    DELETE_CURRENT_FORECAST_OF_OLD_WEATHER + " " + COPY_NEW_WEATHER + " END;",
+
+            "CREATE TRIGGER current_forecast_weather_delete AFTER DELETE ON " +
+                    WeatherEntry.TABLE_NAME + " BEGIN " +
+                    DELETE_CURRENT_FORECAST_OF_OLD_WEATHER + " END;",
+
+            // weather rows written before their location, which the join would now return
+            "CREATE TRIGGER current_forecast_location_insert AFTER INSERT ON " +
+                    LocationEntry.TABLE_NAME + " BEGIN " +
+                    copyToCurrentForecast(WeatherEntry.TABLE_NAME,
+                            WeatherEntry.TABLE_NAME + ", " + LocationEntry.TABLE_NAME,
+                            WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_LOC_KEY +
+                                    " = NEW." + LocationEntry._ID + " AND " +
+                                    LocationEntry.TABLE_NAME + "." + LocationEntry._ID +
+                                    " = NEW." + LocationEntry._ID) + " END;",
+
+            // not on the validators, which every sync stores
+            "CREATE TRIGGER current_forecast_location_update AFTER UPDATE OF " +
+                    LocationEntry.COLUMN_LOCATION_SETTING + ", " +
+                    LocationEntry.COLUMN_CITY_NAME + ", " +
+                    LocationEntry.COLUMN_COORD_LAT + ", " +
+                    LocationEntry.COLUMN_COORD_LONG + " ON " +
+                    LocationEntry.TABLE_NAME + " BEGIN UPDATE " +
+                    CurrentForecastEntry.TABLE_NAME + " SET " +
+                    LocationEntry.COLUMN_LOCATION_SETTING + " = NEW." +
+                    LocationEntry.COLUMN_LOCATION_SETTING + ", " +
+                    LocationEntry.COLUMN_CITY_NAME + " = NEW." + LocationEntry.COLUMN_CITY_NAME + ", " +
+                    LocationEntry.COLUMN_COORD_LAT + " = NEW." + LocationEntry.COLUMN_COORD_LAT + ", " +
+                    LocationEntry.COLUMN_COORD_LONG + " = NEW." + LocationEntry.COLUMN_COORD_LONG +
+                    " WHERE " + LocationEntry.COLUMN_LOCATION_SETTING + " = OLD." +
+                    LocationEntry.COLUMN_LOCATION_SETTING + "; END;",
+
+            "CREATE TRIGGER current_forecast_location_delete AFTER DELETE ON " +
+                    LocationEntry.TABLE_NAME + " BEGIN DELETE FROM " +
+                    CurrentForecastEntry.TABLE_NAME + " WHERE " +
+                    LocationEntry.COLUMN_LOCATION_SETTING + " = OLD." +
+                    LocationEntry.COLUMN_LOCATION_SETTING + "; END;",
+    };
+
+    // The oldest version upgradeTo can start from; anything older is rebuilt
+    static final int OLDEST_MIGRATED_VERSION = 2;
+
+    private final Context mContext;
+
     public WeatherDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    // Lets the migration tests upgrade scratch databases without touching the provider's
+    WeatherDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        mContext = context;
     }
 
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
+        // A new database reuses _IDs, so anything resolved against an old one is wrong now
+        LocationIdCache.invalidate();
+
         final String SQL_CREATE_LOCATION_TABLE = "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
                 LocationEntry._ID + " INTEGER PRIMARY KEY," +
                 LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
                 LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
                 LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL"
+                LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
+                LocationEntry.COLUMN_ETAG + " TEXT, " +
+                LocationEntry.COLUMN_LAST_MODIFIED + " TEXT"
         + ");";
 
 
@@ -91,18 +287,105 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
 
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_METRICS_TABLE);
+        createCurrentForecast(sqLiteDatabase);
+    }
+
+    private static void createCurrentForecast(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_CURRENT_FORECAST_TABLE);
+        for (String trigger : SQL_CREATE_CURRENT_FORECAST_TRIGGERS) {
+            db.execSQL(trigger);
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        enableConcurrentReads(db);
     }
 
+    /**
+     * Puts the database in write-ahead logging mode, so queries (the CursorLoaders) read the
+     * last committed data while a sync transaction is still writing, instead of waiting for
+     * it.  SQLiteDatabase keeps a pool of read connections for this.
+     * <p/>
+     * Everything here can be fetched again, so commits only wait for the log to be written,
+     * not synced (synchronous = NORMAL).  A crash can't corrupt the database that way; at
+     * worst it loses the last commits before a checkpoint.
+     */
+    static void enableConcurrentReads(SQLiteDatabase db) {
+        if (db.isReadOnly()) {
+            return;
+        }
+        // A no-op if it is already on
+        db.enableWriteAheadLogging();
+        // Runs on the primary connection, the only one that writes
+        db.execSQL("PRAGMA synchronous = NORMAL");
+    }
+
+    /*
+        Upgrades step by step, one schema version at a time, keeping the data: a release that
+        changes the schema must not make every install refetch all its forecasts at once.
+        Each step runs in the transaction SQLiteOpenHelper opened for the upgrade, so a
+        failing step leaves the old version in place.
+
+        A schema change adds a case for its version to upgradeTo.  Steps create tables as they
+        were at their version, so a later change to a table is a step of its own.
+     */
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
-        // Note that this only fires if you change the version number for your database.
-        // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
+        if (oldVersion < OLDEST_MIGRATED_VERSION) {
+            rebuild(sqLiteDatabase);
+            return;
+        }
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            upgradeTo(sqLiteDatabase, version);
+        }
+    }
+
+    private static void upgradeTo(SQLiteDatabase db, int version) {
+        switch (version) {
+            // the HTTP validators of the last stored response
+            case 3:
+                db.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME + " ADD COLUMN " +
+                        LocationEntry.COLUMN_ETAG + " TEXT");
+                db.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME + " ADD COLUMN " +
+                        LocationEntry.COLUMN_LAST_MODIFIED + " TEXT");
+                break;
+            case 4:
+                db.execSQL(SQL_CREATE_HOURLY_TABLE);
+                break;
+            case 5:
+                db.execSQL(SQL_CREATE_SYNC_METRICS_TABLE);
+                break;
+            case 6:
+                db.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+                break;
+            case 7:
+                createCurrentForecast(db);
+                db.execSQL(copyToCurrentForecast(WeatherEntry.TABLE_NAME,
+                        WeatherEntry.TABLE_NAME + " INNER JOIN " + LocationEntry.TABLE_NAME +
+                                " ON " + WeatherEntry.TABLE_NAME + "." +
+                                WeatherEntry.COLUMN_LOC_KEY + " = " +
+                                LocationEntry.TABLE_NAME + "." + LocationEntry._ID, "1"));
+                break;
+            default:
+                throw new IllegalStateException("No upgrade step to version " + version);
+        }
+    }
+
+    // For versions we can't migrate: discard the data and start over
+    private void rebuild(SQLiteDatabase sqLiteDatabase) {
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HourlyEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + SyncMetricsEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + CurrentForecastEntry.TABLE_NAME);
         onCreate(sqLiteDatabase);
+        // The raw responses of the last fetches survive the wipe; have the next fetch replay
+        // them, since this runs inside the provider and can't write through it
+        ForecastCache.getInstance(mContext).markReplayPending();
     }
 }
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * The retention pass WeatherProvider runs for WeatherEntry.METHOD_MAINTAIN.  Ingestion only
+ * prunes the locations it has just fetched, so without this a device that stays offline, or
+ * that has moved on from a location, keeps every row it ever wrote and the file never shrinks.
+ * <p/>
+ * A pass deletes, in one transaction:
+ * <ul>
+ * <li>the days and hourly slots before the stale time, for every location;</li>
+ * <li>what is left beyond each location's row budget, oldest first;</li>
+ * <li>rows pointing at a location that no longer exists, and locations with no rows left.</li>
+ * </ul>
+ * then hands the freed pages back to the file system with an incremental vacuum and
+ * refreshes the planner's statistics with ANALYZE.
+ */
+class WeatherMaintenance {
+
+    private static final String LOG_TAG = WeatherMaintenance.class.getSimpleName();
+
+    // A full forecast plus yesterday, with some slack
+    static final int DEFAULT_DAILY_BUDGET = 16;
+    // Five days of three hour slots, with some slack
+    static final int DEFAULT_HOURLY_BUDGET = 48;
+
+    // PRAGMA auto_vacuum value once the database has been converted
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    /**
+     * What one pass removed and what it cost.
+     */
+    static class Report {
+        int weatherDeleted;
+        int hourlyDeleted;
+        int locationsDeleted;
+        long bytesBefore;
+        long bytesAfter;
+        boolean vacuumed;
+        long durationMillis;
+        // The settings of the locations that lost days or hourly slots, looked up before
+        // empty locations go, so their observers alone can be notified; null stands for rows
+        // that pointed at no location
+        final HashSet<String> weatherLocationSettings = new HashSet<String>();
+        final HashSet<String> hourlyLocationSettings = new HashSet<String>();
+
+        long getReclaimedBytes() {
+            return bytesBefore - bytesAfter;
+        }
+    }
+
+    //location_id = ? AND date < the date of the location's ?th newest day
+    private static final String SQL_DELETE_WEATHER_OVER_BUDGET = "DELETE FROM " +
+            WeatherEntry.TABLE_NAME + " WHERE " +
+            WeatherEntry.COLUMN_LOC_KEY + " = ?1 AND " +
+            WeatherEntry.COLUMN_DATE + " < (SELECT " +
+            WeatherEntry.COLUMN_DATE + " FROM " +
+            WeatherEntry.TABLE_NAME + " WHERE " +
+            WeatherEntry.COLUMN_LOC_KEY + " = ?1 ORDER BY " +
+            WeatherEntry.COLUMN_DATE + " DESC LIMIT 1 OFFSET ?2)";
+
+    //_id in the location's range and below the row id of its ?th newest slot
+    private static final String SQL_DELETE_HOURLY_OVER_BUDGET = "DELETE FROM " +
+            HourlyEntry.TABLE_NAME + " WHERE " +
+            HourlyEntry._ID + " >= ?1 AND " +
+            HourlyEntry._ID + " < (SELECT " +
+            HourlyEntry._ID + " FROM " +
+            HourlyEntry.TABLE_NAME + " WHERE " +
+            HourlyEntry._ID + " >= ?1 AND " +
+            HourlyEntry._ID + " < ?2 ORDER BY " +
+            HourlyEntry._ID + " DESC LIMIT 1 OFFSET ?3)";
+
+    private static final String SQL_DELETE_STALE_WEATHER = "DELETE FROM " +
+            WeatherEntry.TABLE_NAME + " WHERE " +
+            WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+            WeatherEntry.COLUMN_DATE + " < ?";
+
+    private static final String SQL_DELETE_STALE_HOURLY = "DELETE FROM " +
+            HourlyEntry.TABLE_NAME + " WHERE " +
+            HourlyEntry._ID + " >= ? AND " +
+            HourlyEntry._ID + " < ?";
+
+    private static final String SQL_DELETE_ORPHANED_WEATHER = "DELETE FROM " +
+            WeatherEntry.TABLE_NAME + " WHERE " +
+            WeatherEntry.COLUMN_LOC_KEY + " NOT IN (SELECT " +
+            LocationEntry._ID + " FROM " +
+            LocationEntry.TABLE_NAME + ")";
+
+    private static final String SQL_DELETE_ORPHANED_HOURLY = "DELETE FROM " +
+            HourlyEntry.TABLE_NAME + " WHERE (" +
+            HourlyEntry._ID + " >> 32) NOT IN (SELECT " +
+            LocationEntry._ID + " FROM " +
+            LocationEntry.TABLE_NAME + ")";
+
+    // The correlated subqueries are answered by the weather_location_date index and the
+    // hourly table's own row id ranges
+    private static final String SQL_DELETE_EMPTY_LOCATIONS = "DELETE FROM " +
+            LocationEntry.TABLE_NAME + " WHERE NOT EXISTS (SELECT 1 FROM " +
+            WeatherEntry.TABLE_NAME + " WHERE " +
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_LOC_KEY + " = " +
+            LocationEntry.TABLE_NAME + "." + LocationEntry._ID + ") AND NOT EXISTS (SELECT 1 FROM " +
+            HourlyEntry.TABLE_NAME + " WHERE " +
+            HourlyEntry.TABLE_NAME + "." + HourlyEntry._ID + " >= " +
+            LocationEntry.TABLE_NAME + "." + LocationEntry._ID + " << 32 AND " +
+            HourlyEntry.TABLE_NAME + "." + HourlyEntry._ID + " < (" +
+            LocationEntry.TABLE_NAME + "." + LocationEntry._ID + " + 1) << 32)";
+
+    private WeatherMaintenance() {
+    }
+
+    /**
+     * Runs one pass.
+     *
+     * @param staleBefore  days before this date (see WeatherContract.normalizeDate) and hourly
+     *                     slots starting before it go, whatever the budgets
+     * @param dailyBudget  days each location keeps at most
+     * @param hourlyBudget hourly slots each location keeps at most
+     */
+    static Report run(SQLiteDatabase db, long staleBefore, int dailyBudget, int hourlyBudget) {
+        long start = SystemClock.elapsedRealtime();
+        Report report = new Report();
+        report.bytesBefore = getDatabaseBytes(db);
+
+        db.beginTransaction();
+        try {
+            HashMap<Long, String> locations = getLocations(db);
+            deleteExpired(db, locations, staleBefore, dailyBudget, hourlyBudget, report);
+
+            int orphans = executeDelete(db, SQL_DELETE_ORPHANED_WEATHER);
+            if (orphans > 0) {
+                report.weatherDeleted += orphans;
+                report.weatherLocationSettings.add(null);
+            }
+            orphans = executeDelete(db, SQL_DELETE_ORPHANED_HOURLY);
+            if (orphans > 0) {
+                report.hourlyDeleted += orphans;
+                report.hourlyLocationSettings.add(null);
+            }
+            report.locationsDeleted = executeDelete(db, SQL_DELETE_EMPTY_LOCATIONS);
+            if (report.locationsDeleted > 0) {
+                // before the commit; see LocationIdCache
+                LocationIdCache.invalidate();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // Neither can run inside a transaction
+        report.vacuumed = vacuum(db);
+        analyze(db);
+
+        report.bytesAfter = getDatabaseBytes(db);
+        report.durationMillis = SystemClock.elapsedRealtime() - start;
+        Log.d(LOG_TAG, "Maintenance deleted " + report.weatherDeleted + " days, " +
+                report.hourlyDeleted + " hourly slots and " + report.locationsDeleted +
+                " locations, reclaimed " + report.getReclaimedBytes() + " bytes in " +
+                report.durationMillis + "ms");
+        return report;
+    }
+
+    private static void deleteExpired(SQLiteDatabase db, HashMap<Long, String> locations,
+                                      long staleBefore, int dailyBudget, int hourlyBudget,
+                                      Report report) {
+        // Hourly slots are keyed by seconds, the days by milliseconds
+        long staleBeforeSeconds = staleBefore / 1000;
+        SQLiteStatement staleWeather = db.compileStatement(SQL_DELETE_STALE_WEATHER);
+        SQLiteStatement staleHourly = db.compileStatement(SQL_DELETE_STALE_HOURLY);
+        SQLiteStatement weatherOverBudget = db.compileStatement(SQL_DELETE_WEATHER_OVER_BUDGET);
+        SQLiteStatement hourlyOverBudget = db.compileStatement(SQL_DELETE_HOURLY_OVER_BUDGET);
+        try {
+            for (Map.Entry<Long, String> location : locations.entrySet()) {
+                long locationId = location.getKey();
+                long firstSlot = HourlyEntry.buildRowId(locationId, 0);
+                long nextLocation = HourlyEntry.buildRowId(locationId + 1, 0);
+
+                staleWeather.bindLong(1, locationId);
+                staleWeather.bindLong(2, staleBefore);
+                int weatherDeleted = staleWeather.executeUpdateDelete();
+
+                staleHourly.bindLong(1, firstSlot);
+                staleHourly.bindLong(2, HourlyEntry.buildRowId(locationId, staleBeforeSeconds));
+                int hourlyDeleted = staleHourly.executeUpdateDelete();
+
+                // The OFFSET picks the oldest row that is kept
+                weatherOverBudget.bindLong(1, locationId);
+                weatherOverBudget.bindLong(2, dailyBudget - 1);
+                weatherDeleted += weatherOverBudget.executeUpdateDelete();
+
+                hourlyOverBudget.bindLong(1, firstSlot);
+                hourlyOverBudget.bindLong(2, nextLocation);
+                hourlyOverBudget.bindLong(3, hourlyBudget - 1);
+                hourlyDeleted += hourlyOverBudget.executeUpdateDelete();
+
+                if (weatherDeleted > 0) {
+                    report.weatherDeleted += weatherDeleted;
+                    report.weatherLocationSettings.add(location.getValue());
+                }
+                if (hourlyDeleted > 0) {
+                    report.hourlyDeleted += hourlyDeleted;
+                    report.hourlyLocationSettings.add(location.getValue());
+                }
+            }
+        } finally {
+            staleWeather.close();
+            staleHourly.close();
+            weatherOverBudget.close();
+            hourlyOverBudget.close();
+        }
+    }
+
+    // location id -> location setting
+    private static HashMap<Long, String> getLocations(SQLiteDatabase db) {
+        HashMap<Long, String> locations = new HashMap<Long, String>();
+        Cursor cursor = db.query(LocationEntry.TABLE_NAME,
+                new String[]{LocationEntry._ID, LocationEntry.COLUMN_LOCATION_SETTING},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                locations.put(cursor.getLong(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return locations;
+    }
+
+    private static int executeDelete(SQLiteDatabase db, String sql) {
+        SQLiteStatement statement = db.compileStatement(sql);
+        try {
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Gives the free pages back to the file system.  auto_vacuum has to be chosen before the
+     * first table is created, which SQLiteOpenHelper leaves no room for, so the first pass
+     * switches it to incremental with one full VACUUM; every later pass only truncates.
+     *
+     * @return whether the database was fully rebuilt
+     */
+    private static boolean vacuum(SQLiteDatabase db) {
+        try {
+            if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                    != AUTO_VACUUM_INCREMENTAL) {
+                runPragma(db, "PRAGMA auto_vacuum = INCREMENTAL");
+                db.execSQL("VACUUM");
+                return true;
+            }
+            runPragma(db, "PRAGMA incremental_vacuum");
+        } catch (SQLiteException e) {
+            // Busy, or out of room for VACUUM's copy; the next pass tries again
+            Log.w(LOG_TAG, "Couldn't vacuum", e);
+        }
+        return false;
+    }
+
+    /**
+     * Refreshes sqlite_stat1 so the planner's choices follow the tables as they shrink and
+     * grow.  PRAGMA optimize is newer than most devices' SQLite; the tables are small
+     * enough that a full ANALYZE once a pass costs next to nothing.
+     */
+    private static void analyze(SQLiteDatabase db) {
+        try {
+            db.execSQL("ANALYZE");
+        } catch (SQLiteException e) {
+            Log.w(LOG_TAG, "Couldn't analyze", e);
+        }
+    }
+
+    /**
+     * @return the size of the database proper, not counting the write-ahead log
+     */
+    static long getDatabaseBytes(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null) *
+                DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+    }
+
+    // Some pragmas return rows and some don't; stepping a cursor works for both
+    private static void runPragma(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            while (cursor.moveToNext()) {
+                // each step does a share of the work
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -15,17 +15,36 @@
  */
 package com.example.android.sunshine.app.data;
 
-import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class WeatherProvider extends ContentProvider {
 
+    private static final String LOG_TAG = WeatherProvider.class.getSimpleName();
+
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
@@ -34,40 +53,116 @@ public class WeatherProvider extends ContentProvider {
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
     static final int LOCATION = 300;
+    static final int HOURLY = 400;
+    static final int HOURLY_WITH_LOCATION = 401;
+    static final int SYNC_METRICS = 500;
+
+    // Every change notification this process's provider has sent, for SyncMetrics
+    private static final AtomicLong sNotifyCount = new AtomicLong();
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    // While applyBatch runs on a thread, the URIs its operations changed, notified only once
+    // the batch is committed
+    private final ThreadLocal<LinkedHashSet<Uri>> mPendingNotifications =
+            new ThreadLocal<LinkedHashSet<Uri>>();
+
+    // Holds the notifications while a write session (METHOD_BEGIN_WRITE_SESSION) is open
+    private final NotificationCoalescer mNotifier =
+            new NotificationCoalescer(new NotificationCoalescer.Sender() {
+                @Override
+                public void send(Uri uri) {
+                    sendNotification(uri);
+                }
+            });
+
+    // Compiled statements of the write paths and the single value lookups, kept between calls
+    private final StatementCache mStatements = new StatementCache();
+
+    // The query builder and selections below are package-private so TestQueryPlans can run
+    // EXPLAIN QUERY PLAN on exactly what the provider executes
+    static final SQLiteQueryBuilder sCurrentForecastQueryBuilder;
+    // the weather table itself, for paged queries on "weather"
+    static final SQLiteQueryBuilder sWeatherQueryBuilder;
 
     static {
-        sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
-
-        //This is an inner join which looks like
-        //weather INNER JOIN location ON weather.location_id = location._id
-        sWeatherByLocationSettingQueryBuilder.setTables(
-                WeatherContract.WeatherEntry.TABLE_NAME + " INNER JOIN " +
-                        WeatherContract.LocationEntry.TABLE_NAME +
-                        " ON " + WeatherContract.WeatherEntry.TABLE_NAME +
-                        "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY +
-                        " = " + WeatherContract.LocationEntry.TABLE_NAME +
-                        "." + WeatherContract.LocationEntry._ID);
-    }
-
-    //location.location_setting = ?
-    private static final String sLocationSettingSelection =
-            WeatherContract.LocationEntry.TABLE_NAME +
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
-
-    //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
-            WeatherContract.LocationEntry.TABLE_NAME +
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+        sWeatherQueryBuilder = new SQLiteQueryBuilder();
+        sWeatherQueryBuilder.setTables(WeatherContract.WeatherEntry.TABLE_NAME);
+
+        sCurrentForecastQueryBuilder = new SQLiteQueryBuilder();
+
+        //The weather and location tables used to be joined here on every query; current_forecast
+        //holds that join already made (see WeatherDbHelper).  It is aliased to weather so
+        //projections written for the join, like weather._id, still work:
+        //current_forecast AS weather
+        sCurrentForecastQueryBuilder.setTables(
+                WeatherContract.CurrentForecastEntry.TABLE_NAME + " AS " +
+                        WeatherContract.WeatherEntry.TABLE_NAME);
+    }
+
+    //location_setting = ?
+    static final String sLocationSettingSelection =
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
+
+    //date >= ? AND (date > ? OR _id > ?), with the date twice: the rows after the last
+    //(date, _id) of a page.  The date bound comes first, on its own, so it can still be
+    //answered from an index.
+    static final String sAfterRowSelection =
+            WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? AND (" +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " > ? OR " +
+                    WeatherContract.WeatherEntry._ID + " > ?)";
+
+    // (date, _id) order.  A location has a single row per date, so for its queries date order
+    // is the same thing, and the UNIQUE (location_setting, date) index returns it unsorted.
+    static final String sPageOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC, " +
+            WeatherContract.WeatherEntry._ID + " ASC";
+    static final String sLocationPageOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+
+    //location_setting = ? AND date >= ?
+    static final String sLocationSettingWithStartDateSelection =
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
 
-    //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
-            WeatherContract.LocationEntry.TABLE_NAME +
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+    //location_setting = ? AND date = ?
+    static final String sLocationSettingAndDaySelection =
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
+    //location_id = ? AND date = ?
+    static final String sLocationIdAndDateSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+
+    //location_id = (SELECT _id FROM location WHERE location_setting = ?)
+    static final String sLocationIdFromSettingSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = (SELECT " +
+                    WeatherContract.LocationEntry._ID + " FROM " +
+                    WeatherContract.LocationEntry.TABLE_NAME + " WHERE " +
+                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?)";
+
+    //_id >= (location << 32) AND _id < ((location + 1) << 32), for the hourly table
+    //The hourly table has no index on location_id; its row ids already group by location
+    static final String sHourlyLocationIdFromSettingSelection =
+            WeatherContract.HourlyEntry._ID + " >= ((SELECT " +
+                    WeatherContract.LocationEntry._ID + " FROM " +
+                    WeatherContract.LocationEntry.TABLE_NAME + " WHERE " +
+                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?) << 32) AND " +
+                    WeatherContract.HourlyEntry._ID + " < (((SELECT " +
+                    WeatherContract.LocationEntry._ID + " FROM " +
+                    WeatherContract.LocationEntry.TABLE_NAME + " WHERE " +
+                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?) + 1) << 32)";
+
+    //_id >= (location << 32) + ? AND _id < (location << 32) + ?
+    //Bounds on the row id itself, so SQLite answers with a range scan of the table's b-tree
+    //instead of a full scan or a second index (see HourlyEntry.buildRowId)
+    static final String sHourlyRowIdWindowSelection =
+            WeatherContract.HourlyEntry._ID + " >= ((SELECT " +
+                    WeatherContract.LocationEntry._ID + " FROM " +
+                    WeatherContract.LocationEntry.TABLE_NAME + " WHERE " +
+                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?) << 32) + ? AND " +
+                    WeatherContract.HourlyEntry._ID + " < ((SELECT " +
+                    WeatherContract.LocationEntry._ID + " FROM " +
+                    WeatherContract.LocationEntry.TABLE_NAME + " WHERE " +
+                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?) << 32) + ?";
+
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
@@ -83,7 +178,11 @@ public class WeatherProvider extends ContentProvider {
             selection = sLocationSettingWithStartDateSelection;
         }
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+        if (WeatherContract.WeatherEntry.isPagedUri(uri)) {
+            return queryPage(sCurrentForecastQueryBuilder, uri, projection, selection,
+                    selectionArgs, sortOrder, sLocationPageOrder);
+        }
+        return sCurrentForecastQueryBuilder.query(mOpenHelper.getReadableDatabase(),
                 projection,
                 selection,
                 selectionArgs,
@@ -93,12 +192,50 @@ public class WeatherProvider extends ContentProvider {
         );
     }
 
+    /*
+        One page of a paged weather query (PARAM_LIMIT): the next rows in (date, _id) order
+        after the keyset cursor in the URI.  Seeking past the last row seen, instead of
+        skipping an OFFSET, makes the thousandth page as cheap as the first, and since the
+        query has a LIMIT only that page is ever copied into the CursorWindow, so a client can
+        walk years of history in constant memory.
+     */
+    private Cursor queryPage(SQLiteQueryBuilder builder, Uri uri, String[] projection,
+                             String selection, String[] selectionArgs, String sortOrder,
+                             String pageOrder) {
+        // throws for a limit that isn't a positive number, "limit=0" included
+        int pageSize = WeatherContract.WeatherEntry.getPageSizeFromUri(uri);
+        if (sortOrder != null) {
+            // the keyset only works in the order it was taken in
+            throw new IllegalArgumentException("Paged queries can't be sorted: " + uri);
+        }
+        long afterDate = WeatherContract.WeatherEntry.getAfterDateFromUri(uri);
+        if (afterDate != Long.MIN_VALUE) {
+            String date = Long.toString(afterDate);
+            selection = selection == null ? sAfterRowSelection :
+                    "(" + selection + ") AND " + sAfterRowSelection;
+            selectionArgs = appendArgs(selectionArgs, date, date,
+                    Long.toString(WeatherContract.WeatherEntry.getAfterIdFromUri(uri)));
+        }
+        return builder.query(mOpenHelper.getReadableDatabase(), projection, selection,
+                selectionArgs, null, null, pageOrder, Integer.toString(pageSize));
+    }
+
+    private static String[] appendArgs(String[] selectionArgs, String... args) {
+        if (selectionArgs == null) {
+            return args;
+        }
+        String[] all = new String[selectionArgs.length + args.length];
+        System.arraycopy(selectionArgs, 0, all, 0, selectionArgs.length);
+        System.arraycopy(args, 0, all, selectionArgs.length, args.length);
+        return all;
+    }
+
     private Cursor getWeatherByLocationSettingAndDate(
             Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+        return sCurrentForecastQueryBuilder.query(mOpenHelper.getReadableDatabase(),
                 projection,
                 sLocationSettingAndDaySelection,
                 new String[]{locationSetting, Long.toString(date)},
@@ -108,6 +245,25 @@ public class WeatherProvider extends ContentProvider {
         );
     }
 
+    private Cursor getHourlyByLocationSetting(Uri uri, String[] projection, String sortOrder) {
+        String locationSetting = WeatherContract.HourlyEntry.getLocationSettingFromUri(uri);
+        long startTime = Math.max(0, WeatherContract.HourlyEntry.getStartTimeFromUri(uri));
+        long endTime = Math.min(WeatherContract.HourlyEntry.MAX_TIME,
+                WeatherContract.HourlyEntry.getEndTimeFromUri(uri));
+
+        return mOpenHelper.getReadableDatabase().query(
+                WeatherContract.HourlyEntry.TABLE_NAME,
+                projection,
+                sHourlyRowIdWindowSelection,
+                new String[]{locationSetting, Long.toString(startTime),
+                        locationSetting, Long.toString(endTime)},
+                null,
+                null,
+                // row id order is time order within a location
+                sortOrder == null ? WeatherContract.HourlyEntry._ID + " ASC" : sortOrder
+        );
+    }
+
     /*
         Students: Here is where you need to create the UriMatcher. This UriMatcher will
         match each URI to the WEATHER, WEATHER_WITH_LOCATION, WEATHER_WITH_LOCATION_AND_DATE,
@@ -132,6 +288,11 @@ public class WeatherProvider extends ContentProvider {
         uriMatcher.addURI(Authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
         //Location type
         uriMatcher.addURI(Authority, WeatherContract.PATH_LOCATION, LOCATION);
+        //Hourly types
+        uriMatcher.addURI(Authority, WeatherContract.PATH_HOURLY, HOURLY);
+        uriMatcher.addURI(Authority, WeatherContract.PATH_HOURLY + "/*", HOURLY_WITH_LOCATION);
+        //Sync metrics type, read only
+        uriMatcher.addURI(Authority, WeatherContract.PATH_SYNC_METRICS, SYNC_METRICS);
 
         // 3) Return the new matcher!
         return uriMatcher;
@@ -168,6 +329,11 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case HOURLY:
+            case HOURLY_WITH_LOCATION:
+                return WeatherContract.HourlyEntry.CONTENT_TYPE;
+            case SYNC_METRICS:
+                return WeatherContract.SyncMetricsEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -192,6 +358,11 @@ public class WeatherProvider extends ContentProvider {
             }
             // "weather"
             case WEATHER: {
+                if (WeatherContract.WeatherEntry.isPagedUri(uri)) {
+                    retCursor = queryPage(sWeatherQueryBuilder, uri, projection, selection,
+                            selectionArgs, sortOrder, sPageOrder);
+                    break;
+                }
                 retCursor = mOpenHelper.getReadableDatabase().query(
                         WeatherContract.WeatherEntry.TABLE_NAME,
                         projection,
@@ -217,6 +388,37 @@ public class WeatherProvider extends ContentProvider {
                 break;
 
             }
+            // "hourly/*"
+            case HOURLY_WITH_LOCATION: {
+                retCursor = getHourlyByLocationSetting(uri, projection, sortOrder);
+                break;
+            }
+            // "hourly"
+            case HOURLY: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.HourlyEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "sync_metrics", newest run first unless asked otherwise
+            case SYNC_METRICS: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.SyncMetricsEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder == null ? WeatherContract.SyncMetricsEntry.COLUMN_RUN + " DESC" : sortOrder
+                );
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -234,6 +436,8 @@ public class WeatherProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         Uri returnUri;
+        // The URI observers of this row are watching; the one passed in unless narrowed below
+        Uri changedUri = uri;
 
         switch (match) {
             case WEATHER: {
@@ -243,6 +447,9 @@ public class WeatherProvider extends ContentProvider {
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                changedUri = getWeatherUri(db,
+                        values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY),
+                        values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
                 break;
             }
             case LOCATION: {
@@ -254,11 +461,22 @@ public class WeatherProvider extends ContentProvider {
                 break;
 
             }
+            case HOURLY: {
+                setHourlyRowId(values);
+                long _id = db.insert(WeatherContract.HourlyEntry.TABLE_NAME, null, values);
+                if (_id != -1)
+                    returnUri = ContentUris.withAppendedId(WeatherContract.HourlyEntry.CONTENT_URI, _id);
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                changedUri = getHourlyUri(db,
+                        values.getAsLong(WeatherContract.HourlyEntry.COLUMN_LOC_KEY));
+                break;
+            }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
-        db.close();
+        notifyChange(changedUri);
+        // The connection stays open for the provider's lifetime; see shutdown()
         return returnUri;
     }
 
@@ -276,19 +494,59 @@ public class WeatherProvider extends ContentProvider {
         // is null.
 
         //If selection is null delte all rows by setting selection equal to 1
+        final boolean deleteAll = selection == null;
         if (selection == null){
             selection = "1";
         }
 
         int deletedRows;
+        LinkedHashSet<Uri> changedUris = new LinkedHashSet<Uri>();
 
         switch (match) {
             case WEATHER: {
-                deletedRows = db.delete(WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                db.beginTransaction();
+                try {
+                    // deleting everything is one notification of the URI passed in
+                    if (!deleteAll) {
+                        collectWeatherUris(db, selection, selectionArgs, changedUris);
+                    }
+                    deletedRows = db.delete(WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                break;
+            }
+            // "weather/*": delete only within one location, so only its observers hear about it
+            case WEATHER_WITH_LOCATION: {
+                String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+                deletedRows = db.delete(WeatherContract.WeatherEntry.TABLE_NAME,
+                        sLocationIdFromSettingSelection + " AND (" + selection + ")",
+                        prependArg(locationSetting, selectionArgs));
+                break;
+            }
+            case HOURLY: {
+                deletedRows = db.delete(WeatherContract.HourlyEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            }
+            // "hourly/*"
+            case HOURLY_WITH_LOCATION: {
+                String locationSetting = WeatherContract.HourlyEntry.getLocationSettingFromUri(uri);
+                deletedRows = db.delete(WeatherContract.HourlyEntry.TABLE_NAME,
+                        sHourlyLocationIdFromSettingSelection + " AND (" + selection + ")",
+                        prependArg(locationSetting, prependArg(locationSetting, selectionArgs)));
                 break;
             }
             case LOCATION: {
-                deletedRows = db.delete(WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                // The cache is invalidated before the commit; see LocationIdCache
+                db.beginTransaction();
+                try {
+                    deletedRows = db.delete(WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                    LocationIdCache.invalidate();
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
             }
             default:
@@ -297,14 +555,40 @@ public class WeatherProvider extends ContentProvider {
         }
 
         // Oh, and you should notify the listeners here.
-        if (deletedRows != 0)
-            getContext().getContentResolver().notifyChange(uri, null);
+        if (deletedRows != 0) {
+            if (changedUris.isEmpty()) {
+                changedUris.add(uri);
+            }
+            notifyChanges(changedUris);
+        }
         // Student: return the actual rows deleted
 
         //db.close();
         return deletedRows;
     }
 
+    private static String[] prependArg(String arg, String[] selectionArgs) {
+        if (selectionArgs == null) {
+            return new String[]{arg};
+        }
+        String[] args = new String[selectionArgs.length + 1];
+        args[0] = arg;
+        System.arraycopy(selectionArgs, 0, args, 1, selectionArgs.length);
+        return args;
+    }
+
+    // The hourly _ID is derived from the location and the time; see HourlyEntry.buildRowId
+    private static void setHourlyRowId(ContentValues values) {
+        Long locationId = values.getAsLong(WeatherContract.HourlyEntry.COLUMN_LOC_KEY);
+        Long time = values.getAsLong(WeatherContract.HourlyEntry.COLUMN_TIME);
+        if (locationId == null || time == null ||
+                time < 0 || time > WeatherContract.HourlyEntry.MAX_TIME) {
+            throw new IllegalArgumentException("Hourly weather needs a location and a time");
+        }
+        values.put(WeatherContract.HourlyEntry._ID,
+                WeatherContract.HourlyEntry.buildRowId(locationId, time));
+    }
+
     private void normalizeDate(ContentValues values) {
         // normalize the date value
         if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
@@ -323,25 +607,58 @@ public class WeatherProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
 
         int updatedRows;
+        LinkedHashSet<Uri> changedUris = new LinkedHashSet<Uri>();
 
         switch (match) {
             case WEATHER: {
                 normalizeDate(values);
-                updatedRows = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection, selectionArgs);
+                db.beginTransaction();
+                try {
+                    if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_LOC_KEY) ||
+                            values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
+                        // rows move to other locations or dates, whose observers can't be
+                        // told apart from here
+                        changedUris.add(uri);
+                    } else {
+                        collectWeatherUris(db, selection, selectionArgs, changedUris);
+                    }
+                    updatedRows = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection, selectionArgs);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
             }
             case LOCATION: {
-                updatedRows = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection, selectionArgs);
+                db.beginTransaction();
+                try {
+                    updatedRows = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection, selectionArgs);
+                    // Storing validators and the like doesn't move any setting to another _ID
+                    if (values.containsKey(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING) ||
+                            values.containsKey(WeatherContract.LocationEntry._ID)) {
+                        LocationIdCache.invalidate();
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                break;
+            }
+            case HOURLY: {
+                updatedRows = db.update(WeatherContract.HourlyEntry.TABLE_NAME, values, selection, selectionArgs);
                 break;
-
             }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
 
         }
 
-        if (updatedRows != 0)
-            getContext().getContentResolver().notifyChange(uri, null);
+        if (updatedRows != 0) {
+            if (changedUris.isEmpty()) {
+                changedUris.add(uri);
+            }
+            notifyChanges(changedUris);
+        }
         //db.close();
         return updatedRows;
     }
@@ -352,33 +669,835 @@ public class WeatherProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case WEATHER:
+                if (WeatherContract.WeatherEntry.isUpsertUri(uri)) {
+                    return upsertWeather(db, values);
+                }
+                HashMap<Long, HashSet<Long>> written = new HashMap<Long, HashSet<Long>>();
                 db.beginTransaction();
                 int returnCount = 0;
+                SQLiteStatement insert = mStatements.acquire(db, SQL_INSERT_WEATHER);
                 try {
                     for (ContentValues value : values) {
                         normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
-                            returnCount++;
+                        bindWeather(insert, value);
+                        try {
+                            if (insert.executeInsert() != -1) {
+                                returnCount++;
+                                addWritten(written,
+                                        value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY),
+                                        value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+                            }
+                        } catch (android.database.SQLException e) {
+                            // as with SQLiteDatabase.insert, a bad row is skipped rather than
+                            // failing the others
+                            Log.e(LOG_TAG, "Error inserting " + value, e);
                         }
                     }
                     db.setTransactionSuccessful();
                 } finally {
+                    mStatements.release(db, SQL_INSERT_WEATHER, insert);
                     db.endTransaction();
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
+                notifyWeatherWritten(db, written);
                 return returnCount;
+            case HOURLY:
+                return bulkInsertHourly(db, values);
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /*
+        Writes each row as an UPDATE of the existing location/date row, falling back to an
+        INSERT for dates we don't have yet.  Unlike the ON CONFLICT REPLACE insert this keeps
+        the row (and its _id) in place, and the notifications go only to the locations and
+        dates that were written (see collectWeatherUris), so a loader showing another day or
+        another location doesn't requery.  Every row must have all the weather columns, since
+        both statements set them all.
+     */
+    private int upsertWeather(SQLiteDatabase db, ContentValues[] values) {
+        // location id -> dates written for it
+        HashMap<Long, HashSet<Long>> written = new HashMap<Long, HashSet<Long>>();
+        int returnCount = 0;
+        db.beginTransaction();
+        SQLiteStatement update = mStatements.acquire(db, SQL_UPDATE_WEATHER);
+        SQLiteStatement insert = mStatements.acquire(db, SQL_INSERT_WEATHER);
+        try {
+            for (ContentValues value : values) {
+                normalizeDate(value);
+                Long locationId = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+                Long date = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+                if (locationId == null || date == null) {
+                    throw new IllegalArgumentException("Upserted weather needs a location and a date");
+                }
+                bindWeather(update, value);
+                if (update.executeUpdateDelete() == 0) {
+                    bindWeather(insert, value);
+                    if (insert.executeInsert() == -1) {
+                        continue;
+                    }
+                }
+                returnCount++;
+                addWritten(written, locationId, date);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            mStatements.release(db, SQL_UPDATE_WEATHER, update);
+            mStatements.release(db, SQL_INSERT_WEATHER, insert);
+            db.endTransaction();
+        }
+
+        notifyWeatherWritten(db, written);
+        return returnCount;
+    }
+
+    static final String SQL_UPDATE_WEATHER = "UPDATE " +
+            WeatherContract.WeatherEntry.TABLE_NAME + " SET " +
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + " = ?, " +
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + " = ?, " +
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY + " = ?, " +
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE + " = ?, " +
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + " = ?, " +
+            WeatherContract.WeatherEntry.COLUMN_DEGREES + " = ?, " +
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + " = ?, " +
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC + " = ? WHERE " +
+            sLocationIdAndDateSelection;
+
+    // The same UPDATE, but it leaves rows that already hold these values alone.  ?1 to ?8 are
+    // the values bound for the SET clause.
+    private static final String SQL_UPDATE_CHANGED_WEATHER = SQL_UPDATE_WEATHER + " AND (" +
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + " IS NOT ?1 OR " +
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + " IS NOT ?2 OR " +
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY + " IS NOT ?3 OR " +
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE + " IS NOT ?4 OR " +
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + " IS NOT ?5 OR " +
+            WeatherContract.WeatherEntry.COLUMN_DEGREES + " IS NOT ?6 OR " +
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + " IS NOT ?7 OR " +
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC + " IS NOT ?8)";
+
+    private static final String WEATHER_INSERT_TARGET = " INTO " +
+            WeatherContract.WeatherEntry.TABLE_NAME + " (" +
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ", " +
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ", " +
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY + ", " +
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE + ", " +
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + ", " +
+            WeatherContract.WeatherEntry.COLUMN_DEGREES + ", " +
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + ", " +
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC + ", " +
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + ", " +
+            WeatherContract.WeatherEntry.COLUMN_DATE + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String SQL_INSERT_WEATHER = "INSERT" + WEATHER_INSERT_TARGET;
+
+    // Inserts only dates the location doesn't have yet; OR IGNORE overrides the table's ON
+    // CONFLICT REPLACE
+    private static final String SQL_INSERT_NEW_WEATHER = "INSERT OR IGNORE" + WEATHER_INSERT_TARGET;
+
+    //Delete a location's days before a date
+    private static final String SQL_PRUNE_WEATHER = "DELETE FROM " +
+            WeatherContract.WeatherEntry.TABLE_NAME + " WHERE " +
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+            WeatherContract.WeatherEntry.COLUMN_DATE + " < ?";
+
+    private static final String SQL_INSERT_LOCATION = "INSERT INTO " +
+            WeatherContract.LocationEntry.TABLE_NAME + " (" +
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + ", " +
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME + ", " +
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT + ", " +
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG + ") VALUES (?, ?, ?, ?)";
+
+    // Leaves the row alone when nothing moved; ?1 to ?3 are the values bound for the SET clause
+    private static final String SQL_REFRESH_LOCATION = "UPDATE " +
+            WeatherContract.LocationEntry.TABLE_NAME + " SET " +
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME + " = ?1, " +
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT + " = ?2, " +
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG + " = ?3 WHERE " +
+            WeatherContract.LocationEntry._ID + " = ?4 AND (" +
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME + " IS NOT ?1 OR " +
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT + " IS NOT ?2 OR " +
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG + " IS NOT ?3)";
+
+    // Slots replace the stored ones through the primary key's ON CONFLICT REPLACE
+    private static final String SQL_INSERT_HOURLY = "INSERT INTO " +
+            WeatherContract.HourlyEntry.TABLE_NAME + " (" +
+            WeatherContract.HourlyEntry._ID + ", " +
+            WeatherContract.HourlyEntry.COLUMN_LOC_KEY + ", " +
+            WeatherContract.HourlyEntry.COLUMN_TIME + ", " +
+            WeatherContract.HourlyEntry.COLUMN_WEATHER_ID + ", " +
+            WeatherContract.HourlyEntry.COLUMN_TEMP + ", " +
+            WeatherContract.HourlyEntry.COLUMN_HUMIDITY + ", " +
+            WeatherContract.HourlyEntry.COLUMN_PRESSURE + ", " +
+            WeatherContract.HourlyEntry.COLUMN_WIND_SPEED + ", " +
+            WeatherContract.HourlyEntry.COLUMN_DEGREES + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    //Delete a location's slots in an _ID range
+    private static final String SQL_PRUNE_HOURLY = "DELETE FROM " +
+            WeatherContract.HourlyEntry.TABLE_NAME + " WHERE " +
+            WeatherContract.HourlyEntry._ID + " >= ? AND " +
+            WeatherContract.HourlyEntry._ID + " < ?";
+
+    private static final String SQL_LOCATION_ID_FOR_SETTING = "SELECT " +
+            WeatherContract.LocationEntry._ID + " FROM " +
+            WeatherContract.LocationEntry.TABLE_NAME + " WHERE " +
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?";
+
+    private static final String SQL_LOCATION_SETTING_FOR_ID = "SELECT " +
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " FROM " +
+            WeatherContract.LocationEntry.TABLE_NAME + " WHERE " +
+            WeatherContract.LocationEntry._ID + " = ?";
+
+    //the setting of a weather row's location, as a subquery of a query on weather
+    private static final String SQL_LOCATION_SETTING_FOR_LOC_KEY = "SELECT " +
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " FROM " +
+            WeatherContract.LocationEntry.TABLE_NAME + " WHERE " +
+            WeatherContract.LocationEntry.TABLE_NAME + "." + WeatherContract.LocationEntry._ID +
+            " = " + WeatherContract.WeatherEntry.TABLE_NAME + "." +
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY;
+
+    private static final String SQL_STORE_VALIDATORS = "UPDATE " +
+            WeatherContract.LocationEntry.TABLE_NAME + " SET " +
+            WeatherContract.LocationEntry.COLUMN_ETAG + " = ?, " +
+            WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED + " = ? WHERE " +
+            WeatherContract.LocationEntry._ID + " = ?";
+
+    /*
+        The ForecastBatch flavour of upsertWeather.  Every row is bound straight from the
+        batch's arrays, so nothing is boxed and nothing is normalized again.  The two
+        statements share their parameter order: the values first, then location and date.
+     */
+    private int upsertWeatherBatch(SQLiteDatabase db, ForecastBatch batch) {
+        HashMap<Long, HashSet<Long>> written = new HashMap<Long, HashSet<Long>>();
+        int returnCount = 0;
+        db.beginTransaction();
+        SQLiteStatement update = mStatements.acquire(db, SQL_UPDATE_WEATHER);
+        SQLiteStatement insert = mStatements.acquire(db, SQL_INSERT_WEATHER);
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                bindWeather(update, batch, i, batch.getLocationId(i));
+                if (update.executeUpdateDelete() == 0) {
+                    bindWeather(insert, batch, i, batch.getLocationId(i));
+                    if (insert.executeInsert() == -1) {
+                        continue;
+                    }
+                }
+                returnCount++;
+                addWritten(written, batch.getLocationId(i), batch.getDate(i));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            mStatements.release(db, SQL_UPDATE_WEATHER, update);
+            mStatements.release(db, SQL_INSERT_WEATHER, insert);
+            db.endTransaction();
+        }
+
+        notifyWeatherWritten(db, written);
+        return returnCount;
+    }
+
+    // The columns of SQL_UPDATE_WEATHER and SQL_INSERT_WEATHER, in parameter order
+    private static final String[] WEATHER_PARAMETER_COLUMNS = {
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+            WeatherContract.WeatherEntry.COLUMN_DATE
+    };
+
+    // A missing column is bound as null, which the NOT NULL constraint then rejects
+    private static void bindWeather(SQLiteStatement statement, ContentValues values) {
+        for (int i = 0; i < WEATHER_PARAMETER_COLUMNS.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1,
+                    values.get(WEATHER_PARAMETER_COLUMNS[i]));
+        }
+    }
+
+    private static void bindWeather(SQLiteStatement statement, ForecastBatch batch, int i,
+                                    long locationId) {
+        statement.bindDouble(1, batch.getHigh(i));
+        statement.bindDouble(2, batch.getLow(i));
+        statement.bindDouble(3, batch.getHumidity(i));
+        statement.bindDouble(4, batch.getPressure(i));
+        statement.bindDouble(5, batch.getWindSpeed(i));
+        statement.bindDouble(6, batch.getDegrees(i));
+        statement.bindLong(7, batch.getWeatherId(i));
+        statement.bindString(8, batch.getDescription(i));
+        statement.bindLong(9, locationId);
+        statement.bindLong(10, batch.getDate(i));
+    }
+
+    /*
+        METHOD_INGEST: everything a sync writes for its locations in one call and one
+        transaction, where it used to take a location query and insert, a query of the stored
+        days to diff against, the upsert, a delete of old days and a validator update per
+        location.  The diff happens in SQL: the UPDATE skips rows that already hold the
+        values, and the INSERT OR IGNORE skips dates that exist.  The hourly slots of the
+        preferred location ride along, so a sync's daily rows, slots, prunes and location
+        metadata swap in with one commit and readers never see some without the others.
+     */
+    private Bundle ingestForecast(SQLiteDatabase db, Bundle payload) {
+        String[] settings = payload.getStringArray(WeatherContract.WeatherEntry.EXTRA_LOCATION_SETTINGS);
+        String[] cityNames = payload.getStringArray(WeatherContract.WeatherEntry.EXTRA_CITY_NAMES);
+        double[] lats = payload.getDoubleArray(WeatherContract.WeatherEntry.EXTRA_COORD_LATS);
+        double[] longs = payload.getDoubleArray(WeatherContract.WeatherEntry.EXTRA_COORD_LONGS);
+        String[] etags = payload.getStringArray(WeatherContract.WeatherEntry.EXTRA_ETAGS);
+        String[] lastModifieds = payload.getStringArray(WeatherContract.WeatherEntry.EXTRA_LAST_MODIFIEDS);
+        int[] rowCounts = payload.getIntArray(WeatherContract.WeatherEntry.EXTRA_ROW_COUNTS);
+        ForecastBatch batch = payload.getParcelable(WeatherContract.WeatherEntry.EXTRA_BATCH);
+        long staleBefore = payload.getLong(WeatherContract.WeatherEntry.EXTRA_STALE_BEFORE, Long.MIN_VALUE);
+        if (settings == null || cityNames == null || lats == null || longs == null ||
+                etags == null || lastModifieds == null || rowCounts == null || batch == null) {
+            throw new IllegalArgumentException("Incomplete forecast payload");
+        }
+        int totalRows = 0;
+        for (int count : rowCounts) {
+            totalRows += count;
+        }
+        int locations = settings.length;
+        if (cityNames.length != locations || lats.length != locations ||
+                longs.length != locations || etags.length != locations ||
+                lastModifieds.length != locations || rowCounts.length != locations ||
+                totalRows != batch.size()) {
+            throw new IllegalArgumentException("Forecast payload arrays don't match");
+        }
+
+        long[] cachedIds = payload.getLongArray(WeatherContract.WeatherEntry.EXTRA_CACHED_LOCATION_IDS);
+        if (cachedIds != null && cachedIds.length != locations) {
+            throw new IllegalArgumentException("Forecast payload arrays don't match");
+        }
+
+        String hourlySetting = payload.getString(WeatherContract.WeatherEntry.EXTRA_HOURLY_LOCATION_SETTING);
+        Parcelable[] hourlyValues = payload.getParcelableArray(WeatherContract.WeatherEntry.EXTRA_HOURLY_VALUES);
+        if (hourlySetting != null && hourlyValues == null) {
+            throw new IllegalArgumentException("Incomplete hourly payload");
+        }
+
+        long[] locationIds = new long[locations];
+        long hourlyLocationId = -1;
+        HashMap<Long, HashSet<Long>> written = new HashMap<Long, HashSet<Long>>();
+        ArrayList<String> pruned = new ArrayList<String>();
+        // the location URI goes first, so observers of the list of locations hear it first
+        LinkedHashSet<Uri> changedUris = new LinkedHashSet<Uri>();
+        int inserted = 0;
+        int replaced = 0;
+        int deleted = 0;
+        int hourlyWritten = 0;
+        int hourlyDeleted = 0;
+
+        db.beginTransaction();
+        SQLiteStatement update = mStatements.acquire(db, SQL_UPDATE_CHANGED_WEATHER);
+        SQLiteStatement insert = mStatements.acquire(db, SQL_INSERT_NEW_WEATHER);
+        SQLiteStatement prune = mStatements.acquire(db, SQL_PRUNE_WEATHER);
+        SQLiteStatement storeValidators = mStatements.acquire(db, SQL_STORE_VALIDATORS);
+        SQLiteStatement insertLocation = mStatements.acquire(db, SQL_INSERT_LOCATION);
+        SQLiteStatement refreshLocation = mStatements.acquire(db, SQL_REFRESH_LOCATION);
+        try {
+            // Holding the write lock now: a location delete either committed before this,
+            // and moved the generation on, or waits until after it
+            boolean cacheCurrent = payload.containsKey(
+                    WeatherContract.WeatherEntry.EXTRA_LOCATION_ID_GENERATION) &&
+                    payload.getInt(WeatherContract.WeatherEntry.EXTRA_LOCATION_ID_GENERATION) ==
+                            LocationIdCache.getGeneration();
+            int row = 0;
+            for (int l = 0; l < locations; l++) {
+                long locationId = resolveLocation(db, insertLocation, refreshLocation,
+                        settings[l], cacheCurrent && cachedIds != null ? cachedIds[l] : -1,
+                        cityNames[l], lats[l], longs[l], changedUris);
+                locationIds[l] = locationId;
+
+                for (int end = row + rowCounts[l]; row < end; row++) {
+                    bindWeather(update, batch, row, locationId);
+                    if (update.executeUpdateDelete() > 0) {
+                        replaced++;
+                    } else {
+                        bindWeather(insert, batch, row, locationId);
+                        if (insert.executeInsert() == -1) {
+                            // already stored with these values
+                            continue;
+                        }
+                        inserted++;
+                    }
+                    addWritten(written, locationId, batch.getDate(row));
+                }
+
+                prune.bindLong(1, locationId);
+                prune.bindLong(2, staleBefore);
+                int prunedRows = prune.executeUpdateDelete();
+                if (prunedRows > 0) {
+                    deleted += prunedRows;
+                    pruned.add(settings[l]);
+                }
+
+                bindStringOrNull(storeValidators, 1, etags[l]);
+                bindStringOrNull(storeValidators, 2, lastModifieds[l]);
+                storeValidators.bindLong(3, locationId);
+                storeValidators.executeUpdateDelete();
+            }
+
+            if (hourlySetting != null) {
+                hourlyLocationId = resolveLocation(db, insertLocation, refreshLocation,
+                        hourlySetting, cacheCurrent ? payload.getLong(
+                                WeatherContract.WeatherEntry.EXTRA_HOURLY_CACHED_LOCATION_ID, -1) : -1,
+                        payload.getString(WeatherContract.WeatherEntry.EXTRA_HOURLY_CITY_NAME),
+                        payload.getDouble(WeatherContract.WeatherEntry.EXTRA_HOURLY_COORD_LAT),
+                        payload.getDouble(WeatherContract.WeatherEntry.EXTRA_HOURLY_COORD_LONG),
+                        changedUris);
+                hourlyWritten = writeHourly(db, hourlyLocationId, hourlyValues);
+                hourlyDeleted = pruneHourly(db, hourlyLocationId, payload.getLong(
+                        WeatherContract.WeatherEntry.EXTRA_HOURLY_ENDED_BEFORE, 0));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            mStatements.release(db, SQL_UPDATE_CHANGED_WEATHER, update);
+            mStatements.release(db, SQL_INSERT_NEW_WEATHER, insert);
+            mStatements.release(db, SQL_PRUNE_WEATHER, prune);
+            mStatements.release(db, SQL_STORE_VALIDATORS, storeValidators);
+            mStatements.release(db, SQL_INSERT_LOCATION, insertLocation);
+            mStatements.release(db, SQL_REFRESH_LOCATION, refreshLocation);
+            db.endTransaction();
+        }
+
+        // nothing is notified before the commit, so observers never requery half a sync
+        collectWeatherUris(db, written, changedUris);
+        for (String locationSetting : pruned) {
+            changedUris.add(WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting));
+        }
+        if (hourlyWritten > 0 || hourlyDeleted > 0) {
+            changedUris.add(WeatherContract.HourlyEntry.buildHourlyLocation(hourlySetting));
+        }
+        notifyChanges(changedUris);
+
+        Bundle reply = new Bundle();
+        reply.putLongArray(WeatherContract.WeatherEntry.EXTRA_LOCATION_IDS, locationIds);
+        reply.putInt(WeatherContract.WeatherEntry.EXTRA_ROW_COUNT, inserted + replaced);
+        reply.putInt(WeatherContract.WeatherEntry.EXTRA_INSERTED_COUNT, inserted);
+        reply.putInt(WeatherContract.WeatherEntry.EXTRA_DELETED_COUNT, deleted);
+        if (hourlySetting != null) {
+            reply.putLong(WeatherContract.WeatherEntry.EXTRA_HOURLY_LOCATION_ID, hourlyLocationId);
+            reply.putInt(WeatherContract.WeatherEntry.EXTRA_HOURLY_ROW_COUNT, hourlyWritten);
+            reply.putInt(WeatherContract.WeatherEntry.EXTRA_HOURLY_DELETED_COUNT, hourlyDeleted);
+        }
+        return reply;
+    }
+
+    /*
+        The id of a location, inserting it if need be.  cachedId is the caller's
+        LocationIdCache entry, already checked against the generation, or -1; with one the
+        lookup is skipped.  A stored location whose city name or coordinates moved gets the
+        new ones, in the same transaction as its forecast; the guarded UPDATE leaves it (and
+        the current_forecast rows its trigger would rewrite) alone otherwise.
+     */
+    private long resolveLocation(SQLiteDatabase db, SQLiteStatement insertLocation,
+                                 SQLiteStatement refreshLocation, String locationSetting,
+                                 long cachedId, String cityName, double lat, double lon,
+                                 LinkedHashSet<Uri> changedUris) {
+        long locationId = cachedId != -1 ? cachedId : getLocationId(db, locationSetting);
+        if (locationId == -1) {
+            insertLocation.bindString(1, locationSetting);
+            bindStringOrNull(insertLocation, 2, cityName);
+            insertLocation.bindDouble(3, lat);
+            insertLocation.bindDouble(4, lon);
+            locationId = insertLocation.executeInsert();
+            changedUris.add(WeatherContract.LocationEntry.CONTENT_URI);
+        } else if (cityName != null) {
+            refreshLocation.bindString(1, cityName);
+            refreshLocation.bindDouble(2, lat);
+            refreshLocation.bindDouble(3, lon);
+            refreshLocation.bindLong(4, locationId);
+            if (refreshLocation.executeUpdateDelete() > 0) {
+                changedUris.add(WeatherContract.LocationEntry.CONTENT_URI);
+            }
+        }
+        return locationId;
+    }
+
+    // Replaces the slots of one location; see bulkInsertHourly
+    private int writeHourly(SQLiteDatabase db, long locationId, Parcelable[] rows) {
+        SQLiteStatement insert = mStatements.acquire(db, SQL_INSERT_HOURLY);
+        try {
+            for (Parcelable row : rows) {
+                ContentValues values = (ContentValues) row;
+                long time = getHourlyLong(values, WeatherContract.HourlyEntry.COLUMN_TIME);
+                if (time < 0 || time > WeatherContract.HourlyEntry.MAX_TIME) {
+                    throw new IllegalArgumentException("Hourly weather needs a location and a time");
+                }
+                insert.bindLong(1, WeatherContract.HourlyEntry.buildRowId(locationId, time));
+                insert.bindLong(2, locationId);
+                insert.bindLong(3, time);
+                insert.bindLong(4, getHourlyLong(values, WeatherContract.HourlyEntry.COLUMN_WEATHER_ID));
+                insert.bindLong(5, getHourlyLong(values, WeatherContract.HourlyEntry.COLUMN_TEMP));
+                insert.bindLong(6, getHourlyLong(values, WeatherContract.HourlyEntry.COLUMN_HUMIDITY));
+                insert.bindLong(7, getHourlyLong(values, WeatherContract.HourlyEntry.COLUMN_PRESSURE));
+                insert.bindLong(8, getHourlyLong(values, WeatherContract.HourlyEntry.COLUMN_WIND_SPEED));
+                insert.bindLong(9, getHourlyLong(values, WeatherContract.HourlyEntry.COLUMN_DEGREES));
+                insert.executeInsert();
+            }
+        } finally {
+            mStatements.release(db, SQL_INSERT_HOURLY, insert);
+        }
+        return rows.length;
+    }
+
+    // A bad row fails the whole snapshot rather than being skipped
+    private static long getHourlyLong(ContentValues values, String column) {
+        Long value = values.getAsLong(column);
+        if (value == null) {
+            throw new IllegalArgumentException("Hourly weather needs a " + column);
+        }
+        return value;
+    }
+
+    // The slots of one location are a range of _IDs; see HourlyEntry.buildRowId
+    private int pruneHourly(SQLiteDatabase db, long locationId, long endedBefore) {
+        endedBefore = Math.max(0, Math.min(endedBefore, WeatherContract.HourlyEntry.MAX_TIME));
+        SQLiteStatement prune = mStatements.acquire(db, SQL_PRUNE_HOURLY);
+        try {
+            prune.bindLong(1, WeatherContract.HourlyEntry.buildRowId(locationId, 0));
+            prune.bindLong(2, WeatherContract.HourlyEntry.buildRowId(locationId, endedBefore));
+            return prune.executeUpdateDelete();
+        } finally {
+            mStatements.release(db, SQL_PRUNE_HOURLY, prune);
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private long getLocationId(SQLiteDatabase db, String locationSetting) {
+        SQLiteStatement lookup = mStatements.acquire(db, SQL_LOCATION_ID_FOR_SETTING);
+        try {
+            lookup.bindString(1, locationSetting);
+            return lookup.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            // no such location
+            return -1;
+        } finally {
+            mStatements.release(db, SQL_LOCATION_ID_FOR_SETTING, lookup);
+        }
+    }
+
+    private static void addWritten(HashMap<Long, HashSet<Long>> written, long locationId,
+                                   long date) {
+        HashSet<Long> dates = written.get(locationId);
+        if (dates == null) {
+            dates = new HashSet<Long>();
+            written.put(locationId, dates);
+        }
+        dates.add(date);
+    }
+
+    private void notifyWeatherWritten(SQLiteDatabase db, HashMap<Long, HashSet<Long>> written) {
+        LinkedHashSet<Uri> changedUris = new LinkedHashSet<Uri>();
+        collectWeatherUris(db, written, changedUris);
+        notifyChanges(changedUris);
+    }
+
+    /*
+        The narrowest URIs that reach every observer of the rows written, one per location:
+        the location/date URI if a single day of the location changed, so only the list of
+        that location and the detail view of that day reload, and otherwise the location's
+        URI, which reaches the same observers with one notification instead of one per day.
+        Observers of other locations hear nothing.
+     */
+    private void collectWeatherUris(SQLiteDatabase db, HashMap<Long, HashSet<Long>> written,
+                                    LinkedHashSet<Uri> changedUris) {
+        for (Map.Entry<Long, HashSet<Long>> entry : written.entrySet()) {
+            HashSet<Long> dates = entry.getValue();
+            changedUris.add(getWeatherUri(db, entry.getKey(),
+                    dates.size() == 1 ? dates.iterator().next() : null));
+        }
+    }
+
+    // The same, for the rows a selection on the weather table matches, before they change
+    private void collectWeatherUris(SQLiteDatabase db, String selection, String[] selectionArgs,
+                                    LinkedHashSet<Uri> changedUris) {
+        Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                new String[]{"(" + SQL_LOCATION_SETTING_FOR_LOC_KEY + ")",
+                        "MIN(" + WeatherContract.WeatherEntry.COLUMN_DATE + ")", "COUNT(*)"},
+                selection, selectionArgs, WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                null, null);
+        try {
+            while (cursor.moveToNext()) {
+                if (cursor.isNull(0)) {
+                    changedUris.add(WeatherContract.WeatherEntry.CONTENT_URI);
+                } else if (cursor.getInt(2) == 1) {
+                    changedUris.add(WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                            cursor.getString(0), cursor.getLong(1)));
+                } else {
+                    changedUris.add(WeatherContract.WeatherEntry.buildWeatherLocation(
+                            cursor.getString(0)));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // The same, for every day of the locations with these settings; null for rows of no location
+    private static void collectWeatherUris(Set<String> locationSettings,
+                                           LinkedHashSet<Uri> changedUris) {
+        for (String locationSetting : locationSettings) {
+            changedUris.add(locationSetting == null ?
+                    WeatherContract.WeatherEntry.CONTENT_URI :
+                    WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting));
+        }
+    }
+
+    /**
+     * @param date the day written, or null for several days of the location
+     * @return the URI observers of the location's weather (or of that day) are watching; the
+     * whole weather URI for a location that doesn't exist
+     */
+    private Uri getWeatherUri(SQLiteDatabase db, Long locationId, Long date) {
+        String locationSetting = locationId == null ? null : getLocationSetting(db, locationId);
+        if (locationSetting == null) {
+            return WeatherContract.WeatherEntry.CONTENT_URI;
+        }
+        return date == null ?
+                WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting) :
+                WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationSetting, date);
+    }
+
+    private Uri getHourlyUri(SQLiteDatabase db, Long locationId) {
+        String locationSetting = locationId == null ? null : getLocationSetting(db, locationId);
+        return locationSetting == null ?
+                WeatherContract.HourlyEntry.CONTENT_URI :
+                WeatherContract.HourlyEntry.buildHourlyLocation(locationSetting);
+    }
+
+    /*
+        Slots already stored are replaced through the primary key's ON CONFLICT REPLACE, and
+        each location written gets one notification on its hourly/* URI.
+     */
+    private int bulkInsertHourly(SQLiteDatabase db, ContentValues[] values) {
+        HashSet<Long> locationIds = new HashSet<Long>();
+        int returnCount = 0;
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                setHourlyRowId(value);
+                if (db.insert(WeatherContract.HourlyEntry.TABLE_NAME, null, value) != -1) {
+                    returnCount++;
+                    locationIds.add(value.getAsLong(WeatherContract.HourlyEntry.COLUMN_LOC_KEY));
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        for (Long locationId : locationIds) {
+            notifyChange(getHourlyUri(db, locationId));
+        }
+        return returnCount;
+    }
+
+    /**
+     * @return how many change notifications the provider in this process has sent so far.
+     */
+    public static long getNotifyCount() {
+        return sNotifyCount.get();
+    }
+
+    private void notifyChange(Uri uri) {
+        LinkedHashSet<Uri> pending = mPendingNotifications.get();
+        if (pending != null) {
+            pending.add(uri);
+        } else {
+            mNotifier.notifyChange(uri);
+        }
+    }
+
+    private void notifyChanges(LinkedHashSet<Uri> uris) {
+        for (Uri uri : uris) {
+            notifyChange(uri);
+        }
+    }
+
+    private void sendNotification(Uri uri) {
+        sNotifyCount.incrementAndGet();
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
+    /*
+        Runs the whole batch in one transaction, so it commits (or fails) as a unit and costs
+        one journal commit instead of one per operation.  An operation marked withYieldAllowed
+        lets readers waiting on the database in between; what was committed by then is
+        notified then.  Each changed URI is notified once, after the commit.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        LinkedHashSet<Uri> pending = new LinkedHashSet<Uri>();
+        ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+        mPendingNotifications.set(pending);
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < operations.size(); i++) {
+                ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && operation.isYieldAllowed() && db.yieldIfContendedSafely()) {
+                    flushNotifications(pending);
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mPendingNotifications.remove();
+        }
+        flushNotifications(pending);
+        return results;
+    }
+
+    private void flushNotifications(LinkedHashSet<Uri> pending) {
+        for (Uri uri : pending) {
+            mNotifier.notifyChange(uri);
+        }
+        pending.clear();
+    }
+
+    /*
+        The only way into the sync_metrics table, which is otherwise read-only: insert,
+        update and delete don't know its URI.  Also takes ForecastBatch upserts, whole
+        sync ingestions, the retention pass and the write sessions holding notifications.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.SyncMetricsEntry.METHOD_RECORD.equals(method)) {
+            ContentValues values = extras.getParcelable(WeatherContract.SyncMetricsEntry.EXTRA_VALUES);
+            recordSyncMetrics(mOpenHelper.getWritableDatabase(), values);
+            return null;
+        }
+        if (WeatherContract.WeatherEntry.METHOD_UPSERT_BATCH.equals(method)) {
+            extras.setClassLoader(ForecastBatch.class.getClassLoader());
+            ForecastBatch batch = extras.getParcelable(WeatherContract.WeatherEntry.EXTRA_BATCH);
+            Bundle result = new Bundle();
+            result.putInt(WeatherContract.WeatherEntry.EXTRA_ROW_COUNT,
+                    upsertWeatherBatch(mOpenHelper.getWritableDatabase(), batch));
+            return result;
+        }
+        if (WeatherContract.WeatherEntry.METHOD_INGEST.equals(method)) {
+            extras.setClassLoader(ForecastBatch.class.getClassLoader());
+            // an ingest that changes nothing notifies nothing, but its session is still alive
+            mNotifier.onWrite();
+            return ingestForecast(mOpenHelper.getWritableDatabase(), extras);
+        }
+        if (WeatherContract.WeatherEntry.METHOD_MAINTAIN.equals(method)) {
+            return runMaintenance(mOpenHelper.getWritableDatabase(), extras);
+        }
+        if (WeatherContract.METHOD_BEGIN_WRITE_SESSION.equals(method)) {
+            Bundle reply = new Bundle();
+            reply.putLong(WeatherContract.EXTRA_SESSION_TOKEN, mNotifier.beginSession());
+            return reply;
+        }
+        if (WeatherContract.METHOD_END_WRITE_SESSION.equals(method)) {
+            if (extras == null || !extras.containsKey(WeatherContract.EXTRA_SESSION_TOKEN)) {
+                throw new IllegalArgumentException("Ending a write session needs its token");
+            }
+            mNotifier.endSession(extras.getLong(WeatherContract.EXTRA_SESSION_TOKEN),
+                    extras.getLong(WeatherContract.EXTRA_DEBOUNCE_MILLIS));
+            return null;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    private void recordSyncMetrics(SQLiteDatabase db, ContentValues values) {
+        db.beginTransaction();
+        try {
+            long run = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" +
+                    WeatherContract.SyncMetricsEntry.COLUMN_RUN + "), 0) + 1 FROM " +
+                    WeatherContract.SyncMetricsEntry.TABLE_NAME, null);
+            values.put(WeatherContract.SyncMetricsEntry.COLUMN_RUN, run);
+            // overwrites the run CAPACITY runs back, if there is one
+            values.put(WeatherContract.SyncMetricsEntry._ID,
+                    run % WeatherContract.SyncMetricsEntry.CAPACITY);
+            db.insertOrThrow(WeatherContract.SyncMetricsEntry.TABLE_NAME, null, values);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        // no notifyChange: every run records one, the not-modified ones included, and those
+        // must not wake observers under BASE_CONTENT_URI when no forecast changed
+    }
+
+    private Bundle runMaintenance(SQLiteDatabase db, Bundle extras) {
+        long startTime = System.currentTimeMillis();
+        WeatherMaintenance.Report report = WeatherMaintenance.run(db,
+                extras.getLong(WeatherContract.WeatherEntry.EXTRA_STALE_BEFORE),
+                extras.getInt(WeatherContract.WeatherEntry.EXTRA_DAILY_BUDGET,
+                        WeatherMaintenance.DEFAULT_DAILY_BUDGET),
+                extras.getInt(WeatherContract.WeatherEntry.EXTRA_HOURLY_BUDGET,
+                        WeatherMaintenance.DEFAULT_HOURLY_BUDGET));
+
+        // only the locations the pass trimmed; a stale location nobody is looking at
+        // shouldn't reload every forecast on screen
+        LinkedHashSet<Uri> changedUris = new LinkedHashSet<Uri>();
+        if (report.locationsDeleted > 0) {
+            changedUris.add(WeatherContract.LocationEntry.CONTENT_URI);
+        }
+        collectWeatherUris(report.weatherLocationSettings, changedUris);
+        for (String locationSetting : report.hourlyLocationSettings) {
+            changedUris.add(locationSetting == null ?
+                    WeatherContract.HourlyEntry.CONTENT_URI :
+                    WeatherContract.HourlyEntry.buildHourlyLocation(locationSetting));
+        }
+        notifyChanges(changedUris);
+
+        int deleted = report.weatherDeleted + report.hourlyDeleted;
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.SyncMetricsEntry.COLUMN_KIND,
+                WeatherContract.SyncMetricsEntry.KIND_MAINTENANCE);
+        values.put(WeatherContract.SyncMetricsEntry.COLUMN_START_TIME, startTime);
+        values.put(WeatherContract.SyncMetricsEntry.COLUMN_DURATION, report.durationMillis);
+        values.put(WeatherContract.SyncMetricsEntry.COLUMN_LOCATIONS, report.locationsDeleted);
+        values.put(WeatherContract.SyncMetricsEntry.COLUMN_NOT_MODIFIED, 0);
+        values.put(WeatherContract.SyncMetricsEntry.COLUMN_CONNECT_TIME, 0);
+        values.put(WeatherContract.SyncMetricsEntry.COLUMN_FIRST_BYTE_TIME, 0);
+        values.put(WeatherContract.SyncMetricsEntry.COLUMN_BYTES, report.getReclaimedBytes());
+        values.put(WeatherContract.SyncMetricsEntry.COLUMN_PARSE_TIME, 0);
+        values.put(WeatherContract.SyncMetricsEntry.COLUMN_ROWS_INSERTED, 0);
+        values.put(WeatherContract.SyncMetricsEntry.COLUMN_ROWS_REPLACED, 0);
+        values.put(WeatherContract.SyncMetricsEntry.COLUMN_ROWS_DELETED, deleted);
+        values.put(WeatherContract.SyncMetricsEntry.COLUMN_NOTIFY_COUNT, 0);
+        recordSyncMetrics(db, values);
+
+        Bundle result = new Bundle();
+        result.putInt(WeatherContract.WeatherEntry.EXTRA_DELETED_COUNT, deleted);
+        result.putLong(WeatherContract.WeatherEntry.EXTRA_RECLAIMED_BYTES,
+                report.getReclaimedBytes());
+        result.putLong(WeatherContract.WeatherEntry.EXTRA_DURATION, report.durationMillis);
+        return result;
+    }
+
+    private String getLocationSetting(SQLiteDatabase db, long locationId) {
+        SQLiteStatement lookup = mStatements.acquire(db, SQL_LOCATION_SETTING_FOR_ID);
+        try {
+            lookup.bindLong(1, locationId);
+            return lookup.simpleQueryForString();
+        } catch (SQLiteDoneException e) {
+            return null;
+        } finally {
+            mStatements.release(db, SQL_LOCATION_SETTING_FOR_ID, lookup);
+        }
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
     @Override
-    @TargetApi(11)
     public void shutdown() {
+        mStatements.close();
         mOpenHelper.close();
         super.shutdown();
     }
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Passes responses through from another source and records every complete body in a
+ * {@link ForecastCache}, so the last forecast of each location can be replayed later by
+ * {@link ReplayWeatherSource}.
+ */
+public class CachingWeatherSource implements WeatherSource {
+
+    private final WeatherSource mUpstream;
+    private final ForecastCache mCache;
+
+    public CachingWeatherSource(WeatherSource upstream, ForecastCache cache) {
+        mUpstream = upstream;
+        mCache = cache;
+    }
+
+    @Override
+    public Response open(String locationSetting, ConditionalGet.Validators validators)
+            throws IOException {
+        Response response = mUpstream.open(locationSetting, validators);
+        if (response.isNotModified()) {
+            // the cached body is still the current one
+            mCache.touch(ForecastCache.KIND_DAILY, locationSetting);
+            return response;
+        }
+        return new RecordingResponse(response, ForecastCache.KIND_DAILY, locationSetting);
+    }
+
+    @Override
+    public Response openHourly(String locationSetting) throws IOException {
+        return new RecordingResponse(mUpstream.openHourly(locationSetting),
+                ForecastCache.KIND_HOURLY, locationSetting);
+    }
+
+    /**
+     * Writes the body into the cache as it is read.  Closing reads whatever the consumer left
+     * and commits the whole document; aborting throws the partial copy away.
+     */
+    private class RecordingResponse extends Response {
+        private final Response mResponse;
+        private final TeeInputStream mTee;
+
+        RecordingResponse(Response response, int kind, String locationSetting) {
+            this(response, new TeeInputStream(response.getBody(), mCache.record(kind,
+                    locationSetting, response.getValidators(), System.currentTimeMillis())));
+        }
+
+        private RecordingResponse(Response response, TeeInputStream tee) {
+            super(tee, response.getValidators());
+            mResponse = response;
+            mTee = tee;
+        }
+
+        @Override
+        public long getBytesRead() {
+            return mResponse.getBytesRead();
+        }
+
+        @Override
+        public long getConnectMillis() {
+            return mResponse.getConnectMillis();
+        }
+
+        @Override
+        public long getFirstByteMillis() {
+            return mResponse.getFirstByteMillis();
+        }
+
+        @Override
+        public void close() throws IOException {
+            boolean complete = false;
+            try {
+                byte[] buffer = new byte[1024];
+                while (mTee.read(buffer) != -1) {
+                    // the rest of the document
+                }
+                complete = true;
+            } finally {
+                if (complete) {
+                    mTee.commit();
+                } else {
+                    mTee.abort();
+                }
+                mResponse.close();
+            }
+        }
+
+        @Override
+        public void abort() throws IOException {
+            mTee.abort();
+            mResponse.abort();
+        }
+    }
+
+    private static class TeeInputStream extends FilterInputStream {
+        // null if the cache couldn't take the body; the stream still passes it through
+        private final ForecastCache.Recording mCopy;
+
+        TeeInputStream(InputStream in, ForecastCache.Recording copy) {
+            super(in);
+            mCopy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1 && mCopy != null) {
+                mCopy.write(new byte[]{(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n > 0 && mCopy != null) {
+                mCopy.write(buffer, offset, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // skipped bytes have to be recorded too
+            byte[] buffer = new byte[(int) Math.min(count, 1024)];
+            int n = read(buffer, 0, buffer.length);
+            return n == -1 ? 0 : n;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        void commit() {
+            if (mCopy != null) {
+                mCopy.commit();
+            }
+        }
+
+        void abort() {
+            if (mCopy != null) {
+                mCopy.abort();
+            }
+        }
+    }
+}
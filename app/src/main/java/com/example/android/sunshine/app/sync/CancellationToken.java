@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Cooperative cancellation for ingestion work.  Whoever owns the work calls {@link #cancel()};
+ * the work checks {@link #throwIfCanceled()} at its stage boundaries and, through
+ * {@link #wrap(InputStream)}, on every read of the download, so it stops within one buffer
+ * of being cancelled.
+ * <p/>
+ * A token made with a parent is also cancelled when the parent is, so cancelling an ingester
+ * cancels every operation it has running.
+ */
+public class CancellationToken {
+
+    /**
+     * Thrown by work that noticed it was cancelled.  It is an InterruptedIOException so that
+     * the fetch path's existing IOException handling unwinds it, but callers should not count
+     * it as a failure.
+     */
+    public static class CanceledException extends InterruptedIOException {
+        public CanceledException() {
+            super("Canceled");
+        }
+    }
+
+    private final CancellationToken mParent;
+    private volatile boolean mCanceled;
+
+    public CancellationToken() {
+        this(null);
+    }
+
+    public CancellationToken(CancellationToken parent) {
+        mParent = parent;
+    }
+
+    public void cancel() {
+        mCanceled = true;
+    }
+
+    public boolean isCanceled() {
+        return mCanceled || (mParent != null && mParent.isCanceled());
+    }
+
+    public void throwIfCanceled() throws CanceledException {
+        if (isCanceled()) {
+            throw new CanceledException();
+        }
+    }
+
+    /**
+     * @return a stream that throws CanceledException from any read once this token is
+     * cancelled
+     */
+    public InputStream wrap(InputStream in) {
+        return new CancelableInputStream(in);
+    }
+
+    private class CancelableInputStream extends FilterInputStream {
+
+        CancelableInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            throwIfCanceled();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            throwIfCanceled();
+            return super.read(buffer, offset, count);
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            throwIfCanceled();
+            return super.skip(count);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+import java.net.HttpURLConnection;
+
+/**
+ * Helpers for making forecast requests conditional on the validators (ETag / Last-Modified)
+ * of the last response we stored for a location.  When the forecast hasn't changed upstream
+ * the server answers 304 and the caller can skip parsing and every database write.
+ */
+public class ConditionalGet {
+
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private static final String[] VALIDATOR_PROJECTION = {
+            LocationEntry.COLUMN_ETAG,
+            LocationEntry.COLUMN_LAST_MODIFIED
+    };
+    // these indices must match the projection
+    private static final int INDEX_ETAG = 0;
+    private static final int INDEX_LAST_MODIFIED = 1;
+
+    /**
+     * Validators of a stored forecast response.  Either may be null.
+     */
+    public static class Validators {
+        public final String etag;
+        public final String lastModified;
+
+        public Validators(String etag, String lastModified) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        public boolean isEmpty() {
+            return etag == null && lastModified == null;
+        }
+    }
+
+    /**
+     * @return the validators stored for the location, or empty validators if the location
+     * has never been synced.
+     */
+    public static Validators load(ContentResolver resolver, String locationSetting) {
+        Cursor cursor = resolver.query(
+                LocationEntry.CONTENT_URI,
+                VALIDATOR_PROJECTION,
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null);
+        try {
+            if (cursor != null && cursor.moveToFirst()) {
+                return new Validators(cursor.getString(INDEX_ETAG),
+                        cursor.getString(INDEX_LAST_MODIFIED));
+            }
+            return new Validators(null, null);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Adds the conditional request headers.  Must be called before the connection is opened.
+     */
+    public static void apply(HttpURLConnection connection, Validators validators) {
+        if (validators.etag != null) {
+            connection.setRequestProperty(HEADER_IF_NONE_MATCH, validators.etag);
+        }
+        if (validators.lastModified != null) {
+            connection.setRequestProperty(HEADER_IF_MODIFIED_SINCE, validators.lastModified);
+        }
+    }
+
+    /**
+     * @return true if the server told us our stored forecast is still current.
+     */
+    public static boolean isNotModified(int responseCode) {
+        return responseCode == HttpURLConnection.HTTP_NOT_MODIFIED;
+    }
+
+    public static Validators fromResponse(HttpURLConnection connection) {
+        return new Validators(connection.getHeaderField(HEADER_ETAG),
+                connection.getHeaderField(HEADER_LAST_MODIFIED));
+    }
+}
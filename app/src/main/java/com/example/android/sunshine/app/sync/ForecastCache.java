@@ -0,0 +1,454 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the last raw forecast response of every location on disk, so ingestion can be
+ * replayed without the network: after WeatherDbHelper wipes the schema, after data has been
+ * deleted, or to run the same input through the pipeline again for a benchmark.
+ * <p/>
+ * One file per location and kind: a small header (magic, fetch time, validators) followed by
+ * the gzipped body.  Reads map the file instead of copying it onto the heap.  The directory is
+ * bounded to a byte budget, evicting the least recently used locations first.
+ */
+public class ForecastCache {
+
+    private static final String LOG_TAG = ForecastCache.class.getSimpleName();
+
+    public static final int KIND_DAILY = 0;
+    public static final int KIND_HOURLY = 1;
+    private static final String[] KIND_PREFIXES = {"d-", "h-"};
+
+    private static final String DIRECTORY_NAME = "forecast_cache";
+    private static final String REPLAY_PENDING_NAME = "replay_pending";
+    private static final long DEFAULT_MAX_BYTES = 512 * 1024;
+
+    private static final int MAGIC = 0x53554e31; // "SUN1"
+
+    private static ForecastCache sInstance;
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    // file name -> size, least recently used first; loaded from the directory on first use
+    private LinkedHashMap<String, Long> mEntries;
+    private long mTotalBytes;
+
+    public static synchronized ForecastCache getInstance(Context context) {
+        if (sInstance == null) {
+            File directory = new File(context.getApplicationContext().getFilesDir(), DIRECTORY_NAME);
+            sInstance = new ForecastCache(directory, DEFAULT_MAX_BYTES);
+        }
+        return sInstance;
+    }
+
+    public ForecastCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * A cached response.  The body reads straight from the mapped file.
+     */
+    public static class Entry {
+        public final ConditionalGet.Validators validators;
+        // when the response was fetched, in milliseconds since the epoch
+        public final long fetchedAt;
+        public final InputStream body;
+
+        Entry(ConditionalGet.Validators validators, long fetchedAt, InputStream body) {
+            this.validators = validators;
+            this.fetchedAt = fetchedAt;
+            this.body = body;
+        }
+    }
+
+    /**
+     * @return the cached response, or null if there is none.
+     */
+    public synchronized Entry get(int kind, String locationSetting) {
+        String name = fileName(kind, locationSetting);
+        if (loadEntries().get(name) == null) {
+            return null;
+        }
+        File file = new File(mDirectory, name);
+        try {
+            ByteBuffer buffer = map(file);
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a cached forecast");
+            }
+            long fetchedAt = buffer.getLong();
+            String etag = getString(buffer);
+            String lastModified = getString(buffer);
+            InputStream body = new GZIPInputStream(new ByteBufferInputStream(buffer.slice()));
+            touch(file);
+            return new Entry(new ConditionalGet.Validators(etag, lastModified), fetchedAt, body);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Dropping unreadable cache file " + name, e);
+            remove(name);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the response, replacing the location's previous one, and evicts the least
+     * recently used locations if the cache is over its budget.
+     */
+    public void put(int kind, String locationSetting, ConditionalGet.Validators validators,
+                    byte[] body, long fetchedAt) {
+        Recording recording = record(kind, locationSetting, validators, fetchedAt);
+        if (recording != null) {
+            recording.write(body, 0, body.length);
+            recording.commit();
+        }
+    }
+
+    /**
+     * Starts storing a response whose body is still being read: the body is gzipped into a
+     * temporary file as it is handed to {@link Recording#write}, so it is never held on the
+     * heap as a whole.
+     *
+     * @return the recording, or null if the file couldn't be created
+     */
+    public Recording record(int kind, String locationSetting,
+                            ConditionalGet.Validators validators, long fetchedAt) {
+        String name = fileName(kind, locationSetting);
+        synchronized (this) {
+            loadEntries();
+        }
+        File temp = null;
+        try {
+            // a name of its own, should two downloads of the location overlap
+            temp = File.createTempFile(name + ".", ".tmp", mDirectory);
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+            try {
+                out.writeInt(MAGIC);
+                out.writeLong(fetchedAt);
+                putString(out, validators == null ? null : validators.etag);
+                putString(out, validators == null ? null : validators.lastModified);
+                return new Recording(name, locationSetting, temp, new GZIPOutputStream(out));
+            } catch (IOException e) {
+                out.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Couldn't cache forecast for " + locationSetting, e);
+            if (temp != null) {
+                temp.delete();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A response on its way into the cache.  Nothing is visible to readers until
+     * {@link #commit}; {@link #abort} leaves the previous response in place.  Failing to write
+     * is logged and only costs the cache entry, never the download.
+     */
+    public class Recording {
+        private final String mName;
+        private final String mLocationSetting;
+        private final File mTemp;
+        private final GZIPOutputStream mOut;
+        private boolean mFailed;
+
+        private Recording(String name, String locationSetting, File temp, GZIPOutputStream out) {
+            mName = name;
+            mLocationSetting = locationSetting;
+            mTemp = temp;
+            mOut = out;
+        }
+
+        public void write(byte[] buffer, int offset, int count) {
+            if (mFailed) {
+                return;
+            }
+            try {
+                mOut.write(buffer, offset, count);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Couldn't cache forecast for " + mLocationSetting, e);
+                mFailed = true;
+            }
+        }
+
+        /**
+         * Replaces the location's cached response with this one and evicts the least recently
+         * used locations if the cache is over its budget.
+         */
+        public void commit() {
+            try {
+                if (mFailed) {
+                    throw new IOException("Write failed");
+                }
+                mOut.finish();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Couldn't cache forecast for " + mLocationSetting, e);
+                abort();
+                return;
+            } finally {
+                closeQuietly();
+            }
+            synchronized (ForecastCache.this) {
+                loadEntries();
+                // a reader never sees half a file
+                File file = new File(mDirectory, mName);
+                if (!mTemp.renameTo(file)) {
+                    Log.e(LOG_TAG, "Couldn't rename " + mTemp);
+                    mTemp.delete();
+                    return;
+                }
+                Long replaced = mEntries.remove(mName);
+                if (replaced != null) {
+                    mTotalBytes -= replaced;
+                }
+                mEntries.put(mName, file.length());
+                mTotalBytes += file.length();
+                trim();
+            }
+        }
+
+        public void abort() {
+            closeQuietly();
+            mTemp.delete();
+        }
+
+        private void closeQuietly() {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // the file goes either way
+            }
+        }
+    }
+
+    /**
+     * Marks the location as recently used, for a response that was not modified.
+     */
+    public synchronized void touch(int kind, String locationSetting) {
+        String name = fileName(kind, locationSetting);
+        if (loadEntries().get(name) != null) {
+            touch(new File(mDirectory, name));
+        }
+    }
+
+    /**
+     * @return the locations with a cached response of the given kind, least recently used
+     * first.
+     */
+    public synchronized List<String> getLocationSettings(int kind) {
+        List<String> locationSettings = new ArrayList<String>();
+        String prefix = KIND_PREFIXES[kind];
+        for (String name : loadEntries().keySet()) {
+            if (name.startsWith(prefix)) {
+                locationSettings.add(decodeHex(name.substring(prefix.length())));
+            }
+        }
+        return locationSettings;
+    }
+
+    public synchronized long getTotalBytes() {
+        loadEntries();
+        return mTotalBytes;
+    }
+
+    public synchronized void clear() {
+        for (String name : new ArrayList<String>(loadEntries().keySet())) {
+            remove(name);
+        }
+    }
+
+    /**
+     * Asks for the cache to be replayed into the database, e.g. because the schema was wiped.
+     * The request survives a process restart.
+     */
+    public synchronized void markReplayPending() {
+        try {
+            mDirectory.mkdirs();
+            new File(mDirectory, REPLAY_PENDING_NAME).createNewFile();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Couldn't mark the cache for replay", e);
+        }
+    }
+
+    /**
+     * @return whether a replay was pending; the request is cleared either way.
+     */
+    public synchronized boolean takeReplayPending() {
+        return new File(mDirectory, REPLAY_PENDING_NAME).delete();
+    }
+
+    private LinkedHashMap<String, Long> loadEntries() {
+        if (mEntries != null) {
+            return mEntries;
+        }
+        mEntries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        mTotalBytes = 0;
+        mDirectory.mkdirs();
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return mEntries;
+        }
+        // the modification times carry the LRU order across process restarts
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".tmp")) {
+                file.delete();
+            } else if (!name.equals(REPLAY_PENDING_NAME)) {
+                mEntries.put(name, file.length());
+                mTotalBytes += file.length();
+            }
+        }
+        return mEntries;
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (mTotalBytes > mMaxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            new File(mDirectory, eldest.getKey()).delete();
+            mTotalBytes -= eldest.getValue();
+            it.remove();
+            Log.d(LOG_TAG, "Evicted " + eldest.getKey());
+        }
+    }
+
+    private void remove(String name) {
+        Long size = mEntries.remove(name);
+        if (size != null) {
+            mTotalBytes -= size;
+            new File(mDirectory, name).delete();
+        }
+    }
+
+    private static void touch(File file) {
+        // best effort: some file systems don't support it, and then only the in-process
+        // order is kept
+        file.setLastModified(System.currentTimeMillis());
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // the mapping stays valid once the file is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+    }
+
+    // Strings are a length (-1 for null) followed by UTF-8 bytes
+    private static void putString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeShort(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static String fileName(int kind, String locationSetting) {
+        StringBuilder sb = new StringBuilder(KIND_PREFIXES[kind]);
+        try {
+            for (byte b : locationSetting.getBytes("UTF-8")) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return sb.toString();
+    }
+
+    private static String decodeHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) {
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            count = Math.min(count, mBuffer.remaining());
+            mBuffer.get(buffer, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+}
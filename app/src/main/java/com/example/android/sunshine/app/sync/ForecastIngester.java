@@ -0,0 +1,830 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.ForecastBatch;
+import com.example.android.sunshine.app.data.LocationIdCache;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.data.WeatherProvider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * The one path forecasts take from a {@link WeatherSource} (OpenWeatherMap unless told
+ * otherwise) into the database.  Both FetchWeatherTask and SunshineSyncAdapter drive it.
+ * Ingestion runs in four stages:
+ * <ol>
+ * <li>fetch - open the (conditional) request on the source and wait for the response</li>
+ * <li>decode - pull-parse the response body into rows</li>
+ * <li>normalize - stamp every day with its UTC date and gather the locations' payload</li>
+ * <li>write - one provider call resolves the location rows, writes only the days whose
+ * values changed, prunes stale ones and remembers the HTTP validators</li>
+ * </ol>
+ * Fetch and decode don't touch the database, so several locations can be downloaded in
+ * parallel and then written together, along with the 3-hourly forecast of one of them.  The
+ * time spent in every stage is added to per-run and process-wide {@link StageTimings}.
+ */
+public class ForecastIngester {
+
+    private static final String LOG_TAG = ForecastIngester.class.getSimpleName();
+
+    // The stages of an ingestion run, used to index StageTimings
+    public static final int STAGE_FETCH = 0;
+    public static final int STAGE_DECODE = 1;
+    public static final int STAGE_NORMALIZE = 2;
+    public static final int STAGE_WRITE = 3;
+    static final int STAGE_COUNT = 4;
+
+    private static final String[] STAGE_NAMES = {"fetch", "decode", "normalize", "write"};
+
+    private static final StageTimings sProcessTimings = new StageTimings();
+
+    // ingest() and ingestSnapshot() calls in flight in this process, by location setting
+    private static final SingleFlight<Result> sInFlight = new SingleFlight<Result>();
+    // fetch stages in flight, which a batch sync's fetches join as well
+    private static final SingleFlight<Forecast> sFetchesInFlight = new SingleFlight<Forecast>();
+    // the single location operations running in this process, with their locations
+    private static final HashMap<CancellationToken, String> sRunning =
+            new HashMap<CancellationToken, String>();
+
+    private final Context mContext;
+    private final WeatherSource mSource;
+    private final CancellationToken mCancel = new CancellationToken();
+
+    public ForecastIngester(Context context) {
+        this(context, new CachingWeatherSource(new HttpWeatherSource(),
+                ForecastCache.getInstance(context)));
+    }
+
+    public ForecastIngester(Context context, String forecastBaseUrl) {
+        this(context, new CachingWeatherSource(new HttpWeatherSource(forecastBaseUrl),
+                ForecastCache.getInstance(context)));
+    }
+
+    public ForecastIngester(Context context, WeatherSource source) {
+        mContext = context;
+        mSource = source;
+    }
+
+    /**
+     * @return the time spent in every stage by all ingestion runs in this process.
+     */
+    public static StageTimings getProcessTimings() {
+        return sProcessTimings;
+    }
+
+    /**
+     * Accumulated wall time and invocation count per stage.
+     */
+    public static class StageTimings {
+        private final long[] mMillis = new long[STAGE_COUNT];
+        private final int[] mCounts = new int[STAGE_COUNT];
+
+        synchronized void add(int stage, long millis) {
+            mMillis[stage] += millis;
+            mCounts[stage]++;
+        }
+
+        synchronized void addAll(StageTimings other) {
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                mMillis[i] += other.getMillis(i);
+                mCounts[i] += other.getCount(i);
+            }
+        }
+
+        public synchronized long getMillis(int stage) {
+            return mMillis[stage];
+        }
+
+        public synchronized int getCount(int stage) {
+            return mCounts[stage];
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(STAGE_NAMES[i]).append(' ').append(mMillis[i]).append(" ms");
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * The forecast of one location as it moves through the stages.
+     */
+    public static class Forecast {
+        public final String locationSetting;
+        final StageTimings timings = new StageTimings();
+
+        // null when the server told us our stored copy is still current
+        ForecastJsonParser.BatchCollector rows;
+        ConditionalGet.Validators validators;
+        long locationId = -1;
+        long elapsedMillis;
+        // when the fetch started, in milliseconds since the epoch
+        long startTime;
+        // when the document was fetched, which is earlier than startTime for a replay
+        long fetchedAt;
+        long connectMillis;
+        long firstByteMillis;
+        long bytesRead;
+
+        Forecast(String locationSetting) {
+            this.locationSetting = locationSetting;
+        }
+
+        public boolean isNotModified() {
+            return rows == null;
+        }
+
+        /**
+         * @return wall time of the fetch and decode stages
+         */
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+    }
+
+    /**
+     * The 3-hourly forecast of one location, fetched and decoded but not written.
+     */
+    public static class HourlyForecast {
+        public final String locationSetting;
+        final StageTimings timings = new StageTimings();
+
+        String cityName;
+        double cityLatitude;
+        double cityLongitude;
+        Vector<ContentValues> rows;
+        long startTime;
+        long connectMillis;
+        long firstByteMillis;
+        long bytesRead;
+
+        HourlyForecast(String locationSetting) {
+            this.locationSetting = locationSetting;
+        }
+    }
+
+    /**
+     * What a call to {@link #write} did.
+     */
+    public static class Result {
+        public int rowsWritten;
+        // of the rows written, how many were new and how many replaced a stored day
+        public int rowsInserted;
+        public int rowsReplaced;
+        public int rowsUnchanged;
+        public int rowsDeleted;
+        public int locationsFetched;
+        public int locationsNotModified;
+        public int locationsWritten;
+        // summed over the fetched locations
+        public long connectMillis;
+        public long firstByteMillis;
+        public long bytesDownloaded;
+        // change notifications the provider sent for the write
+        public long notifyCount;
+        // whether the 3-hourly forecast went into the write too
+        public boolean hourlyWritten;
+        public final StageTimings timings = new StageTimings();
+
+        // Sums what another write did into this one
+        void add(Result other) {
+            rowsWritten += other.rowsWritten;
+            rowsInserted += other.rowsInserted;
+            rowsReplaced += other.rowsReplaced;
+            rowsUnchanged += other.rowsUnchanged;
+            rowsDeleted += other.rowsDeleted;
+            locationsFetched += other.locationsFetched;
+            locationsNotModified += other.locationsNotModified;
+            locationsWritten += other.locationsWritten;
+            connectMillis += other.connectMillis;
+            firstByteMillis += other.firstByteMillis;
+            bytesDownloaded += other.bytesDownloaded;
+            notifyCount += other.notifyCount;
+            hourlyWritten |= other.hourlyWritten;
+            timings.addAll(other.timings);
+        }
+    }
+
+    /**
+     * Runs all four stages for a single location.  A refresh tap, a location change and an
+     * expedited sync often ask for the same location at once, so a call that overlaps one
+     * already running for its location joins it and returns the same Result.  If that
+     * flight is cancelled, the callers that joined it run their own.
+     *
+     * @return what was written; nothing if the forecast had not changed upstream.
+     */
+    public Result ingest(final String locationSetting) throws IOException {
+        return sInFlight.execute(locationSetting, new SingleFlight.Call<Result>() {
+            @Override
+            public Result call() throws IOException {
+                return ingestNow(locationSetting);
+            }
+        });
+    }
+
+    private Result ingestNow(String locationSetting) throws IOException {
+        CancellationToken token = startOperation(locationSetting);
+        try {
+            Forecast forecast = fetchShared(locationSetting, token);
+            if (forecast.isNotModified()) {
+                Log.d(LOG_TAG, "Forecast for " + locationSetting + " not modified");
+            }
+            // last chance to back out before taking the database write lock
+            token.throwIfCanceled();
+            return write(Collections.singletonList(forecast));
+        } finally {
+            endOperation(token);
+        }
+    }
+
+    /**
+     * Like {@link #ingest}, but fetches the 3-hourly forecast too and writes both in one
+     * provider call: the days, the slots, the pruning of stale ones and the location's
+     * metadata commit as one snapshot, so readers see the old forecast or the new one and
+     * never a mix, and the sync costs one commit.  If only the hourly fetch fails, the daily
+     * forecast is written on its own.
+     * <p/>
+     * It shares its flight with {@link #ingest}, so the daily forecast is fetched once
+     * whichever of the two started first.  A call that joins a plain ingest() fetches and
+     * writes the hourly forecast itself once that has landed.
+     *
+     * @return what was written, summed over both forecasts
+     */
+    public Result ingestSnapshot(final String locationSetting) throws IOException {
+        final boolean[] led = new boolean[1];
+        Result daily = sInFlight.execute(locationSetting, new SingleFlight.Call<Result>() {
+            @Override
+            public Result call() throws IOException {
+                led[0] = true;
+                return ingestSnapshotNow(locationSetting);
+            }
+        });
+        if (led[0] || daily.hourlyWritten) {
+            return daily;
+        }
+
+        // the joined Result is shared with the other callers, so it isn't added to in place
+        Result result = new Result();
+        result.add(daily);
+        try {
+            result.add(ingestHourly(locationSetting));
+        } catch (CancellationToken.CanceledException e) {
+            throw e;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Hourly forecast for " + locationSetting + " failed", e);
+        }
+        return result;
+    }
+
+    private Result ingestSnapshotNow(String locationSetting) throws IOException {
+        CancellationToken token = startOperation(locationSetting);
+        try {
+            Forecast forecast = fetchShared(locationSetting, token);
+            HourlyForecast hourly = null;
+            try {
+                hourly = fetchHourly(locationSetting, token);
+            } catch (CancellationToken.CanceledException e) {
+                throw e;
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Hourly forecast for " + locationSetting + " failed", e);
+            }
+            token.throwIfCanceled();
+            return write(Collections.singletonList(forecast), hourly);
+        } finally {
+            endOperation(token);
+        }
+    }
+
+    /**
+     * Ingests every forecast in the {@link ForecastCache} again, without the network: the
+     * daily forecasts in one write, then the hourly ones.  A location whose cached response
+     * can't be replayed is skipped.
+     *
+     * @return what the daily write did
+     */
+    public static Result replayCache(Context context) {
+        ForecastCache cache = ForecastCache.getInstance(context);
+        ForecastIngester ingester = new ForecastIngester(context, new ReplayWeatherSource(cache));
+        List<Forecast> forecasts = new ArrayList<Forecast>();
+        for (String locationSetting : cache.getLocationSettings(ForecastCache.KIND_DAILY)) {
+            try {
+                // not shared: a network fetch mustn't join a replay, nor the other way round
+                forecasts.add(ingester.fetch(locationSetting, ingester.mCancel));
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Couldn't replay the forecast for " + locationSetting, e);
+            }
+        }
+        Result result = ingester.write(forecasts);
+        for (String locationSetting : cache.getLocationSettings(ForecastCache.KIND_HOURLY)) {
+            try {
+                ingester.ingestHourly(locationSetting);
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Couldn't replay the hourly forecast for " + locationSetting, e);
+            }
+        }
+        Log.d(LOG_TAG, "Replayed " + forecasts.size() + " cached forecasts");
+        return result;
+    }
+
+    /**
+     * Replays the cache if something asked for it with ForecastCache.markReplayPending, e.g.
+     * WeatherDbHelper after wiping the schema.
+     *
+     * @return what was written, or null if no replay was pending
+     */
+    public static Result replayCacheIfPending(Context context) {
+        if (!ForecastCache.getInstance(context).takeReplayPending()) {
+            return null;
+        }
+        return replayCache(context);
+    }
+
+    /**
+     * @return the token cancelling everything this ingester does
+     */
+    public CancellationToken getCancellationToken() {
+        return mCancel;
+    }
+
+    /**
+     * Cancels every ingest() and ingestHourly() running in this process for a location other
+     * than locationSetting.  Called when the preferred location changes, so the work for the
+     * old one stops downloading and doesn't take the database write lock.  Batch syncs are
+     * left alone: refreshing every location is what they are for.
+     *
+     * @return how many operations were cancelled
+     */
+    public static int cancelAllExcept(String locationSetting) {
+        int canceled = 0;
+        synchronized (sRunning) {
+            for (Map.Entry<CancellationToken, String> operation : sRunning.entrySet()) {
+                if (!operation.getValue().equals(locationSetting)) {
+                    operation.getKey().cancel();
+                    canceled++;
+                }
+            }
+        }
+        if (canceled > 0) {
+            Log.d(LOG_TAG, "Cancelled " + canceled + " ingests superseded by " + locationSetting);
+        }
+        return canceled;
+    }
+
+    private CancellationToken startOperation(String locationSetting) throws IOException {
+        CancellationToken token = new CancellationToken(mCancel);
+        token.throwIfCanceled();
+        synchronized (sRunning) {
+            sRunning.put(token, locationSetting);
+        }
+        return token;
+    }
+
+    private static void endOperation(CancellationToken token) {
+        synchronized (sRunning) {
+            sRunning.remove(token);
+        }
+    }
+
+    /**
+     * Fetch and decode stages: downloads and parses the forecast for one location without
+     * writing anything, so it can safely run on any thread.  A fetch that overlaps another
+     * one for the same location, e.g. a batch sync running into a refresh, joins it and
+     * returns the same Forecast.
+     */
+    public Forecast fetch(String locationSetting) throws IOException {
+        return fetchShared(locationSetting, mCancel);
+    }
+
+    private Forecast fetchShared(final String locationSetting, final CancellationToken token)
+            throws IOException {
+        return sFetchesInFlight.execute(locationSetting, new SingleFlight.Call<Forecast>() {
+            @Override
+            public Forecast call() throws IOException {
+                return fetch(locationSetting, token);
+            }
+        });
+    }
+
+    private Forecast fetch(String locationSetting, CancellationToken token) throws IOException {
+        token.throwIfCanceled();
+        long start = SystemClock.elapsedRealtime();
+        Forecast forecast = new Forecast(locationSetting);
+        forecast.startTime = System.currentTimeMillis();
+
+        // This needs to be declared outside the try/catch
+        // so that it can be closed in the finally block.
+        WeatherSource.Response response = null;
+        boolean complete = false;
+
+        try {
+            response = mSource.open(locationSetting,
+                    ConditionalGet.load(mContext.getContentResolver(), locationSetting));
+            long fetched = SystemClock.elapsedRealtime();
+            forecast.timings.add(STAGE_FETCH, fetched - start);
+            forecast.fetchedAt = response.getFetchedAt() != 0 ?
+                    response.getFetchedAt() : forecast.startTime;
+
+            if (response.isNotModified()) {
+                complete = true;
+                return forecast;
+            }
+
+            // Parse the forecast straight off the source instead of buffering the whole body
+            forecast.rows = decode(token.wrap(response.getBody()));
+            forecast.validators = response.getValidators();
+            forecast.timings.add(STAGE_DECODE, SystemClock.elapsedRealtime() - fetched);
+            complete = true;
+            return forecast;
+        } finally {
+            if (response != null) {
+                try {
+                    closeResponse(response, token, complete);
+                } catch (final IOException e) {
+                    Log.e(LOG_TAG, "Error closing stream", e);
+                }
+                forecast.connectMillis = response.getConnectMillis();
+                forecast.firstByteMillis = response.getFirstByteMillis();
+                forecast.bytesRead = response.getBytesRead();
+            }
+            forecast.elapsedMillis = SystemClock.elapsedRealtime() - start;
+        }
+    }
+
+    /**
+     * Fetches the 3-hourly forecast of one location and replaces the stored slots with it.
+     * Slots that have already ended are pruned.
+     *
+     * @return what was written
+     */
+    public Result ingestHourly(String locationSetting) throws IOException {
+        CancellationToken token = startOperation(locationSetting);
+        try {
+            return ingestHourly(locationSetting, token);
+        } finally {
+            endOperation(token);
+        }
+    }
+
+    private Result ingestHourly(String locationSetting, CancellationToken token)
+            throws IOException {
+        HourlyForecast hourly = fetchHourly(locationSetting, token);
+        token.throwIfCanceled();
+        return write(Collections.<Forecast>emptyList(), hourly);
+    }
+
+    /**
+     * Fetch and decode stages of the 3-hourly forecast; like {@link #fetch}, nothing is
+     * written.
+     */
+    public HourlyForecast fetchHourly(String locationSetting) throws IOException {
+        return fetchHourly(locationSetting, mCancel);
+    }
+
+    private HourlyForecast fetchHourly(String locationSetting, CancellationToken token)
+            throws IOException {
+        token.throwIfCanceled();
+        HourlyForecast hourly = new HourlyForecast(locationSetting);
+        hourly.startTime = System.currentTimeMillis();
+        long start = SystemClock.elapsedRealtime();
+        HourlyForecastJsonParser parser = new HourlyForecastJsonParser();
+        WeatherSource.Response response = mSource.openHourly(locationSetting);
+        long fetched = SystemClock.elapsedRealtime();
+        hourly.timings.add(STAGE_FETCH, fetched - start);
+        boolean complete = false;
+        try {
+            parser.parse(token.wrap(response.getBody()));
+            complete = parser.hasLocation();
+        } catch (IllegalStateException e) {
+            throw new ForecastJsonParser.MalformedForecastException(
+                    "Malformed hourly forecast: " + e.getMessage());
+        } catch (NumberFormatException e) {
+            throw new ForecastJsonParser.MalformedForecastException(
+                    "Malformed hourly forecast: " + e.getMessage());
+        } finally {
+            try {
+                closeResponse(response, token, complete);
+            } catch (final IOException e) {
+                Log.e(LOG_TAG, "Error closing stream", e);
+            }
+            hourly.connectMillis = response.getConnectMillis();
+            hourly.firstByteMillis = response.getFirstByteMillis();
+            hourly.bytesRead = response.getBytesRead();
+        }
+        if (!parser.hasLocation()) {
+            throw new ForecastJsonParser.MalformedForecastException(
+                    "Hourly forecast has no city information");
+        }
+        hourly.cityName = parser.cityName;
+        hourly.cityLatitude = parser.cityLatitude;
+        hourly.cityLongitude = parser.cityLongitude;
+        hourly.rows = parser.getRows();
+        hourly.timings.add(STAGE_DECODE, SystemClock.elapsedRealtime() - fetched);
+        return hourly;
+    }
+
+    // A cancelled or failed download is abandoned rather than drained for keep-alive, which
+    // also keeps it out of the ForecastCache
+    private static void closeResponse(WeatherSource.Response response, CancellationToken token,
+                                      boolean complete) throws IOException {
+        if (token.isCanceled() || !complete) {
+            response.abort();
+        } else {
+            response.close();
+        }
+    }
+
+    private ForecastJsonParser.BatchCollector decode(InputStream forecastStream)
+            throws IOException {
+        ForecastJsonParser.BatchCollector collector = new ForecastJsonParser.BatchCollector();
+        try {
+            new ForecastJsonParser().parse(forecastStream, collector);
+        } catch (IllegalStateException e) {
+            // JsonReader reports malformed documents this way
+            throw new ForecastJsonParser.MalformedForecastException(
+                    "Malformed forecast: " + e.getMessage());
+        } catch (NumberFormatException e) {
+            throw new ForecastJsonParser.MalformedForecastException(
+                    "Malformed forecast: " + e.getMessage());
+        }
+
+        if (!collector.hasLocation()) {
+            throw new ForecastJsonParser.MalformedForecastException(
+                    "Forecast has no city information");
+        }
+        return collector;
+    }
+
+    /**
+     * Normalize and write stages for forecasts that have already been fetched.  All of them
+     * go to the provider in a single call(), i.e. one round trip and one transaction.
+     */
+    public Result write(List<Forecast> forecasts) {
+        return write(forecasts, null);
+    }
+
+    /**
+     * The same, with the 3-hourly forecast of one location (if not null) in the same call, so
+     * everything commits as one snapshot.
+     */
+    public Result write(List<Forecast> forecasts, HourlyForecast hourly) {
+        Result result = new Result();
+        long runStartTime = System.currentTimeMillis();
+        List<Forecast> changed = new ArrayList<Forecast>(forecasts.size());
+        for (Forecast forecast : forecasts) {
+            result.timings.addAll(forecast.timings);
+            result.locationsFetched++;
+            result.connectMillis += forecast.connectMillis;
+            result.firstByteMillis += forecast.firstByteMillis;
+            result.bytesDownloaded += forecast.bytesRead;
+            runStartTime = Math.min(runStartTime, forecast.startTime);
+            if (forecast.isNotModified()) {
+                result.locationsNotModified++;
+            } else {
+                changed.add(forecast);
+            }
+        }
+        if (hourly != null) {
+            result.timings.addAll(hourly.timings);
+            if (forecasts.isEmpty()) {
+                result.locationsFetched++;
+            }
+            result.connectMillis += hourly.connectMillis;
+            result.firstByteMillis += hourly.firstByteMillis;
+            result.bytesDownloaded += hourly.bytesRead;
+            runStartTime = Math.min(runStartTime, hourly.startTime);
+        }
+        int kind = hourly == null ? SyncMetricsEntry.KIND_DAILY :
+                forecasts.isEmpty() ? SyncMetricsEntry.KIND_HOURLY : SyncMetricsEntry.KIND_SNAPSHOT;
+        if (changed.isEmpty() && hourly == null) {
+            sProcessTimings.addAll(result.timings);
+            if (!forecasts.isEmpty()) {
+                SyncMetrics.record(mContext.getContentResolver(),
+                        SyncMetricsEntry.KIND_DAILY, result, runStartTime);
+            }
+            return result;
+        }
+
+        // normalize
+        long start = SystemClock.elapsedRealtime();
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        // OWM returns daily forecasts based upon the local time of the city that is being
+        // asked for, which means that we need to know the GMT offset to translate this data
+        // properly.  Since this data is also sent in-order and the first day is always the
+        // current day, we're going to take advantage of that to get a nice normalized UTC
+        // date for all of our weather.
+        long gmtoff = dayTime.gmtoff;
+        int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), gmtoff);
+        // now we work exclusively in UTC
+        dayTime = new Time();
+
+        // the days of every location go in one batch, grouped by location
+        ForecastBatch incoming = new ForecastBatch(changed.size() * HttpWeatherSource.NUM_DAYS);
+        int locations = changed.size();
+        String[] settings = new String[locations];
+        String[] cityNames = new String[locations];
+        double[] lats = new double[locations];
+        double[] longs = new double[locations];
+        String[] etags = new String[locations];
+        String[] lastModifieds = new String[locations];
+        int[] rowCounts = new int[locations];
+        for (int l = 0; l < locations; l++) {
+            Forecast forecast = changed.get(l);
+            ForecastJsonParser.BatchCollector rows = forecast.rows;
+            settings[l] = forecast.locationSetting;
+            cityNames[l] = rows.cityName;
+            lats[l] = rows.cityLatitude;
+            longs[l] = rows.cityLongitude;
+            etags[l] = forecast.validators.etag;
+            lastModifieds[l] = forecast.validators.lastModified;
+            // A replayed forecast starts on the day it was fetched; its days before today
+            // are over
+            int day = Time.getJulianDay(forecast.fetchedAt, gmtoff);
+            ForecastBatch parsed = rows.getBatch();
+            int before = incoming.size();
+            for (int i = 0; i < parsed.size(); i++, day++) {
+                if (day < julianStartDay) {
+                    continue;
+                }
+                // Cheating to convert this to UTC time, which is what we want anyhow.  The
+                // provider fills in the location id.
+                incoming.add(parsed, i, -1, dayTime.setJulianDay(day));
+            }
+            rowCounts[l] = incoming.size() - before;
+        }
+        long normalized = SystemClock.elapsedRealtime();
+        result.timings.add(STAGE_NORMALIZE, normalized - start);
+
+        // write: one provider call resolves the locations, writes the days whose values
+        // moved, prunes the days before yesterday and stores the validators, in one
+        // transaction
+        Bundle payload = new Bundle();
+        payload.putStringArray(WeatherEntry.EXTRA_LOCATION_SETTINGS, settings);
+        payload.putStringArray(WeatherEntry.EXTRA_CITY_NAMES, cityNames);
+        payload.putDoubleArray(WeatherEntry.EXTRA_COORD_LATS, lats);
+        payload.putDoubleArray(WeatherEntry.EXTRA_COORD_LONGS, longs);
+        payload.putStringArray(WeatherEntry.EXTRA_ETAGS, etags);
+        payload.putStringArray(WeatherEntry.EXTRA_LAST_MODIFIEDS, lastModifieds);
+        payload.putIntArray(WeatherEntry.EXTRA_ROW_COUNTS, rowCounts);
+        payload.putParcelable(WeatherEntry.EXTRA_BATCH, incoming);
+        payload.putLong(WeatherEntry.EXTRA_STALE_BEFORE, dayTime.setJulianDay(julianStartDay - 1));
+        if (hourly != null) {
+            // the provider fills in the location id
+            payload.putString(WeatherEntry.EXTRA_HOURLY_LOCATION_SETTING, hourly.locationSetting);
+            payload.putString(WeatherEntry.EXTRA_HOURLY_CITY_NAME, hourly.cityName);
+            payload.putDouble(WeatherEntry.EXTRA_HOURLY_COORD_LAT, hourly.cityLatitude);
+            payload.putDouble(WeatherEntry.EXTRA_HOURLY_COORD_LONG, hourly.cityLongitude);
+            payload.putParcelableArray(WeatherEntry.EXTRA_HOURLY_VALUES,
+                    hourly.rows.toArray(new ContentValues[hourly.rows.size()]));
+            // A slot is over three hours after it starts
+            payload.putLong(WeatherEntry.EXTRA_HOURLY_ENDED_BEFORE,
+                    System.currentTimeMillis() / 1000 - 3 * 3600);
+        }
+
+        // The ids resolved before spare the provider the lookups; the generation is read first,
+        // so an invalidation in between makes the provider ignore them
+        int generation = LocationIdCache.getGeneration();
+        long[] cachedIds = new long[locations];
+        for (int l = 0; l < locations; l++) {
+            cachedIds[l] = LocationIdCache.get(settings[l]);
+        }
+        payload.putLongArray(WeatherEntry.EXTRA_CACHED_LOCATION_IDS, cachedIds);
+        if (hourly != null) {
+            payload.putLong(WeatherEntry.EXTRA_HOURLY_CACHED_LOCATION_ID,
+                    LocationIdCache.get(hourly.locationSetting));
+        }
+        payload.putInt(WeatherEntry.EXTRA_LOCATION_ID_GENERATION, generation);
+
+        ContentResolver resolver = mContext.getContentResolver();
+        long notifyCountBefore = WeatherProvider.getNotifyCount();
+        Bundle reply = resolver.call(WeatherEntry.CONTENT_URI, WeatherEntry.METHOD_INGEST, null,
+                payload);
+        if (reply != null) {
+            long[] locationIds = reply.getLongArray(WeatherEntry.EXTRA_LOCATION_IDS);
+            for (int l = 0; l < locations; l++) {
+                changed.get(l).locationId = locationIds[l];
+                LocationIdCache.put(settings[l], locationIds[l], generation);
+            }
+            result.rowsWritten = reply.getInt(WeatherEntry.EXTRA_ROW_COUNT);
+            result.rowsInserted = reply.getInt(WeatherEntry.EXTRA_INSERTED_COUNT);
+            result.rowsReplaced = result.rowsWritten - result.rowsInserted;
+            result.rowsDeleted = reply.getInt(WeatherEntry.EXTRA_DELETED_COUNT);
+        }
+        result.rowsUnchanged = incoming.size() - result.rowsWritten;
+        result.locationsWritten = locations;
+        if (reply != null && hourly != null) {
+            result.hourlyWritten = true;
+            LocationIdCache.put(hourly.locationSetting,
+                    reply.getLong(WeatherEntry.EXTRA_HOURLY_LOCATION_ID), generation);
+            // Slots replace whatever is stored for them; they are all counted as inserted
+            int slots = reply.getInt(WeatherEntry.EXTRA_HOURLY_ROW_COUNT);
+            result.rowsWritten += slots;
+            result.rowsInserted += slots;
+            result.rowsDeleted += reply.getInt(WeatherEntry.EXTRA_HOURLY_DELETED_COUNT);
+            if (!Arrays.asList(settings).contains(hourly.locationSetting)) {
+                result.locationsWritten++;
+            }
+        }
+        result.notifyCount = WeatherProvider.getNotifyCount() - notifyCountBefore;
+        result.timings.add(STAGE_WRITE, SystemClock.elapsedRealtime() - normalized);
+
+        sProcessTimings.addAll(result.timings);
+        SyncMetrics.record(resolver, kind, result, runStartTime);
+        Log.d(LOG_TAG, "Ingested " + result.locationsWritten + " locations" +
+                (hourly != null ? " and the hourly forecast of " + hourly.locationSetting : "") +
+                ": " + result.rowsWritten + " rows written, " + result.rowsUnchanged +
+                " unchanged, " + result.rowsDeleted + " deleted (" + result.timings + ")");
+        return result;
+    }
+
+    /**
+     * Helper method to handle insertion of a new location in the weather database.
+     *
+     * @param locationSetting The location string used to request updates from the server.
+     * @param cityName        A human-readable city name, e.g "Mountain View"
+     * @param lat             the latitude of the city
+     * @param lon             the longitude of the city
+     * @return the row ID of the added location.
+     */
+    public long addLocation(String locationSetting, String cityName, double lat, double lon) {
+        // Steady state: every location we sync has been resolved before
+        long cachedId = LocationIdCache.get(locationSetting);
+        if (cachedId != -1) {
+            return cachedId;
+        }
+        int generation = LocationIdCache.getGeneration();
+
+        // First, check if the location with this city name exists in the db
+        Cursor cursor = mContext.getContentResolver().query(
+                LocationEntry.CONTENT_URI, //table
+                new String[]{LocationEntry._ID}, //columns to return
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?", //selection
+                new String[]{locationSetting}, //Selection arguments
+                null
+        );
+        long locationId = -1;
+        try {
+            //If the cursor returned a valid position, return the ID of the row the cursor is pointing at
+            if (cursor.moveToFirst()) {
+                locationId = cursor.getLong(cursor.getColumnIndex(LocationEntry._ID));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (locationId == -1) {
+            //if it did not return location, create the location's content values and insert them in to the table
+            ContentValues values = new ContentValues();
+            values.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+            values.put(LocationEntry.COLUMN_CITY_NAME, cityName);
+            values.put(LocationEntry.COLUMN_COORD_LAT, lat);
+            values.put(LocationEntry.COLUMN_COORD_LONG, lon);
+
+            //The ID is at the end of the returned URI
+            Uri insertedUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, values);
+            locationId = ContentUris.parseId(insertedUri);
+        }
+
+        LocationIdCache.put(locationSetting, locationId, generation);
+        return locationId;
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.example.android.sunshine.app.data.ForecastBatch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Pull-parses an OpenWeatherMap daily forecast response straight off the network stream.
+ * <p/>
+ * Unlike building a JSONObject tree from the whole body, the parser only ever holds the
+ * token it is looking at, so the memory it needs does not grow with the number of days
+ * in the response.  Every day is handed to a {@link Handler} as soon as it has been read.
+ */
+public class ForecastJsonParser {
+
+    // Location information
+    private static final String OWM_CITY = "city";
+    private static final String OWM_CITY_NAME = "name";
+    private static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    private static final String OWM_LATITUDE = "lat";
+    private static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    private static final String OWM_LIST = "list";
+
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_MAX = "max";
+    private static final String OWM_MIN = "min";
+
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_DESCRIPTION = "main";
+    private static final String OWM_WEATHER_ID = "id";
+
+    /**
+     * Thrown when the document parses as JSON but isn't a forecast we understand, or doesn't
+     * parse at all.  Unlike other IOExceptions this won't get better by trying again.
+     */
+    public static class MalformedForecastException extends IOException {
+        public MalformedForecastException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Receives the pieces of a forecast as the parser reaches them.  OWM sends "city" before
+     * "list" today, but JSON doesn't promise member order, so handlers must not rely on
+     * {@link #onLocation} arriving first.
+     */
+    public interface Handler {
+        void onLocation(String cityName, double lat, double lon);
+
+        /**
+         * @param index position of the day in the "list" array, 0 being today
+         * @param day   the values for that day.  The instance is reused for the next day, so
+         *              copy anything you want to keep.
+         */
+        void onDay(int index, Day day);
+    }
+
+    /**
+     * Mutable holder for the values of a single day of the forecast.
+     */
+    public static class Day {
+        public double pressure;
+        public int humidity;
+        public double windSpeed;
+        public double windDirection;
+        public double high;
+        public double low;
+        public String description;
+        public int weatherId;
+
+        void clear() {
+            pressure = 0;
+            humidity = 0;
+            windSpeed = 0;
+            windDirection = 0;
+            high = 0;
+            low = 0;
+            description = null;
+            weatherId = 0;
+        }
+    }
+
+    private final Day mDay = new Day();
+
+    /**
+     * Parses the forecast in the stream, calling back into the handler for the location and
+     * for every day.  The stream is not closed.
+     */
+    public void parse(InputStream in, Handler handler) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY.equals(name)) {
+                readCity(reader, handler);
+            } else if (OWM_LIST.equals(name)) {
+                readList(reader, handler);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readCity(JsonReader reader, Handler handler) throws IOException {
+        String cityName = null;
+        double lat = 0;
+        double lon = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_NAME.equals(name)) {
+                cityName = reader.nextString();
+            } else if (OWM_COORD.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        lat = reader.nextDouble();
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        lon = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (cityName == null) {
+            throw new MalformedForecastException("Forecast city has no name");
+        }
+        handler.onLocation(cityName, lat, lon);
+    }
+
+    private void readList(JsonReader reader, Handler handler) throws IOException {
+        int index = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            readDay(reader, mDay);
+            handler.onDay(index++, mDay);
+        }
+        reader.endArray();
+    }
+
+    private void readDay(JsonReader reader, Day day) throws IOException {
+        day.clear();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_PRESSURE.equals(name)) {
+                day.pressure = reader.nextDouble();
+            } else if (OWM_HUMIDITY.equals(name)) {
+                day.humidity = (int) reader.nextDouble();
+            } else if (OWM_WINDSPEED.equals(name)) {
+                day.windSpeed = reader.nextDouble();
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                day.windDirection = reader.nextDouble();
+            } else if (OWM_TEMPERATURE.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String tempName = reader.nextName();
+                    if (OWM_MAX.equals(tempName)) {
+                        day.high = reader.nextDouble();
+                    } else if (OWM_MIN.equals(tempName)) {
+                        day.low = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                // Description is in a child array called "weather", which is 1 element long.
+                // That element also contains a weather code.
+                reader.beginArray();
+                boolean first = true;
+                while (reader.hasNext()) {
+                    if (!first || reader.peek() != JsonToken.BEGIN_OBJECT) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    first = false;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String weatherName = reader.nextName();
+                        if (OWM_DESCRIPTION.equals(weatherName)) {
+                            day.description = reader.nextString();
+                        } else if (OWM_WEATHER_ID.equals(weatherName)) {
+                            day.weatherId = reader.nextInt();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (day.description == null) {
+            throw new MalformedForecastException("Forecast day has no weather description");
+        }
+    }
+
+    /**
+     * Handler which appends every day to a {@link ForecastBatch} without boxing anything.  The
+     * location id and the date are left for the normalize stage of ForecastIngester.
+     */
+    public static class BatchCollector implements Handler {
+        public String cityName;
+        public double cityLatitude;
+        public double cityLongitude;
+
+        private final ForecastBatch mBatch = new ForecastBatch(16);
+
+        @Override
+        public void onLocation(String cityName, double lat, double lon) {
+            this.cityName = cityName;
+            this.cityLatitude = lat;
+            this.cityLongitude = lon;
+        }
+
+        @Override
+        public void onDay(int index, Day day) {
+            mBatch.add(0, 0, day.high, day.low, day.humidity, day.pressure, day.windSpeed,
+                    day.windDirection, day.weatherId, day.description);
+        }
+
+        public boolean hasLocation() {
+            return cityName != null;
+        }
+
+        public ForecastBatch getBatch() {
+            return mBatch;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Fetches forecasts from the OpenWeatherMap daily forecast API through a shared
+ * {@link WeatherHttpClient}.
+ */
+public class HttpWeatherSource implements WeatherSource {
+
+    private static final String LOG_TAG = HttpWeatherSource.class.getSimpleName();
+
+    // Construct the URL for the OpenWeatherMap query
+    // Possible parameters are avaiable at OWM's forecast API page, at
+    // http://openweathermap.org/API#forecast
+    public static final String FORECAST_BASE_URL =
+            "http://api.openweathermap.org/data/2.5/forecast/daily?";
+    public static final String HOURLY_FORECAST_BASE_URL =
+            "http://api.openweathermap.org/data/2.5/forecast?";
+    private static final String QUERY_PARAM = "q";
+    private static final String FORMAT_PARAM = "mode";
+    private static final String UNITS_PARAM = "units";
+    private static final String DAYS_PARAM = "cnt";
+    private static final String APP_ID = "APPID";
+    private static final String APP_KEY = "99c1da3dd06bf5bda6d3d333273554c8";
+
+    private static final String FORMAT = "json";
+    private static final String UNITS = "metric";
+    static final int NUM_DAYS = 14;
+
+    private final String mForecastBaseUrl;
+    private final String mHourlyForecastBaseUrl;
+    private final WeatherHttpClient mClient;
+
+    public HttpWeatherSource() {
+        this(FORECAST_BASE_URL);
+    }
+
+    /**
+     * @param forecastBaseUrl lets tests point the source at a local server
+     */
+    public HttpWeatherSource(String forecastBaseUrl) {
+        this(forecastBaseUrl, WeatherHttpClient.getInstance());
+    }
+
+    public HttpWeatherSource(String forecastBaseUrl, WeatherHttpClient client) {
+        this(forecastBaseUrl, HOURLY_FORECAST_BASE_URL, client);
+    }
+
+    public HttpWeatherSource(String forecastBaseUrl, String hourlyForecastBaseUrl,
+                             WeatherHttpClient client) {
+        mForecastBaseUrl = forecastBaseUrl;
+        mHourlyForecastBaseUrl = hourlyForecastBaseUrl;
+        mClient = client;
+    }
+
+    @Override
+    public Response open(String locationSetting, ConditionalGet.Validators validators)
+            throws IOException {
+        Uri builtUri = Uri.parse(mForecastBaseUrl).buildUpon()
+                .appendQueryParameter(QUERY_PARAM, locationSetting + ",USA")
+                .appendQueryParameter(FORMAT_PARAM, FORMAT)
+                .appendQueryParameter(UNITS_PARAM, UNITS)
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(NUM_DAYS))
+                .appendQueryParameter(APP_ID, APP_KEY)
+                .build();
+        return get(builtUri, validators);
+    }
+
+    @Override
+    public Response openHourly(String locationSetting) throws IOException {
+        // Without a count the endpoint returns its whole 5 day window
+        Uri builtUri = Uri.parse(mHourlyForecastBaseUrl).buildUpon()
+                .appendQueryParameter(QUERY_PARAM, locationSetting + ",USA")
+                .appendQueryParameter(FORMAT_PARAM, FORMAT)
+                .appendQueryParameter(UNITS_PARAM, UNITS)
+                .appendQueryParameter(APP_ID, APP_KEY)
+                .build();
+        return get(builtUri, new ConditionalGet.Validators(null, null));
+    }
+
+    private Response get(Uri builtUri, ConditionalGet.Validators validators)
+            throws IOException {
+        URL url = new URL(builtUri.toString());
+        Log.d(LOG_TAG, "The URL used to fetch the JSON is: " + url);
+
+        // Send the request to OpenWeatherMap; retries and timeouts are the client's business
+        WeatherHttpClient.Timing timing = new WeatherHttpClient.Timing();
+        HttpURLConnection urlConnection = mClient.get(url, validators, timing);
+        if (ConditionalGet.isNotModified(urlConnection.getResponseCode())) {
+            return Response.notModified().setTransferStats(null,
+                    timing.connectMillis, timing.firstByteMillis);
+        }
+
+        // The ingester parses straight off the wire.  Closing the response drains and closes
+        // the body, which hands the connection back to the keep-alive pool.
+        CountingInputStream wire = WeatherHttpClient.getWireStream(urlConnection);
+        final InputStream body = WeatherHttpClient.getBody(urlConnection, wire);
+        return new Response(body, ConditionalGet.fromResponse(urlConnection)) {
+            @Override
+            public void close() {
+                WeatherHttpClient.release(body);
+            }
+        }.setTransferStats(wire, timing.connectMillis, timing.firstByteMillis);
+    }
+}
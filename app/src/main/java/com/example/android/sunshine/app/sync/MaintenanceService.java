@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * Runs the provider's retention pass (WeatherEntry.METHOD_MAINTAIN) about once a day, so the
+ * database is trimmed and compacted even when no sync succeeds.
+ */
+public class MaintenanceService extends IntentService {
+
+    private static final String LOG_TAG = MaintenanceService.class.getSimpleName();
+
+    public MaintenanceService() {
+        super(LOG_TAG);
+    }
+
+    /**
+     * Sets up the daily alarm, unless it already is.  The alarm is inexact and doesn't wake
+     * the device, so the system can fold it into a wakeup it was doing anyway.  Alarms don't
+     * survive a reboot; the next launch sets it up again.
+     */
+    public static void schedule(Context context) {
+        Intent intent = new Intent(context, MaintenanceService.class);
+        if (PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HOUR,
+                AlarmManager.INTERVAL_DAY, PendingIntent.getService(context, 0, intent, 0));
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        try {
+            Bundle reply = run(getContentResolver());
+            Log.d(LOG_TAG, "Retention pass deleted " +
+                    reply.getInt(WeatherEntry.EXTRA_DELETED_COUNT) + " rows, reclaimed " +
+                    reply.getLong(WeatherEntry.EXTRA_RECLAIMED_BYTES) + " bytes in " +
+                    reply.getLong(WeatherEntry.EXTRA_DURATION) + "ms");
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Retention pass failed", e);
+        }
+    }
+
+    /**
+     * Runs one pass with the default budgets, dropping days before yesterday like a sync
+     * does.
+     */
+    public static Bundle run(ContentResolver resolver) {
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        int julianToday = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+        dayTime = new Time();
+
+        Bundle extras = new Bundle();
+        extras.putLong(WeatherEntry.EXTRA_STALE_BEFORE, dayTime.setJulianDay(julianToday - 1));
+        return resolver.call(WeatherEntry.CONTENT_URI, WeatherEntry.METHOD_MAINTAIN, null, extras);
+    }
+}
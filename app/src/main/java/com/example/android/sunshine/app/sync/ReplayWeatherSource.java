@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Serves the responses recorded in a {@link ForecastCache} instead of going to the network.
+ * Replays always serve the whole document, whatever validators are passed in, and the daily
+ * forecast keeps the date it was fetched on.
+ */
+public class ReplayWeatherSource implements WeatherSource {
+
+    private final ForecastCache mCache;
+
+    public ReplayWeatherSource(ForecastCache cache) {
+        mCache = cache;
+    }
+
+    @Override
+    public Response open(String locationSetting, ConditionalGet.Validators validators)
+            throws IOException {
+        return replay(ForecastCache.KIND_DAILY, locationSetting);
+    }
+
+    @Override
+    public Response openHourly(String locationSetting) throws IOException {
+        return replay(ForecastCache.KIND_HOURLY, locationSetting);
+    }
+
+    private Response replay(int kind, String locationSetting) throws IOException {
+        ForecastCache.Entry entry = mCache.get(kind, locationSetting);
+        if (entry == null) {
+            throw new FileNotFoundException("No cached forecast for " + locationSetting);
+        }
+        return new Response(entry.body, entry.validators).setFetchedAt(entry.fetchedAt);
+    }
+}
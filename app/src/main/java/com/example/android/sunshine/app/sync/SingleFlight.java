@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Coalesces overlapping calls for the same key: while a call for a key is running, every
+ * other caller asking for that key waits for it and gets its result (or its exception)
+ * instead of starting a second one.  Once the call finishes the key is free again, so a later
+ * caller starts a fresh call.
+ */
+public class SingleFlight<V> {
+
+    public interface Call<V> {
+        V call() throws IOException;
+    }
+
+    private static class Flight<V> {
+        final CountDownLatch done = new CountDownLatch(1);
+        V value;
+        IOException ioException;
+        RuntimeException runtimeException;
+    }
+
+    private final HashMap<String, Flight<V>> mFlights = new HashMap<String, Flight<V>>();
+
+    /**
+     * Runs call on the current thread, or, if a call for key is already in flight, waits for
+     * that one and returns its result.  A cancellation belongs to the caller that led the
+     * flight (a location switch superseding it, say), not to the ones that joined it, so if
+     * the flight ends with a {@link CancellationToken.CanceledException} they start over:
+     * one of them leads a new flight and the rest join that.
+     *
+     * @throws InterruptedIOException if the thread is interrupted while waiting to join
+     */
+    public V execute(String key, Call<V> call) throws IOException {
+        Flight<V> flight;
+        while (true) {
+            boolean leader;
+            synchronized (mFlights) {
+                flight = mFlights.get(key);
+                leader = flight == null;
+                if (leader) {
+                    flight = new Flight<V>();
+                    mFlights.put(key, flight);
+                }
+            }
+            if (leader) {
+                break;
+            }
+
+            try {
+                flight.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for " + key);
+            }
+            if (flight.ioException instanceof CancellationToken.CanceledException) {
+                continue;
+            }
+            if (flight.ioException != null) throw flight.ioException;
+            if (flight.runtimeException != null) throw flight.runtimeException;
+            return flight.value;
+        }
+
+        try {
+            flight.value = call.call();
+            return flight.value;
+        } catch (IOException e) {
+            flight.ioException = e;
+            throw e;
+        } catch (RuntimeException e) {
+            flight.runtimeException = e;
+            throw e;
+        } finally {
+            synchronized (mFlights) {
+                mFlights.remove(key);
+            }
+            // the latch publishes the result to the callers that joined
+            flight.done.countDown();
+        }
+    }
+
+    /**
+     * @return whether a call for key is running right now
+     */
+    public boolean isInFlight(String key) {
+        synchronized (mFlights) {
+            return mFlights.containsKey(key);
+        }
+    }
+}
@@ -9,8 +9,6 @@ import android.app.TaskStackBuilder;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
 import android.content.ContentResolver;
-import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -19,9 +17,9 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
-import android.text.format.Time;
 import android.util.Log;
 
 import com.example.android.sunshine.app.MainActivity;
@@ -29,17 +27,16 @@ import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
 import com.example.android.sunshine.app.data.WeatherContract;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     private static final String[] NOTIFY_WEATHER_PROJECTION = new String[]{
@@ -59,109 +56,253 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     //private static final long DAY_IN_MILLIS = 1000 * 30;
     private static final int WEATHER_NOTIFICATION_ID = 3004;
 
+    // Extra asking onPerformSync to refresh every stored location instead of just the
+    // preferred one
+    public static final String SYNC_EXTRAS_ALL_LOCATIONS = "sync_all_locations";
+    // How many forecasts a batch sync downloads at the same time
+    private static final int MAX_PARALLEL_FETCHES = 4;
+
     public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
 
+    // the ingester of the sync in progress, so onSyncCanceled can stop it
+    private volatile ForecastIngester mIngester;
+
     public SunshineSyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
     }
 
+    @Override
+    public void onSyncCanceled() {
+        ForecastIngester ingester = mIngester;
+        if (ingester != null) {
+            ingester.getCancellationToken().cancel();
+        }
+        super.onSyncCanceled();
+    }
+
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
         Log.d(LOG_TAG, "onPerformSync Called.");
 
+        // The replay, the forecasts, the hourly slots and the metrics are all written before
+        // the loaders hear about any of it
+        ContentResolver resolver = getContext().getContentResolver();
+        long session = WriteSession.begin(resolver);
+        try {
+            performSync(extras, syncResult);
+        } finally {
+            WriteSession.end(resolver, session, WriteSession.DEFAULT_DEBOUNCE_MILLIS);
+        }
+    }
+
+    private void performSync(Bundle extras, SyncResult syncResult) {
+        // Put back what a schema wipe threw away before going to the network
+        ForecastIngester.Result replayed = ForecastIngester.replayCacheIfPending(getContext());
+        if (replayed != null && replayed.rowsWritten > 0) {
+            notifyWeather();
+        }
+
+        if (extras.getBoolean(SYNC_EXTRAS_ALL_LOCATIONS, false)) {
+            performBatchSync(syncResult);
+            return;
+        }
+
         String locationQuery;
         //locationQuery = intent.getStringExtra(LOCATION_QUERY_EXTRA);
         locationQuery = Utility.getPreferredLocation(getContext());
 
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
+        // The daily and 3-hourly forecasts swap in together, in one commit
+        ForecastIngester ingester = new ForecastIngester(getContext());
+        mIngester = ingester;
+        try {
+            ForecastIngester.Result result = ingester.ingestSnapshot(locationQuery);
+            recordResult(syncResult, result);
+            if (result.rowsWritten > 0) {
+                notifyWeather();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            recordFailure(syncResult, e);
+        }
+    }
 
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
+    /**
+     * Syncs every location stored in the location table (plus the preferred one) in one pass.
+     */
+    private void performBatchSync(SyncResult syncResult) {
+        String preferredLocation = Utility.getPreferredLocation(getContext());
+        Set<String> locationSettings = queryStoredLocationSettings();
+        locationSettings.add(preferredLocation);
+
+        ForecastIngester ingester = new ForecastIngester(getContext());
+        mIngester = ingester;
+        // The 3-hourly forecast is only kept for the preferred location
+        ForecastIngester.Result result = syncLocations(ingester, locationSettings,
+                preferredLocation, syncResult);
+        if (result == null) {
+            // interrupted
+            return;
+        }
+        if (result.rowsWritten > 0) {
+            notifyWeather();
+        }
+    }
 
-        String format = "json";
-        String units = "metric";
-        int numDays = 14;
+    /**
+     * Fetches the forecasts of all the locations and writes them.  The fetch and decode stages
+     * run on a bounded pool of MAX_PARALLEL_FETCHES threads; the forecasts are then written
+     * together, so the rows of all locations go to WeatherProvider in a single transaction.
+     * Package visible so benchmarks can drive it with a synthetic {@link WeatherSource}.
+     *
+     * @return what was written, or null if the sync was interrupted or cancelled before the
+     * write.
+     */
+    ForecastIngester.Result syncLocations(ForecastIngester ingester,
+                                          Set<String> locationSettings, SyncResult syncResult) {
+        return syncLocations(ingester, locationSettings, null, syncResult);
+    }
 
-        try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APP_ID = "APPID";
-            final String APP_KEY = "99c1da3dd06bf5bda6d3d333273554c8";
-
-
-            Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
-                    .appendQueryParameter(QUERY_PARAM, locationQuery + ",USA")
-                    .appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APP_ID, APP_KEY)
-                    .build();
-
-            URL url = new URL(builtUri.toString());
-            Log.d(LOG_TAG, "The URL used to fetch the JSON is: " + url);
-
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
-
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
+    /**
+     * The same, also fetching the 3-hourly forecast of hourlyLocationSetting (if not null) on
+     * the pool and writing it in the same transaction.  A failed hourly fetch doesn't hold
+     * the daily forecasts back.
+     */
+    ForecastIngester.Result syncLocations(final ForecastIngester ingester,
+                                          Set<String> locationSettings,
+                                          final String hourlyLocationSetting,
+                                          SyncResult syncResult) {
+        int fetches = locationSettings.size() + (hourlyLocationSetting != null ? 1 : 0);
+        if (fetches == 0) {
+            // nothing to do, and a pool can't have 0 threads
+            return new ForecastIngester.Result();
+        }
+        long batchStart = SystemClock.elapsedRealtime();
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(MAX_PARALLEL_FETCHES, fetches));
+        Future<ForecastIngester.HourlyForecast> hourlyFuture = null;
+        if (hourlyLocationSetting != null) {
+            hourlyFuture = pool.submit(new Callable<ForecastIngester.HourlyForecast>() {
+                @Override
+                public ForecastIngester.HourlyForecast call() throws Exception {
+                    return ingester.fetchHourly(hourlyLocationSetting);
+                }
+            });
+        }
+        List<Future<ForecastIngester.Forecast>> futures =
+                new ArrayList<Future<ForecastIngester.Forecast>>();
+        for (final String locationSetting : locationSettings) {
+            futures.add(pool.submit(new Callable<ForecastIngester.Forecast>() {
+                @Override
+                public ForecastIngester.Forecast call() throws Exception {
+                    return ingester.fetch(locationSetting);
+                }
+            }));
+        }
+        pool.shutdown();
+
+        List<ForecastIngester.Forecast> forecasts = new ArrayList<ForecastIngester.Forecast>();
+        for (Future<ForecastIngester.Forecast> future : futures) {
+            try {
+                ForecastIngester.Forecast forecast = future.get();
+                Log.d(LOG_TAG, "Batch sync: " + forecast.locationSetting + " fetched in " +
+                        forecast.getElapsedMillis() + " ms" +
+                        (forecast.isNotModified() ? " (not modified)" : ""));
+                forecasts.add(forecast);
+            } catch (ExecutionException e) {
+                Log.e(LOG_TAG, "Batch sync: fetch failed", e.getCause());
+                recordFailure(syncResult, e.getCause());
+            } catch (InterruptedException e) {
+                // The sync was cancelled; whatever we have not fetched yet is dropped
+                pool.shutdownNow();
+                Thread.currentThread().interrupt();
+                return null;
             }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
+        }
+        ForecastIngester.HourlyForecast hourly = null;
+        if (hourlyFuture != null) {
+            try {
+                hourly = hourlyFuture.get();
+            } catch (ExecutionException e) {
+                Log.e(LOG_TAG, "Hourly forecast failed", e.getCause());
+                recordFailure(syncResult, e.getCause());
+            } catch (InterruptedException e) {
+                pool.shutdownNow();
+                Thread.currentThread().interrupt();
+                return null;
             }
+        }
+        long fetchDone = SystemClock.elapsedRealtime();
+        if (ingester.getCancellationToken().isCanceled()) {
+            return null;
+        }
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                return;
-            }
-            forecastJsonStr = buffer.toString();
-            Log.d("JSON", "The buffer is showing: " + forecastJsonStr);
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Error ", e);
-            // If the code didn't successfully get the weather data, there's no point in attemping
-            // to parse it.
+        ForecastIngester.Result result = ingester.write(forecasts, hourly);
+        recordResult(syncResult, result);
+
+        Log.d(LOG_TAG, "Batch sync of " + locationSettings.size() + " locations (" +
+                result.locationsWritten + " changed): fetch " + (fetchDone - batchStart) +
+                " ms, write " + (SystemClock.elapsedRealtime() - fetchDone) + " ms, total " +
+                (SystemClock.elapsedRealtime() - batchStart) + " ms");
+        return result;
+    }
+
+    private static void recordResult(SyncResult syncResult, ForecastIngester.Result result) {
+        // a day written over a stored one is an update, not an insert
+        syncResult.stats.numInserts += result.rowsInserted;
+        syncResult.stats.numUpdates += result.rowsReplaced;
+        syncResult.stats.numSkippedEntries += result.rowsUnchanged;
+        syncResult.stats.numDeletes += result.rowsDeleted;
+    }
+
+    /**
+     * Counts a failed fetch the way the SyncManager expects: I/O errors are soft errors it
+     * retries with its own backoff, a forecast we can't parse or a rejected API key is a hard
+     * error that it doesn't, and a Retry-After from the server pushes the next sync back.  Any
+     * other 4xx (an unknown city, say) skips the location without asking for a retry, since
+     * asking again gets the same answer.  Cancelled work isn't counted at all.
+     */
+    static void recordFailure(SyncResult syncResult, Throwable error) {
+        if (error instanceof CancellationToken.CanceledException) {
+            // superseded or cancelled on purpose, nothing went wrong
             return;
-        } catch (JSONException e) {
-            e.printStackTrace();
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+        }
+        if (error instanceof ForecastJsonParser.MalformedForecastException) {
+            syncResult.stats.numParseExceptions++;
+            return;
+        }
+        if (error instanceof WeatherHttpClient.ClientErrorException) {
+            if (((WeatherHttpClient.ClientErrorException) error).isAuthError()) {
+                syncResult.stats.numAuthExceptions++;
+            } else {
+                syncResult.stats.numSkippedEntries++;
             }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
-                }
+            return;
+        }
+        syncResult.stats.numIoExceptions++;
+        if (error instanceof WeatherHttpClient.ServerErrorException) {
+            long retryAfterSeconds = ((WeatherHttpClient.ServerErrorException) error).retryAfterSeconds;
+            if (retryAfterSeconds > 0) {
+                syncResult.delayUntil = Math.max(syncResult.delayUntil,
+                        System.currentTimeMillis() / 1000 + retryAfterSeconds);
             }
         }
+    }
 
-        // This will only happen if there was an error getting or parsing the forecast.
-        return;
-
+    private Set<String> queryStoredLocationSettings() {
+        Set<String> locationSettings = new LinkedHashSet<String>();
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                null,
+                null,
+                null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                locationSettings.add(cursor.getString(0));
+            }
+            cursor.close();
+        }
+        return locationSettings;
     }
 
     /**
@@ -177,6 +318,20 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                 context.getString(R.string.content_authority), bundle);
     }
 
+    /**
+     * Helper method to have the sync adapter refresh every stored location immediately
+     *
+     * @param context The context used to access the account service
+     */
+    public static void syncAllLocationsImmediately(Context context) {
+        Bundle bundle = new Bundle();
+        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        bundle.putBoolean(SYNC_EXTRAS_ALL_LOCATIONS, true);
+        ContentResolver.requestSync(getSyncAccount(context),
+                context.getString(R.string.content_authority), bundle);
+    }
+
     /**
      * Helper method to get the fake account to be used with SyncAdapter, or make a new one
      * if the fake account doesn't exist yet.  If we make a new account, we call the
@@ -215,220 +370,6 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         return newAccount;
     }
 
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
-
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
-
-        // These are the names of the JSON objects that need to be extracted.
-
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
-
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
-
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
-
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
-
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
-
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
-
-        try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
-
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
-
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
-
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
-
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
-
-            Time dayTime = new Time();
-            dayTime.setToNow();
-
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
-
-            // now we work exclusively in UTC
-            dayTime = new Time();
-
-            for (int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
-
-                double high;
-                double low;
-
-                String description;
-                int weatherId;
-
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
-
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay + i);
-
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
-
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
-
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
-
-                ContentValues weatherValues = new ContentValues();
-
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
-
-                cVVector.add(weatherValues);
-            }
-            int inserted = 0;
-
-            // add to database
-            if (cVVector.size() > 0) {
-                // Student: call bulkInsert to add the weatherEntries to the database here
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cVVector.toArray(cvArray));
-
-
-                //Delete entries with a date older than yesterday
-                String where = WeatherContract.WeatherEntry.COLUMN_DATE+" <?";
-                //String[] args = new String[] { yesterdayTime};
-                String[] args = new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))};
-                getContext().getContentResolver().delete( WeatherContract.WeatherEntry.CONTENT_URI, where, args );
-                Log.d("NOTI76", "Deleting entires where: " + where + " with arguments: " + args[0]);
-                Log.d("NOTI76", "Current time is: " + Long.toString(dayTime.setJulianDay(julianStartDay)));
-
-
-                notifyWeather();
-            }
-
-
-
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-        }
-        //return null;
-    }
-
-    /**
-     * Helper method to handle insertion of a new location in the weather database.
-     *
-     * @param locationSetting The location string used to request updates from the server.
-     * @param cityName        A human-readable city name, e.g "Mountain View"
-     * @param lat             the latitude of the city
-     * @param lon             the longitude of the city
-     * @return the row ID of the added location.
-     */
-    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
-    long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        // Students: First, check if the location with this city name exists in the db
-        // If it exists, return the current ID
-        // Otherwise, insert it using the content resolver and the base URI
-        String[] selectionArgs = {locationSetting};
-        String[] columns = {WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, WeatherContract.LocationEntry.COLUMN_CITY_NAME, WeatherContract.LocationEntry.COLUMN_COORD_LAT, WeatherContract.LocationEntry.COLUMN_COORD_LONG};
-
-        Cursor cursor = getContext().getContentResolver().query(
-                WeatherContract.LocationEntry.CONTENT_URI, //table
-                new String[]{WeatherContract.LocationEntry._ID}, //columns to return
-                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?", //selection
-                new String[]{locationSetting}, //Selection arguments
-                null,
-                null
-        );
-
-
-        //If the cursor returned a valid position, return the ID of the row the cursor is pointing at
-        if (cursor.moveToFirst()) {
-            return cursor.getLong(cursor.getColumnIndex(WeatherContract.LocationEntry._ID));
-        }
-        //if it did not return location, create the location's content values and insert them in to the table
-        else {
-            //populate the content values with the values passed to addLocation
-            ContentValues values = new ContentValues();
-            values.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
-            values.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
-            values.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
-            values.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
-
-
-            //insert the new values in to the location table
-            Uri insertedUri = getContext().getContentResolver().insert(WeatherContract.LocationEntry.CONTENT_URI, values);
-
-            //query for the new values just added
-            Cursor insertedCursor = getContext().getContentResolver().query(
-                    WeatherContract.LocationEntry.CONTENT_URI, //table
-                    new String[]{WeatherContract.LocationEntry._ID}, //columns to return
-                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?", //selection
-                    new String[]{locationSetting}, //Selection arguments
-                    null,
-                    null
-            );
-            //The ID is at the end of the returned URI
-            //            if (insertedCursor.moveToFirst()){
-//                return insertedCursor.getLong(insertedCursor.getColumnIndex(WeatherContract.LocationEntry._ID));
-//            }
-            return ContentUris.parseId(insertedUri);
-        }
-    }
-
-
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
     private void notifyWeather() {
         Context context = getContext();
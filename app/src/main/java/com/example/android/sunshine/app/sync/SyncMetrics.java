@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.SyncMetricsEntry;
+
+/**
+ * Writes what an ingestion run cost into the sync_metrics ring buffer, so sync intervals can
+ * be tuned and regressions spotted from real devices.
+ */
+public class SyncMetrics {
+
+    private static final String LOG_TAG = SyncMetrics.class.getSimpleName();
+
+    private SyncMetrics() {
+    }
+
+    /**
+     * Records one run.  Metrics are best effort: a failure is logged and otherwise ignored,
+     * never failing the sync.
+     *
+     * @param kind      one of the SyncMetricsEntry.KIND_ constants
+     * @param startTime when the run started, in milliseconds since the epoch
+     */
+    public static void record(ContentResolver resolver, int kind, ForecastIngester.Result result,
+                              long startTime) {
+        ContentValues values = new ContentValues();
+        values.put(SyncMetricsEntry.COLUMN_KIND, kind);
+        values.put(SyncMetricsEntry.COLUMN_START_TIME, startTime);
+        values.put(SyncMetricsEntry.COLUMN_DURATION, System.currentTimeMillis() - startTime);
+        values.put(SyncMetricsEntry.COLUMN_LOCATIONS, result.locationsFetched);
+        values.put(SyncMetricsEntry.COLUMN_NOT_MODIFIED, result.locationsNotModified);
+        values.put(SyncMetricsEntry.COLUMN_CONNECT_TIME, result.connectMillis);
+        values.put(SyncMetricsEntry.COLUMN_FIRST_BYTE_TIME, result.firstByteMillis);
+        values.put(SyncMetricsEntry.COLUMN_BYTES, result.bytesDownloaded);
+        values.put(SyncMetricsEntry.COLUMN_PARSE_TIME,
+                result.timings.getMillis(ForecastIngester.STAGE_DECODE));
+        values.put(SyncMetricsEntry.COLUMN_ROWS_INSERTED, result.rowsInserted);
+        values.put(SyncMetricsEntry.COLUMN_ROWS_REPLACED, result.rowsReplaced);
+        values.put(SyncMetricsEntry.COLUMN_ROWS_DELETED, result.rowsDeleted);
+        values.put(SyncMetricsEntry.COLUMN_NOTIFY_COUNT, result.notifyCount);
+
+        Bundle extras = new Bundle();
+        extras.putParcelable(SyncMetricsEntry.EXTRA_VALUES, values);
+        try {
+            resolver.call(SyncMetricsEntry.CONTENT_URI, SyncMetricsEntry.METHOD_RECORD, null, extras);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Couldn't record sync metrics", e);
+        }
+    }
+}
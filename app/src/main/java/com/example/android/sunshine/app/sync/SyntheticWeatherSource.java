@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Deterministic, in-process stand-in for OpenWeatherMap, for load testing ingestion without
+ * the network.  Every location setting gets a forecast of the configured number of days whose
+ * values depend only on the setting and the current generation, so repeated runs write the
+ * same rows.  Bump the generation with {@link #setGeneration} to make every forecast change.
+ * <p/>
+ * The source answers conditional requests like a well behaved server: the ETag changes with
+ * the generation, and a request carrying the current one is answered not modified.
+ */
+public class SyntheticWeatherSource implements WeatherSource {
+
+    private static final int[] WEATHER_IDS = {800, 801, 802, 500, 501, 600, 701, 211};
+    private static final String[] DESCRIPTIONS =
+            {"Clear", "Clouds", "Clouds", "Rain", "Rain", "Snow", "Mist", "Storm"};
+
+    private final int mNumDays;
+    private final long mLatencyMillis;
+    private volatile int mGeneration;
+
+    /**
+     * @param numDays       days in every forecast
+     * @param latencyMillis how long every request blocks before its response, to model the
+     *                      network round trip; 0 for none
+     */
+    public SyntheticWeatherSource(int numDays, long latencyMillis) {
+        mNumDays = numDays;
+        mLatencyMillis = latencyMillis;
+    }
+
+    public void setGeneration(int generation) {
+        mGeneration = generation;
+    }
+
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * @return count distinct location settings this source will happily serve.
+     */
+    public static List<String> buildLocationSettings(int count) {
+        List<String> settings = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            settings.add(String.format(Locale.US, "syn%05d", i));
+        }
+        return settings;
+    }
+
+    @Override
+    public Response open(String locationSetting, ConditionalGet.Validators validators)
+            throws IOException {
+        if (mLatencyMillis > 0) {
+            try {
+                Thread.sleep(mLatencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted fetching " + locationSetting);
+            }
+        }
+
+        int generation = mGeneration;
+        String etag = "\"" + generation + "-" + Integer.toHexString(locationSetting.hashCode()) +
+                "-" + mNumDays + "\"";
+        if (etag.equals(validators.etag)) {
+            return Response.notModified();
+        }
+
+        String body = buildForecast(locationSetting, generation, mNumDays);
+        CountingInputStream wire =
+                new CountingInputStream(new ByteArrayInputStream(body.getBytes("UTF-8")));
+        return new Response(wire, new ConditionalGet.Validators(etag, null))
+                .setTransferStats(wire, 0, mLatencyMillis);
+    }
+
+    /**
+     * Serves eight 3 hour slots for every configured day.
+     */
+    @Override
+    public Response openHourly(String locationSetting) throws IOException {
+        if (mLatencyMillis > 0) {
+            try {
+                Thread.sleep(mLatencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted fetching " + locationSetting);
+            }
+        }
+        String body = buildHourlyForecast(locationSetting, mGeneration, mNumDays * 8,
+                System.currentTimeMillis() / 1000);
+        CountingInputStream wire =
+                new CountingInputStream(new ByteArrayInputStream(body.getBytes("UTF-8")));
+        return new Response(wire, new ConditionalGet.Validators(null, null))
+                .setTransferStats(wire, 0, mLatencyMillis);
+    }
+
+    /**
+     * @return an OpenWeatherMap 3-hourly forecast document for the location, with slots
+     * starting at the 3 hour boundary before startTime (seconds).
+     */
+    static String buildHourlyForecast(String locationSetting, int generation, int numSlots,
+                                      long startTime) {
+        Random random = new Random(locationSetting.hashCode() * 37L + generation);
+        long slotTime = startTime - startTime % (3 * 3600);
+        StringBuilder sb = new StringBuilder(256 + numSlots * 320);
+        sb.append("{\"cod\":\"200\",\"message\":0,\"cnt\":").append(numSlots)
+                .append(",\"list\":[");
+        for (int i = 0; i < numSlots; i++, slotTime += 3 * 3600) {
+            if (i > 0) sb.append(',');
+            double temp = Math.round(random.nextDouble() * 400 - 100) / 10.0;
+            int weather = random.nextInt(WEATHER_IDS.length);
+            sb.append("{\"dt\":").append(slotTime)
+                    .append(",\"main\":{\"temp\":").append(temp)
+                    .append(",\"temp_min\":").append(temp)
+                    .append(",\"temp_max\":").append(temp)
+                    .append(",\"pressure\":").append(950 + random.nextInt(1000) / 10.0)
+                    .append(",\"humidity\":").append(random.nextInt(101))
+                    .append("},\"weather\":[{\"id\":").append(WEATHER_IDS[weather])
+                    .append(",\"main\":\"").append(DESCRIPTIONS[weather])
+                    .append("\",\"icon\":\"01d\"}],\"wind\":{\"speed\":")
+                    .append(random.nextInt(300) / 10.0)
+                    .append(",\"deg\":").append(random.nextInt(360))
+                    .append("}}");
+        }
+        sb.append("],\"city\":{\"id\":0,\"name\":\"Synthetic ").append(locationSetting)
+                .append("\",\"coord\":{\"lon\":0,\"lat\":0},\"country\":\"US\"}}");
+        return sb.toString();
+    }
+
+    /**
+     * @return an OpenWeatherMap daily forecast document for the location.
+     */
+    static String buildForecast(String locationSetting, int generation, int numDays) {
+        Random random = new Random(locationSetting.hashCode() * 31L + generation);
+        StringBuilder sb = new StringBuilder(256 + numDays * 256);
+        sb.append("{\"city\":{\"id\":").append(random.nextInt(1000000))
+                .append(",\"name\":\"Synthetic ").append(locationSetting)
+                .append("\",\"coord\":{\"lon\":")
+                .append(String.format(Locale.US, "%.4f", random.nextDouble() * 360 - 180))
+                .append(",\"lat\":")
+                .append(String.format(Locale.US, "%.4f", random.nextDouble() * 180 - 90))
+                .append("},\"country\":\"US\",\"population\":0},\"cod\":\"200\",\"message\":0,")
+                .append("\"cnt\":").append(numDays).append(",\"list\":[");
+
+        for (int i = 0; i < numDays; i++) {
+            if (i > 0) sb.append(',');
+            double low = Math.round(random.nextDouble() * 300 - 100) / 10.0;
+            double high = low + Math.round(random.nextDouble() * 150) / 10.0;
+            int weather = random.nextInt(WEATHER_IDS.length);
+            sb.append("{\"dt\":").append(1400000000L + i * 86400L)
+                    .append(",\"temp\":{\"day\":").append(high)
+                    .append(",\"min\":").append(low)
+                    .append(",\"max\":").append(high)
+                    .append(",\"night\":").append(low)
+                    .append(",\"eve\":").append(high)
+                    .append(",\"morn\":").append(low)
+                    .append("},\"pressure\":").append(950 + random.nextInt(1000) / 10.0)
+                    .append(",\"humidity\":").append(random.nextInt(101))
+                    .append(",\"weather\":[{\"id\":").append(WEATHER_IDS[weather])
+                    .append(",\"main\":\"").append(DESCRIPTIONS[weather])
+                    .append("\",\"description\":\"").append(DESCRIPTIONS[weather].toLowerCase(Locale.US))
+                    .append("\",\"icon\":\"01d\"}],\"speed\":").append(random.nextInt(300) / 10.0)
+                    .append(",\"deg\":").append(random.nextInt(360))
+                    .append(",\"clouds\":").append(random.nextInt(101))
+                    .append('}');
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The HTTP layer shared by every forecast fetch.  It puts explicit timeouts on every request,
+ * asks for gzip, and retries I/O errors and 5xx answers with exponential backoff and jitter.
+ * <p/>
+ * Connections are never disconnected.  Once a body has been read to the end and closed
+ * through {@link #release}, HttpURLConnection puts the socket back in its keep-alive pool,
+ * so the fetches of a batch sync reuse the same few connections to the server.
+ */
+public class WeatherHttpClient {
+
+    private static final String LOG_TAG = WeatherHttpClient.class.getSimpleName();
+
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String HEADER_RETRY_AFTER = "Retry-After";
+    private static final String ENCODING_GZIP = "gzip";
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 20 * 1000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 30 * 1000;
+
+    private static final WeatherHttpClient sInstance = new WeatherHttpClient(
+            DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS,
+            DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF_MILLIS);
+
+    private final int mConnectTimeoutMillis;
+    private final int mReadTimeoutMillis;
+    private final int mMaxAttempts;
+    private final long mInitialBackoffMillis;
+    private final Random mRandom = new Random();
+
+    /**
+     * Thrown once the server has answered every attempt with a 5xx.
+     */
+    public static class ServerErrorException extends IOException {
+        public final int responseCode;
+        // seconds the server asked us to wait through Retry-After, 0 if it didn't say
+        public final long retryAfterSeconds;
+
+        ServerErrorException(int responseCode, long retryAfterSeconds) {
+            super("Server error " + responseCode);
+            this.responseCode = responseCode;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+    }
+
+    /**
+     * Thrown, without retrying, when the server answers 4xx: a bad API key or a city it
+     * doesn't know won't get better by asking again.
+     */
+    public static class ClientErrorException extends IOException {
+        public final int responseCode;
+
+        ClientErrorException(int responseCode, String path) {
+            super("Client error " + responseCode + " for " + path);
+            this.responseCode = responseCode;
+        }
+
+        /**
+         * @return whether the server refused our credentials rather than the request
+         */
+        public boolean isAuthError() {
+            return responseCode == HttpURLConnection.HTTP_UNAUTHORIZED ||
+                    responseCode == HttpURLConnection.HTTP_FORBIDDEN;
+        }
+    }
+
+    /**
+     * Where the time of the successful attempt went.
+     */
+    public static class Timing {
+        // resolving the host and connecting; close to 0 when a pooled connection was reused
+        public long connectMillis;
+        // from sending the request to having the response headers
+        public long firstByteMillis;
+        public int attempts;
+    }
+
+    /**
+     * @return the client the sync path shares.
+     */
+    public static WeatherHttpClient getInstance() {
+        return sInstance;
+    }
+
+    public WeatherHttpClient(int connectTimeoutMillis, int readTimeoutMillis, int maxAttempts,
+                             long initialBackoffMillis) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Invalid number of attempts: " + maxAttempts);
+        }
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+        mMaxAttempts = maxAttempts;
+        mInitialBackoffMillis = initialBackoffMillis;
+    }
+
+    /**
+     * Sends a conditional GET, retrying until the server answers 2xx or 304.
+     *
+     * @return the connection, with its response code available.  Read the body through
+     * {@link #getBody} and hand it back through {@link #release}.
+     * @throws ServerErrorException if every attempt got a 5xx
+     * @throws ClientErrorException if the server answered 4xx
+     * @throws IOException          for any other non-success status, or the last I/O error
+     */
+    public HttpURLConnection get(URL url, ConditionalGet.Validators validators)
+            throws IOException {
+        return get(url, validators, new Timing());
+    }
+
+    /**
+     * Like {@link #get(URL, ConditionalGet.Validators)}, filling in timing as it goes.
+     */
+    public HttpURLConnection get(URL url, ConditionalGet.Validators validators, Timing timing)
+            throws IOException {
+        IOException lastError = null;
+        for (int attempt = 1; attempt <= mMaxAttempts; attempt++) {
+            if (attempt > 1) {
+                backoff(attempt - 1, lastError);
+            }
+
+            HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+            urlConnection.setConnectTimeout(mConnectTimeoutMillis);
+            urlConnection.setReadTimeout(mReadTimeoutMillis);
+            urlConnection.setRequestMethod("GET");
+            urlConnection.setRequestProperty(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
+            ConditionalGet.apply(urlConnection, validators);
+
+            int responseCode;
+            timing.attempts = attempt;
+            try {
+                long start = SystemClock.elapsedRealtime();
+                urlConnection.connect();
+                long connected = SystemClock.elapsedRealtime();
+                responseCode = urlConnection.getResponseCode();
+                timing.connectMillis = connected - start;
+                timing.firstByteMillis = SystemClock.elapsedRealtime() - connected;
+            } catch (InterruptedIOException e) {
+                // includes SocketTimeoutException: a slow server gets another go, a
+                // cancelled sync does not
+                if (Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                lastError = e;
+                Log.w(LOG_TAG, "Attempt " + attempt + " for " + url.getPath() + " timed out");
+                continue;
+            } catch (IOException e) {
+                lastError = e;
+                Log.w(LOG_TAG, "Attempt " + attempt + " for " + url.getPath() + " failed: " + e);
+                continue;
+            }
+
+            if (responseCode / 100 == 2 || ConditionalGet.isNotModified(responseCode)) {
+                return urlConnection;
+            }
+            // drain the error body too so the socket can go back to the pool
+            release(urlConnection.getErrorStream());
+            if (responseCode / 100 == 5) {
+                lastError = new ServerErrorException(responseCode,
+                        parseRetryAfter(urlConnection.getHeaderField(HEADER_RETRY_AFTER)));
+                Log.w(LOG_TAG, "Attempt " + attempt + " for " + url.getPath() +
+                        " got " + responseCode);
+                continue;
+            }
+            if (responseCode / 100 == 4) {
+                throw new ClientErrorException(responseCode, url.getPath());
+            }
+            throw new IOException("Unexpected response " + responseCode + " for " + url.getPath());
+        }
+        throw lastError;
+    }
+
+    /**
+     * @return the response body as it comes off the wire, counting the bytes read.
+     */
+    public static CountingInputStream getWireStream(HttpURLConnection urlConnection)
+            throws IOException {
+        return new CountingInputStream(new BufferedInputStream(urlConnection.getInputStream()));
+    }
+
+    /**
+     * @return the body read from wire, decompressed if the server gzipped it.
+     */
+    public static InputStream getBody(HttpURLConnection urlConnection, InputStream wire)
+            throws IOException {
+        if (ENCODING_GZIP.equalsIgnoreCase(urlConnection.getContentEncoding())) {
+            return new GZIPInputStream(wire);
+        }
+        return wire;
+    }
+
+    /**
+     * Reads whatever is left of a body and closes it, which is what lets HttpURLConnection
+     * reuse the socket for the next request.
+     */
+    public static void release(InputStream body) {
+        if (body == null) {
+            return;
+        }
+        try {
+            byte[] buffer = new byte[1024];
+            while (body.read(buffer) != -1) {
+                // discard
+            }
+        } catch (IOException e) {
+            // the socket won't be reused, nothing else to do
+        } finally {
+            try {
+                body.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error closing stream", e);
+            }
+        }
+    }
+
+    /**
+     * Sleeps before the next attempt: the ceiling doubles with every retry, and the actual
+     * delay is picked between half the ceiling and the ceiling so that many devices failing
+     * together don't come back in lockstep.
+     */
+    private void backoff(int retry, IOException lastError) throws IOException {
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, mInitialBackoffMillis << (retry - 1));
+        long delay = ceiling / 2 + (long) (mRandom.nextDouble() * (ceiling - ceiling / 2));
+        if (lastError instanceof ServerErrorException) {
+            long retryAfterMillis = ((ServerErrorException) lastError).retryAfterSeconds * 1000;
+            delay = Math.max(delay, Math.min(MAX_BACKOFF_MILLIS, retryAfterMillis));
+        }
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while backing off");
+        }
+    }
+
+    private static long parseRetryAfter(String retryAfter) {
+        if (retryAfter == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()));
+        } catch (NumberFormatException e) {
+            // an HTTP date; not worth parsing, the backoff covers it
+            return 0;
+        }
+    }
+}
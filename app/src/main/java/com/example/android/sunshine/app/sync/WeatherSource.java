@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Where ForecastIngester gets forecasts from.  A source only produces the raw daily forecast
+ * document (OpenWeatherMap's JSON format); decoding and everything after it stays in the
+ * ingester, so any source exercises the same parse and provider path.
+ */
+public interface WeatherSource {
+
+    /**
+     * Opens the forecast of one location.  Called from the fetch stage, possibly on several
+     * threads at once, so implementations must be thread safe.
+     *
+     * @param locationSetting the location the user asked for, e.g. "94043"
+     * @param validators      validators of the copy we already have; a source may answer
+     *                        {@link Response#notModified()} when they are still current
+     */
+    Response open(String locationSetting, ConditionalGet.Validators validators)
+            throws IOException;
+
+    /**
+     * Opens the 3-hourly forecast of one location (OpenWeatherMap's /forecast format).
+     * Hourly requests are unconditional, so the response is never not modified.
+     */
+    Response openHourly(String locationSetting) throws IOException;
+
+    /**
+     * A forecast document, or the news that the stored one is still current.  Must be
+     * closed once the body has been read.
+     */
+    class Response {
+        private final InputStream mBody;
+        private final ConditionalGet.Validators mValidators;
+
+        // how the response travelled, for SyncMetrics
+        private CountingInputStream mWire;
+        private long mConnectMillis;
+        private long mFirstByteMillis;
+        // when the document was fetched, or 0 if it is coming off the network right now
+        private long mFetchedAt;
+
+        public Response(InputStream body, ConditionalGet.Validators validators) {
+            mBody = body;
+            mValidators = validators;
+        }
+
+        public static Response notModified() {
+            return new Response(null, null);
+        }
+
+        /**
+         * @param wire            the stream as it came off the network, before any decoding,
+         *                        or null if there was no body
+         * @param connectMillis   time to resolve the host and connect
+         * @param firstByteMillis time from sending the request to the response headers
+         * @return this response
+         */
+        public Response setTransferStats(CountingInputStream wire, long connectMillis,
+                                         long firstByteMillis) {
+            mWire = wire;
+            mConnectMillis = connectMillis;
+            mFirstByteMillis = firstByteMillis;
+            return this;
+        }
+
+        /**
+         * For a document served from storage: when it was originally fetched, in
+         * milliseconds since the epoch.  The daily forecast is dated from the day it was
+         * fetched on.
+         *
+         * @return this response
+         */
+        public Response setFetchedAt(long fetchedAt) {
+            mFetchedAt = fetchedAt;
+            return this;
+        }
+
+        public long getFetchedAt() {
+            return mFetchedAt;
+        }
+
+        /**
+         * @return bytes read off the wire so far
+         */
+        public long getBytesRead() {
+            return mWire == null ? 0 : mWire.getCount();
+        }
+
+        public long getConnectMillis() {
+            return mConnectMillis;
+        }
+
+        public long getFirstByteMillis() {
+            return mFirstByteMillis;
+        }
+
+        public boolean isNotModified() {
+            return mBody == null;
+        }
+
+        /**
+         * @return the forecast JSON, or null if not modified.
+         */
+        public InputStream getBody() {
+            return mBody;
+        }
+
+        /**
+         * @return the validators to store along with this forecast.
+         */
+        public ConditionalGet.Validators getValidators() {
+            return mValidators;
+        }
+
+        public void close() throws IOException {
+            if (mBody != null) {
+                mBody.close();
+            }
+        }
+
+        /**
+         * Closes the body without reading what is left of it, for work that has been
+         * cancelled: the connection isn't reused, but nothing more is downloaded.
+         */
+        public void abort() throws IOException {
+            if (mBody != null) {
+                mBody.close();
+            }
+        }
+    }
+}
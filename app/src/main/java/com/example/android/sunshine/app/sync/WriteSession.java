@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+/**
+ * Brackets the provider calls of one sync, so the CursorLoaders watching the weather reload
+ * once when it is done instead of after every call.  Every {@link #begin} must be followed by
+ * an {@link #end} of the token it returned, in a finally block.
+ */
+public class WriteSession {
+
+    private static final String LOG_TAG = WriteSession.class.getSimpleName();
+
+    // Lets a sync that follows right after (the hourly forecast after the daily one, a
+    // periodic sync after a manual refresh) be delivered with this one
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 500;
+
+    // What begin() returns when no session could be opened; the provider's tokens start at 1
+    public static final long NO_SESSION = -1;
+
+    private WriteSession() {
+    }
+
+    /**
+     * Starts holding the provider's change notifications.  Like the metrics, sessions are best
+     * effort: a failure is logged and the writes simply notify as they go.
+     *
+     * @return the session's token, or NO_SESSION if it couldn't begin
+     */
+    public static long begin(ContentResolver resolver) {
+        try {
+            Bundle reply = resolver.call(WeatherContract.BASE_CONTENT_URI,
+                    WeatherContract.METHOD_BEGIN_WRITE_SESSION, null, null);
+            if (reply != null) {
+                return reply.getLong(WeatherContract.EXTRA_SESSION_TOKEN, NO_SESSION);
+            }
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Couldn't begin a write session", e);
+        }
+        return NO_SESSION;
+    }
+
+    /**
+     * Ends the session, sending what it held debounceMillis later (0 for right away) unless
+     * another session is still open.
+     */
+    public static void end(ContentResolver resolver, long token, long debounceMillis) {
+        if (token == NO_SESSION) {
+            return;
+        }
+        Bundle extras = new Bundle();
+        extras.putLong(WeatherContract.EXTRA_SESSION_TOKEN, token);
+        extras.putLong(WeatherContract.EXTRA_DEBOUNCE_MILLIS, debounceMillis);
+        try {
+            resolver.call(WeatherContract.BASE_CONTENT_URI,
+                    WeatherContract.METHOD_END_WRITE_SESSION, null, extras);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Couldn't end a write session", e);
+        }
+    }
+}